@@ -0,0 +1,92 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter.benchmark;
+
+import nl.softwaredesign.exporter.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A document written word by word in a single style, with and without coalescing
+ * of the text into one span per paragraph. The spans counter is the number of
+ * spans in one document, summed over the measurement iterations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CoalesceTextBenchmark {
+
+    private final static int PARAGRAPHS = 200;
+    private final static int WORDS_PER_PARAGRAPH = 50;
+
+    @Param({"ODTExportFormat", "StreamingODTExportFormat"})
+    public String format;
+
+    @Param({"true", "false"})
+    public boolean coalesce;
+
+    private AbstractExportFormat exporter;
+    private JmxExportMetrics metrics;
+    private File target;
+    private SectionStyle sectionStyle;
+    private Style style;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long spans;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            spans = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        exporter = (AbstractExportFormat) Documents.newFormat(format);
+        exporter.setCoalesceText(coalesce);
+        metrics = new JmxExportMetrics();
+        exporter.setMetrics(metrics);
+        target = Documents.newTarget();
+        sectionStyle = Documents.sectionStyle();
+        style = Documents.styles(1)[0];
+    }
+
+    @TearDown
+    public void tearDown() {
+        target.delete();
+    }
+
+    @Benchmark
+    public void wordByWord(Counters counters) throws Exception {
+        metrics.reset();
+        Documents.startDocument(exporter, target, sectionStyle);
+        for (int p = 0; p < PARAGRAPHS; p++) {
+            exporter.newParagraph(0, Alignment.LEFT, null, 0.0f, 0.0f, LineSpacing.SINGLE);
+            for (int w = 0; w < WORDS_PER_PARAGRAPH; w++) {
+                exporter.writeText("word ", style, null, null);
+            }
+        }
+        Documents.endDocument(exporter, target);
+        counters.spans = metrics.getSpans();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter.benchmark;
+
+import nl.softwaredesign.exporter.*;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of endFile for a document with pictures, for each compression policy.
+ * The kilobytes counter is the size of the saved file, summed over the measurement iterations.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionBenchmark {
+
+    private final static int PARAGRAPHS = 1000;
+    private final static int PICTURES = 20;
+
+    @Param({"ODTExportFormat", "StreamingODTExportFormat"})
+    public String format;
+
+    @Param({"DEFAULT", "FAST", "STORE_ALL", "DEFLATE_ALL"})
+    public String compression;
+
+    private AbstractExportFormat exporter;
+    private File target;
+    private Style[] styles;
+    private byte[][] pictures;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long kilobytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            kilobytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        exporter = (AbstractExportFormat) Documents.newFormat(format);
+        if ("DEFLATE_ALL".equals(compression)) {
+            exporter.setCompression(new CompressionPolicy(6, false));
+        } else {
+            exporter.setCompression((CompressionPolicy) CompressionPolicy.class.getField(compression).get(null));
+        }
+        target = Documents.newTarget();
+        styles = Documents.styles(8);
+        pictures = new byte[PICTURES][];
+        for (int i = 0; i < PICTURES; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write((BufferedImage) Documents.image(256 + i).getImage(), "png", out);
+            pictures[i] = out.toByteArray();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void buildDocument() throws Exception {
+        Documents.startDocument(exporter, target, Documents.sectionStyle());
+        for (int i = 0; i < PARAGRAPHS; i++) {
+            exporter.newParagraph(0, Alignment.LEFT, null, 0.0f, 0.0f, LineSpacing.SINGLE);
+            exporter.writeText("Paragraph " + i, styles[i % styles.length], null, null);
+            if (i % (PARAGRAPHS / PICTURES) == 0) {
+                int size = 256 + i / (PARAGRAPHS / PICTURES);
+                exporter.writeImage(pictures[i / (PARAGRAPHS / PICTURES)], "image/png", size, size, false);
+            }
+        }
+        exporter.endSection();
+    }
+
+    @TearDown
+    public void tearDown() {
+        target.delete();
+    }
+
+    @Benchmark
+    public void endFile(Counters counters) throws Exception {
+        exporter.endFile(target, false);
+        counters.kilobytes += target.length() / 1024;
+    }
+}
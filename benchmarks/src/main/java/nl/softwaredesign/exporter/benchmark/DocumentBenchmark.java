@@ -0,0 +1,123 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter.benchmark;
+
+import nl.softwaredesign.exporter.*;
+import org.openjdk.jmh.annotations.*;
+
+import javax.swing.*;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Complete documents of different sizes, from startNewFile to endFile
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DocumentBenchmark {
+
+    @Param({"ODTExportFormat", "StreamingODTExportFormat", "FlatODTExportFormat", "MarkdownExportFormat",
+            "StreamingDOCXExportFormat", "HTMLExportFormat"})
+    public String format;
+
+    @Param({"100", "1000", "10000"})
+    public int paragraphs;
+
+    private ExportFormat exporter;
+    private File target;
+    private SectionStyle sectionStyle;
+    private Style[] styles;
+    private ImageIcon image;
+
+    @Setup
+    public void setUp() throws Exception {
+        exporter = Documents.newFormat(format);
+        target = Documents.newTarget();
+        sectionStyle = Documents.sectionStyle();
+        styles = Documents.styles(8);
+        image = Documents.image(64);
+    }
+
+    @TearDown
+    public void tearDown() {
+        target.delete();
+    }
+
+    @Benchmark
+    public void plainParagraphs() throws Exception {
+        Documents.startDocument(exporter, target, sectionStyle);
+        for (int i = 0; i < paragraphs; i++) {
+            paragraph(i, 0, null);
+        }
+        Documents.endDocument(exporter, target);
+    }
+
+    @Benchmark
+    public void nestedLists() throws Exception {
+        Documents.startDocument(exporter, target, sectionStyle);
+        for (int i = 0; i < paragraphs; i++) {
+            paragraph(i, i % 4, ListType.NUMBER);
+        }
+        Documents.endDocument(exporter, target);
+    }
+
+    @Benchmark
+    public void pageBreaks() throws Exception {
+        Documents.startDocument(exporter, target, sectionStyle);
+        for (int i = 0; i < paragraphs; i++) {
+            if (i % 10 == 9) {
+                exporter.writePageBreak();
+            }
+            paragraph(i, 0, null);
+        }
+        Documents.endDocument(exporter, target);
+    }
+
+    @Benchmark
+    public void sections() throws Exception {
+        Documents.startDocument(exporter, target, sectionStyle);
+        for (int i = 0; i < paragraphs; i++) {
+            if (i % 10 == 9) {
+                exporter.endSection();
+                exporter.startSection(sectionStyle);
+            }
+            paragraph(i, 0, null);
+        }
+        Documents.endDocument(exporter, target);
+    }
+
+    @Benchmark
+    public void images() throws Exception {
+        Documents.startDocument(exporter, target, sectionStyle);
+        for (int i = 0; i < paragraphs; i++) {
+            paragraph(i, 0, null);
+            if (i % 10 == 9) {
+                exporter.writeImage(image, false);
+            }
+        }
+        Documents.endDocument(exporter, target);
+    }
+
+    private void paragraph(int i, int indent, ListType listType) throws DocumentExportException {
+        exporter.newParagraph(indent, Alignment.LEFT, listType, 0.0f, 0.0f, LineSpacing.SINGLE);
+        exporter.writeText("Paragraph " + i + " ", styles[i % styles.length], null, null);
+        exporter.writeText("with some more text in a second style.", styles[(i + 1) % styles.length], null, null);
+    }
+}
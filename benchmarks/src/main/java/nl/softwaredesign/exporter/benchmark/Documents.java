@@ -0,0 +1,111 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter.benchmark;
+
+import nl.softwaredesign.exporter.*;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Shared input for the benchmarks
+ */
+final class Documents {
+
+    private Documents() {
+    }
+
+    /**
+     * @param name simple class name of an export format in nl.softwaredesign.exporter
+     */
+    static ExportFormat newFormat(String name) {
+        try {
+            return (ExportFormat) Class.forName("nl.softwaredesign.exporter." + name).newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Unknown export format " + name, e);
+        }
+    }
+
+    static File newTarget() throws IOException {
+        File target = File.createTempFile("benchmark", ".odt");
+        target.deleteOnExit();
+        return target;
+    }
+
+    /**
+     * A portrait A4 section with a header and a footer
+     */
+    static SectionStyle sectionStyle() {
+        Style headerStyle = new Style();
+        headerStyle.setItalic(true);
+        PageSettings settings = new PageSettings();
+        settings.setHeaderLeft("CommonDocExporter");
+        settings.setHeaderLeftStyle(headerStyle);
+        settings.setHeaderRight("Benchmark");
+        settings.setLineBelowHeader(true);
+        settings.setFooterCenter("Footer");
+        SectionStyle sectionStyle = new SectionStyle();
+        sectionStyle.setMultiPageType(MultiPageType.ALL_EQUAL);
+        sectionStyle.setAllPageSettings(settings);
+        sectionStyle.setIndentSize(18.0f);
+        return sectionStyle;
+    }
+
+    /**
+     * @param count number of distinct styles
+     */
+    static Style[] styles(int count) {
+        Style[] styles = new Style[count];
+        for (int i = 0; i < count; i++) {
+            Style style = new Style();
+            style.setName("Style " + (i % 10));
+            style.setBold(i % 2 == 0);
+            style.setItalic(i % 3 == 0);
+            style.setFontSize(8 + i % 16);
+            style.setColor(i);
+            styles[i] = style;
+        }
+        return styles;
+    }
+
+    /**
+     * @param size width and height of the image in pixels
+     */
+    static ImageIcon image(int size) {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, Color.blue, size, size, Color.orange));
+        graphics.fillRect(0, 0, size, size);
+        graphics.setColor(Color.black);
+        graphics.drawOval(size / 4, size / 4, size / 2, size / 2);
+        graphics.dispose();
+        return new ImageIcon(image);
+    }
+
+    static void startDocument(ExportFormat exporter, File target, SectionStyle sectionStyle)
+            throws IOException, DocumentExportException {
+        exporter.startNewFile(target, "Benchmark", "Benchmark document", "en");
+        exporter.startSection(sectionStyle);
+    }
+
+    static void endDocument(ExportFormat exporter, File target) throws IOException, DocumentExportException {
+        exporter.endSection();
+        exporter.endFile(target, false);
+    }
+}
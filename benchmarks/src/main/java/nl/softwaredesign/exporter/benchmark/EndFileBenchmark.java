@@ -0,0 +1,71 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter.benchmark;
+
+import nl.softwaredesign.exporter.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of endFile (saving the package) for documents of different sizes
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class EndFileBenchmark {
+
+    @Param({"ODTExportFormat", "StreamingODTExportFormat"})
+    public String format;
+
+    @Param({"100", "1000", "10000"})
+    public int paragraphs;
+
+    private ExportFormat exporter;
+    private File target;
+    private Style[] styles;
+
+    @Setup
+    public void setUp() throws Exception {
+        exporter = Documents.newFormat(format);
+        target = Documents.newTarget();
+        styles = Documents.styles(8);
+    }
+
+    @Setup(Level.Iteration)
+    public void buildDocument() throws Exception {
+        Documents.startDocument(exporter, target, Documents.sectionStyle());
+        for (int i = 0; i < paragraphs; i++) {
+            exporter.newParagraph(0, Alignment.LEFT, null, 0.0f, 0.0f, LineSpacing.SINGLE);
+            exporter.writeText("Paragraph " + i, styles[i % styles.length], null, null);
+        }
+        exporter.endSection();
+    }
+
+    @TearDown
+    public void tearDown() {
+        target.delete();
+    }
+
+    @Benchmark
+    public void endFile() throws Exception {
+        exporter.endFile(target, false);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter.benchmark;
+
+import nl.softwaredesign.exporter.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of starting a section and of a page break in an open document
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SectionBenchmark {
+
+    @Param({"ODTExportFormat", "StreamingODTExportFormat"})
+    public String format;
+
+    private ExportFormat exporter;
+    private File target;
+    private SectionStyle sectionStyle;
+
+    @Setup
+    public void setUp() throws Exception {
+        exporter = Documents.newFormat(format);
+        target = Documents.newTarget();
+        sectionStyle = Documents.sectionStyle();
+    }
+
+    @Setup(Level.Iteration)
+    public void startDocument() throws Exception {
+        Documents.startDocument(exporter, target, sectionStyle);
+    }
+
+    @TearDown(Level.Iteration)
+    public void endDocument() throws Exception {
+        Documents.endDocument(exporter, target);
+    }
+
+    @TearDown
+    public void tearDown() {
+        target.delete();
+    }
+
+    @Benchmark
+    public void startSection() throws Exception {
+        exporter.endSection();
+        exporter.startSection(sectionStyle);
+        exporter.newParagraph(0, Alignment.LEFT, null, 0.0f, 0.0f, LineSpacing.SINGLE);
+    }
+
+    @Benchmark
+    public void writePageBreak() throws Exception {
+        exporter.writePageBreak();
+        exporter.newParagraph(0, Alignment.LEFT, null, 0.0f, 0.0f, LineSpacing.SINGLE);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter.benchmark;
+
+import nl.softwaredesign.exporter.ExportFormat;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The fixed cost of a document: startNewFile alone and an empty document
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class StartNewFileBenchmark {
+
+    @Param({"ODTExportFormat", "StreamingODTExportFormat"})
+    public String format;
+
+    private ExportFormat exporter;
+    private File target;
+    private boolean started;
+
+    @Setup
+    public void setUp() throws Exception {
+        exporter = Documents.newFormat(format);
+        target = Documents.newTarget();
+    }
+
+    @TearDown(Level.Invocation)
+    public void endStartedFile() throws Exception {
+        if (started) {
+            exporter.endFile(target, false);
+            started = false;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        target.delete();
+    }
+
+    @Benchmark
+    public void startNewFile() throws Exception {
+        exporter.startNewFile(target, "Benchmark", "Benchmark document", "en");
+        started = true;
+    }
+
+    @Benchmark
+    public void emptyDocument() throws Exception {
+        exporter.startNewFile(target, "Benchmark", "Benchmark document", "en");
+        exporter.endFile(target, false);
+    }
+}
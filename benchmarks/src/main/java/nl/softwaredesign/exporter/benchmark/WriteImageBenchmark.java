@@ -0,0 +1,85 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter.benchmark;
+
+import nl.softwaredesign.exporter.*;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import javax.swing.*;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of adding an image to an open document
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class WriteImageBenchmark {
+
+    @Param({"ODTExportFormat", "StreamingODTExportFormat"})
+    public String format;
+
+    @Param({"64", "512"})
+    public int imageSize;
+
+    private ExportFormat exporter;
+    private File target;
+    private ImageIcon image;
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() throws Exception {
+        exporter = Documents.newFormat(format);
+        target = Documents.newTarget();
+        image = Documents.image(imageSize);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write((RenderedImage) image.getImage(), "png", out);
+        encoded = out.toByteArray();
+    }
+
+    @Setup(Level.Iteration)
+    public void startDocument() throws Exception {
+        Documents.startDocument(exporter, target, Documents.sectionStyle());
+        exporter.newParagraph(0, Alignment.CENTER, null, 0.0f, 0.0f, LineSpacing.SINGLE);
+    }
+
+    @TearDown(Level.Iteration)
+    public void endDocument() throws Exception {
+        Documents.endDocument(exporter, target);
+    }
+
+    @TearDown
+    public void tearDown() {
+        target.delete();
+    }
+
+    @Benchmark
+    public void writeImage() throws Exception {
+        exporter.writeImage(image, false);
+    }
+
+    @Benchmark
+    public void writeEncodedImage() throws Exception {
+        exporter.writeImage(encoded, "image/png", imageSize, imageSize, false);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter.benchmark;
+
+import nl.softwaredesign.exporter.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a single writeText call, cycling through a number of distinct styles.
+ * The per call cost should not depend on the number of styles. With handles the styles and
+ * the paragraph format are registered up front and passed as handles.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class WriteTextBenchmark {
+
+    private final static int WRITES_PER_PARAGRAPH = 64;
+
+    @Param({"ODTExportFormat", "StreamingODTExportFormat", "FlatODTExportFormat", "MarkdownExportFormat",
+            "StreamingDOCXExportFormat", "HTMLExportFormat"})
+    public String format;
+
+    @Param({"1", "100", "10000", "20000"})
+    public int styleCount;
+
+    @Param({"false", "true"})
+    public boolean handles;
+
+    private ExportFormat exporter;
+    private File target;
+    private Style[] styles;
+    private int[] styleHandles;
+    private int paragraphHandle;
+    private int counter;
+
+    @Setup
+    public void setUp() throws Exception {
+        exporter = Documents.newFormat(format);
+        target = Documents.newTarget();
+        styles = Documents.styles(styleCount);
+        styleHandles = new int[styleCount];
+        for (int i = 0; i < styleCount; i++) {
+            styleHandles[i] = exporter.registerStyle(styles[i]);
+        }
+        paragraphHandle = exporter.registerParagraphFormat(0, Alignment.LEFT, null, 0.0f, 0.0f, LineSpacing.SINGLE);
+    }
+
+    @Setup(Level.Iteration)
+    public void startDocument() throws Exception {
+        Documents.startDocument(exporter, target, Documents.sectionStyle());
+        exporter.newParagraph(0, Alignment.LEFT, null, 0.0f, 0.0f, LineSpacing.SINGLE);
+        counter = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void endDocument() throws Exception {
+        Documents.endDocument(exporter, target);
+    }
+
+    @TearDown
+    public void tearDown() {
+        target.delete();
+    }
+
+    @Benchmark
+    public void writeText() throws Exception {
+        int i = counter++;
+        if (handles) {
+            if (i % WRITES_PER_PARAGRAPH == 0) {
+                exporter.newParagraph(paragraphHandle);
+            }
+            exporter.writeText("text ", styleHandles[i % styleCount], null, null);
+        } else {
+            if (i % WRITES_PER_PARAGRAPH == 0) {
+                exporter.newParagraph(0, Alignment.LEFT, null, 0.0f, 0.0f, LineSpacing.SINGLE);
+            }
+            exporter.writeText("text ", styles[i % styleCount], null, null);
+        }
+    }
+}
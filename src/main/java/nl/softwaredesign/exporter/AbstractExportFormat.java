@@ -0,0 +1,482 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import org.apache.log4j.Logger;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Base class for export formats. Implementations write to an OutputStream;
+ * this class provides the File and WritableByteChannel variants on top of that.
+ */
+public abstract class AbstractExportFormat implements ExportFormat {
+
+    private final static Logger logger = Logger.getLogger(AbstractExportFormat.class);
+
+    /**
+     * Default size of the buffer between the format and its target
+     */
+    public final static int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private TargetFileStream fileStream;
+    private OutputStream channelStream;
+    private final Map<Image, Future<byte[]>> encodedImages = new WeakHashMap<>();
+    private ExecutorService imageEncoder;
+    private ExportMetrics metrics;
+    private boolean coalesceText = true;
+    private CompressionPolicy compression = CompressionPolicy.DEFAULT;
+    private final TableOfContents tableOfContents = new TableOfContents();
+    private final List<Style> registeredStyles = new ArrayList<>();
+    private final Map<Style, Integer> styleHandles = new HashMap<>();
+    private final List<ParagraphFormat> paragraphFormats = new ArrayList<>();
+    private final Map<ParagraphFormat, Integer> paragraphFormatHandles = new HashMap<>();
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param bufferSize size in bytes of the buffer used when writing to the target
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 512) {
+            bufferSize = 512;
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void startNewFile(File targetFile, String author, String title, String language) throws IOException {
+        closeTargetFile();
+        // Only assigned afterwards, the reset() in startNewFile would close it otherwise
+        TargetFileStream stream = new TargetFileStream(targetFile);
+        try {
+            startNewFile(stream, author, title, language);
+        } catch (IOException | RuntimeException e) {
+            stream.discard();
+            throw e;
+        }
+        fileStream = stream;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void startNewFile(WritableByteChannel target, String author, String title, String language) throws IOException {
+        channelStream = Channels.newOutputStream(target);
+        startNewFile(channelStream, author, title, language);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void endFile(File targetFile, boolean firstPass) throws IOException {
+        TargetFileStream stream = fileStream != null ? fileStream : new TargetFileStream(targetFile);
+        fileStream = null;
+        try {
+            endFile(stream, firstPass);
+            stream.close();
+        } catch (IOException | RuntimeException e) {
+            stream.discard();
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void endFile(WritableByteChannel target, boolean firstPass) throws IOException {
+        if (channelStream == null) {
+            channelStream = Channels.newOutputStream(target);
+        }
+        try {
+            endFile(channelStream, firstPass);
+        } finally {
+            channelStream = null;
+        }
+    }
+
+    public boolean isCoalesceText() {
+        return coalesceText;
+    }
+
+    /**
+     * @param coalesceText if true (the default), text that is written in the same style as the
+     *                     text before it, without a bookmark in between, is added to the same span
+     */
+    public void setCoalesceText(boolean coalesceText) {
+        this.coalesceText = coalesceText;
+    }
+
+    public CompressionPolicy getCompression() {
+        return compression;
+    }
+
+    /**
+     * @param compression how the entries of the package are compressed when the file is saved;
+     *                    formats that do not write a zip package ignore it
+     */
+    public void setCompression(CompressionPolicy compression) {
+        if (compression == null) {
+            throw new IllegalArgumentException("Compression policy is required");
+        }
+        this.compression = compression;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The id is the name of the bookmark in the document.
+     */
+    @Override
+    public Object addTOCItem(String text, int level) throws DocumentExportException {
+        return tableOfContents.add(text, level);
+    }
+
+    /**
+     * @return the items added with addTOCItem, formats clear them for a new file
+     */
+    TableOfContents getTableOfContents() {
+        return tableOfContents;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int registerStyle(Style style) {
+        if (style == null) {
+            throw new IllegalArgumentException("Style is required");
+        }
+        Integer handle = styleHandles.get(style);
+        if (handle == null) {
+            Style copy = new Style(style);
+            handle = registeredStyles.size();
+            registeredStyles.add(copy);
+            styleHandles.put(copy, handle);
+        }
+        return handle;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int registerParagraphFormat(int indent, Alignment alignment, ListType listType,
+                                       float firstLineIndent, float indentSize, LineSpacing spacing) {
+        ParagraphFormat format = new ParagraphFormat(indent, alignment, listType, firstLineIndent, indentSize, spacing);
+        Integer handle = paragraphFormatHandles.get(format);
+        if (handle == null) {
+            handle = paragraphFormats.size();
+            paragraphFormats.add(format);
+            paragraphFormatHandles.put(format, handle);
+        }
+        return handle;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * By default the text is written with the registered style; formats override this
+     * to skip looking the style up.
+     */
+    @Override
+    public void writeText(String text, int style, Object bookmarkId, String bookmarkName) throws DocumentExportException {
+        writeText(text, getRegisteredStyle(style), bookmarkId, bookmarkName);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * By default the paragraph is started with the registered settings; formats override
+     * this to skip looking the paragraph style up.
+     */
+    @Override
+    public void newParagraph(int paragraphFormat) throws DocumentExportException {
+        ParagraphFormat format = getParagraphFormat(paragraphFormat);
+        newParagraph(format.indent, format.alignment, format.listType,
+                format.firstLineIndent, format.indentSize, format.spacing);
+    }
+
+    /**
+     * @return the copy of the style that was registered under the handle
+     */
+    Style getRegisteredStyle(int handle) {
+        if (handle < 0 || handle >= registeredStyles.size()) {
+            throw new IllegalArgumentException("Unknown style handle " + handle);
+        }
+        return registeredStyles.get(handle);
+    }
+
+    ParagraphFormat getParagraphFormat(int handle) {
+        if (handle < 0 || handle >= paragraphFormats.size()) {
+            throw new IllegalArgumentException("Unknown paragraph format handle " + handle);
+        }
+        return paragraphFormats.get(handle);
+    }
+
+    /**
+     * @param metrics listener for what the exporter does, or null for none
+     */
+    public void setMetrics(ExportMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the metrics listener, or null if there is none
+     */
+    protected ExportMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Encode images on the given executor instead of on the calling thread. The document
+     * refers to a picture right away and endFile waits until all pictures are encoded.
+     * The executor is not shut down by the exporter.
+     *
+     * @param executor the executor to use, or null to encode on the calling thread
+     */
+    public void setImageEncodingExecutor(ExecutorService executor) {
+        this.imageEncoder = executor;
+    }
+
+    /**
+     * @return the executor images are encoded on, or null if they are encoded on the calling thread
+     */
+    protected ExecutorService getImageEncodingExecutor() {
+        return imageEncoder;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The image is encoded as PNG. Images that cannot change (not a BufferedImage) are
+     * encoded only once, also when they are used in several documents.
+     */
+    @Override
+    public void writeImage(ImageIcon image, boolean scaleToPage) throws DocumentExportException {
+        Image source = image.getImage();
+        final int width = image.getIconWidth();
+        final int height = image.getIconHeight();
+        Future<byte[]> encoded = source instanceof BufferedImage ? null : encodedImages.get(source);
+        if (encoded == null || failed(encoded)) {
+            final ImageIcon icon;
+            if (source instanceof BufferedImage && imageEncoder != null) {
+                // The caller may draw on the image while it is being encoded
+                BufferedImage buffered = (BufferedImage) source;
+                icon = new ImageIcon(new BufferedImage(buffered.getColorModel(), buffered.copyData(null),
+                        buffered.isAlphaPremultiplied(), null));
+            } else {
+                icon = image;
+            }
+            Callable<byte[]> encoder = new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    ExportMetrics metrics = getMetrics();
+                    long start = metrics == null ? 0L : System.nanoTime();
+                    byte[] bytes = ImageUtil.imageToBytes(icon, "png", Color.white, width, height);
+                    if (metrics != null) {
+                        metrics.imageEncoded(System.nanoTime() - start);
+                    }
+                    return bytes;
+                }
+            };
+            if (imageEncoder == null) {
+                FutureTask<byte[]> task = new FutureTask<>(encoder);
+                task.run();
+                encoded = task;
+            } else {
+                encoded = imageEncoder.submit(encoder);
+            }
+            if (!(source instanceof BufferedImage)) {
+                encodedImages.put(source, encoded);
+            }
+        }
+        if (encoded.isDone()) {
+            writeImage(PendingPictures.get(encoded, "image"), "image/png", width, height, scaleToPage);
+        } else {
+            writePendingImage(encoded, "image/png", width, height, scaleToPage);
+        }
+    }
+
+    /**
+     * Add an image that is still being encoded. Formats that can add the picture data
+     * to the document later override this; by default it waits for the data.
+     *
+     * @see #writeImage(byte[], String, int, int, boolean)
+     */
+    protected void writePendingImage(Future<byte[]> data, String mimeType, int width, int height,
+                                     boolean scaleToPage) throws DocumentExportException {
+        writeImage(PendingPictures.get(data, "image"), mimeType, width, height, scaleToPage);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeImage(Path file, String mimeType, int width, int height, boolean scaleToPage) throws DocumentExportException {
+        byte[] data;
+        try {
+            data = Files.readAllBytes(file);
+        } catch (IOException e) {
+            throw new DocumentExportException("Could not read image " + file, e);
+        }
+        writeImage(data, mimeType, width, height, scaleToPage);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeImage(InputStream in, String mimeType, int width, int height, boolean scaleToPage) throws DocumentExportException {
+        byte[] data;
+        try {
+            data = ImageUtil.readFully(in);
+        } catch (IOException e) {
+            throw new DocumentExportException("Could not read image", e);
+        }
+        writeImage(data, mimeType, width, height, scaleToPage);
+    }
+
+    /**
+     * Wrap the target in a buffer of the configured size. The buffer must be
+     * flushed by the caller, the target is not closed.
+     */
+    protected OutputStream buffered(OutputStream target) {
+        return new BufferedOutputStream(target, bufferSize);
+    }
+
+    private static boolean failed(Future<byte[]> encoded) {
+        if (!encoded.isDone()) {
+            return false;
+        }
+        try {
+            encoded.get();
+            return false;
+        } catch (Exception e) {
+            return true;
+        }
+    }
+
+    /**
+     * Closes the file opened by {@link #startNewFile(File, String, String, String)}, if any. Implementations
+     * call this from their reset(), so a document that is abandoned halfway does not keep the file open.
+     */
+    protected void closeTargetFile() {
+        if (fileStream != null) {
+            try {
+                fileStream.close();
+            } catch (IOException e) {
+                logger.warn("Could not close file", e);
+            }
+            fileStream = null;
+        }
+    }
+
+    /**
+     * Target of the File variants. The file is only opened (and an existing file only truncated) when the
+     * first bytes are written, so formats that buffer the whole document leave it alone until endFile.
+     */
+    private final static class TargetFileStream extends OutputStream {
+
+        private final File file;
+        private FileOutputStream out;
+        private boolean closed;
+
+        TargetFileStream(File file) {
+            this.file = file;
+        }
+
+        private OutputStream open() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (out == null) {
+                out = new FileOutputStream(file);
+            }
+            return out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            open().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            open().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            if (out != null) {
+                out.close();
+            }
+        }
+
+        /**
+         * Closes the stream after a failure and removes what was written of the file.
+         */
+        void discard() {
+            boolean opened = out != null;
+            try {
+                close();
+            } catch (IOException e) {
+                logger.warn("Could not close file", e);
+            }
+            if (opened && !file.delete() && file.exists()) {
+                logger.warn("Could not delete incomplete file " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Future;
+
+/**
+ * Passes the calls to another format on a thread of its own, so the caller only pays for
+ * queueing a call and can gather the next part of the document while the format builds it.
+ * <p>
+ * The calls go through a bounded queue; when it is full the caller waits. An exception of
+ * the format is thrown by the next call, or by endFile. endFileAsync does not wait for the
+ * document to be written, so the next document can be started right away; the format
+ * starts on it when the one before it is done.
+ */
+public class AsyncExportFormat extends QueuedExportFormat {
+
+    /**
+     * Default number of calls that can be queued
+     */
+    public final static int DEFAULT_QUEUE_SIZE = 1024;
+
+    /**
+     * @param format the format that writes the document
+     */
+    public AsyncExportFormat(ExportFormat format) {
+        this(format, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * @param format    the format that writes the document
+     * @param queueSize maximum number of calls queued for the format
+     */
+    public AsyncExportFormat(ExportFormat format, int queueSize) {
+        super(queueSize, format);
+    }
+
+    public ExportFormat getFormat() {
+        return getFormats().get(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void startNewFile(File targetFile, String author, String title, String language) throws IOException {
+        start(new Object[]{targetFile}, author, title, language);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void startNewFile(OutputStream target, String author, String title, String language) throws IOException {
+        start(new Object[]{target}, author, title, language);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void startNewFile(WritableByteChannel target, String author, String title, String language) throws IOException {
+        start(new Object[]{target}, author, title, language);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Waits until the format has written the document.
+     */
+    @Override
+    public void endFile(File targetFile, boolean firstPass) throws IOException {
+        await(endFileAsync(targetFile, firstPass), 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Waits until the format has written the document.
+     */
+    @Override
+    public void endFile(OutputStream target, boolean firstPass) throws IOException {
+        await(endFileAsync(target, firstPass), 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Waits until the format has written the document.
+     */
+    @Override
+    public void endFile(WritableByteChannel target, boolean firstPass) throws IOException {
+        await(endFileAsync(target, firstPass), 0);
+    }
+
+    /**
+     * Complete the document without waiting for the format to write it
+     *
+     * @param targetFile the file passed to startNewFile
+     * @return completes when the file is written; get() throws an ExecutionException with the
+     * exception of the format if it failed
+     */
+    public Future<Void> endFileAsync(File targetFile, boolean firstPass) throws IOException {
+        return finish(new Object[]{targetFile}, firstPass).get(0);
+    }
+
+    /**
+     * Complete the document without waiting for the format to write it. The stream must
+     * not be used until the document is written.
+     *
+     * @param target the stream passed to startNewFile
+     * @return completes when the document is written; get() throws an ExecutionException with
+     * the exception of the format if it failed
+     */
+    public Future<Void> endFileAsync(OutputStream target, boolean firstPass) throws IOException {
+        return finish(new Object[]{target}, firstPass).get(0);
+    }
+
+    /**
+     * Complete the document without waiting for the format to write it. The channel must
+     * not be used until the document is written.
+     *
+     * @param target the channel passed to startNewFile
+     * @return completes when the document is written; get() throws an ExecutionException with
+     * the exception of the format if it failed
+     */
+    public Future<Void> endFileAsync(WritableByteChannel target, boolean firstPass) throws IOException {
+        return finish(new Object[]{target}, firstPass).get(0);
+    }
+}
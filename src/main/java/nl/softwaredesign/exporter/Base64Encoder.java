@@ -0,0 +1,64 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+/**
+ * Base64 encoding (RFC 4648, with padding) for pictures that are included in XML.
+ */
+final class Base64Encoder {
+
+    /**
+     * Number of bytes that is encoded to one block of {@link #BLOCK_CHARS} characters
+     */
+    static final int BLOCK_BYTES = 3 * 1024;
+    static final int BLOCK_CHARS = 4 * 1024;
+
+    private final static char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private Base64Encoder() {
+    }
+
+    /**
+     * Encode bytes to characters. Only the last part of the data may have a length
+     * that is not a multiple of 3; it is padded.
+     *
+     * @return the number of characters written to the destination
+     */
+    static int encode(byte[] data, int offset, int length, char[] destination) {
+        int d = 0;
+        int end = offset + length;
+        int i = offset;
+        for (; i + 2 < end; i += 3) {
+            int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+            destination[d++] = ALPHABET[bits >>> 18];
+            destination[d++] = ALPHABET[(bits >>> 12) & 0x3f];
+            destination[d++] = ALPHABET[(bits >>> 6) & 0x3f];
+            destination[d++] = ALPHABET[bits & 0x3f];
+        }
+        if (i < end) {
+            int bits = (data[i] & 0xff) << 16;
+            if (i + 1 < end) {
+                bits |= (data[i + 1] & 0xff) << 8;
+            }
+            destination[d++] = ALPHABET[bits >>> 18];
+            destination[d++] = ALPHABET[(bits >>> 12) & 0x3f];
+            destination[d++] = i + 1 < end ? ALPHABET[(bits >>> 6) & 0x3f] : '=';
+            destination[d++] = '=';
+        }
+        return d;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many independent export jobs concurrently.
+ * <p>
+ * Each running job gets its own export format. Formats are created with the factory and
+ * reused for later jobs when a job completes normally. The number of submitted jobs that
+ * have not completed yet is bounded: {@link #submit} blocks when the limit is reached, so
+ * a fast producer cannot queue an unbounded amount of work.
+ * <p>
+ * Jobs run on the given executor, which can be a platform thread pool or, on Java 21 and later,
+ * <code>Executors.newVirtualThreadPerTaskExecutor()</code>.
+ */
+public class BatchExporter {
+
+    private final static Logger logger = Logger.getLogger(BatchExporter.class);
+
+    private final ExportFormatFactory factory;
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+    private final int maxPendingJobs;
+    private final Semaphore pending;
+    private final Queue<ExportFormat> idleFormats = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Create a batch exporter with its own pool of platform threads
+     *
+     * @param factory creates the export formats
+     * @param threads number of documents exported at the same time
+     */
+    public BatchExporter(ExportFormatFactory factory, int threads) {
+        this(factory, Executors.newFixedThreadPool(threads), threads * 2, true);
+    }
+
+    /**
+     * @param factory creates the export formats
+     * @param executor runs the jobs
+     * @param maxPendingJobs maximum number of submitted jobs that have not completed yet
+     */
+    public BatchExporter(ExportFormatFactory factory, ExecutorService executor, int maxPendingJobs) {
+        this(factory, executor, maxPendingJobs, false);
+    }
+
+    private BatchExporter(ExportFormatFactory factory, ExecutorService executor, int maxPendingJobs,
+                          boolean ownExecutor) {
+        if (maxPendingJobs < 1) {
+            throw new IllegalArgumentException("maxPendingJobs must be at least 1");
+        }
+        this.factory = factory;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.maxPendingJobs = maxPendingJobs;
+        this.pending = new Semaphore(maxPendingJobs);
+    }
+
+    /**
+     * Submit a job, waiting if too many jobs are pending.
+     *
+     * @param job the job to run
+     * @return the result of the job; get() throws an ExecutionException with the
+     *         IOException or DocumentExportException of a failed job
+     */
+    public Future<ExportResult> submit(final ExportJob job) throws InterruptedException {
+        pending.acquire();
+        final long submitted = System.nanoTime();
+        FutureTask<ExportResult> task = new FutureTask<ExportResult>(new Callable<ExportResult>() {
+            @Override
+            public ExportResult call() throws Exception {
+                return run(job, submitted);
+            }
+        }) {
+            @Override
+            protected void done() {
+                // Also when the job is cancelled before it started and call() never runs
+                pending.release();
+            }
+        };
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            pending.release();
+            throw e;
+        }
+        return task;
+    }
+
+    /**
+     * Submit all jobs, waiting whenever too many jobs are pending.
+     *
+     * @return the results in the order of the jobs
+     */
+    public List<Future<ExportResult>> submitAll(Collection<? extends ExportJob> jobs) throws InterruptedException {
+        List<Future<ExportResult>> results = new ArrayList<>(jobs.size());
+        for (ExportJob job : jobs) {
+            results.add(submit(job));
+        }
+        return results;
+    }
+
+    /**
+     * Wait for the submitted jobs to complete, and shut down the executor if it was
+     * created by this batch exporter.
+     *
+     * @return true if all jobs completed within the timeout
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        boolean completed;
+        if (ownExecutor) {
+            executor.shutdown();
+            completed = executor.awaitTermination(timeout, unit);
+        } else {
+            // All permits are available again when every pending job has completed
+            completed = pending.tryAcquire(maxPendingJobs, timeout, unit);
+            if (completed) {
+                pending.release(maxPendingJobs);
+            }
+        }
+        idleFormats.clear();
+        return completed;
+    }
+
+    private ExportResult run(ExportJob job, long submitted) throws Exception {
+        long started = System.nanoTime();
+        ExportFormat format = idleFormats.poll();
+        if (format == null) {
+            format = factory.create();
+        }
+        job.export(format);
+        // Only formats of jobs that completed normally are reused
+        idleFormats.offer(format);
+        long finished = System.nanoTime();
+        ExportResult result = new ExportResult(job, started - submitted, finished - started);
+        logger.debug(result);
+        return result;
+    }
+}
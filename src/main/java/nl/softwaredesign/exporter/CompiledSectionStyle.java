@@ -0,0 +1,386 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of a {@link SectionStyle}, made when a section starts. The page settings
+ * are resolved for every type of page, and the page geometry and the ODF lengths are computed once.
+ * Snapshots with the same settings are equal, so a format can reuse the page styles of an earlier section.
+ */
+final class CompiledSectionStyle {
+
+    private final static Logger logger = Logger.getLogger(CompiledSectionStyle.class);
+
+    private final Orientation orientation;
+    private final PageSize pageSize;
+    private final int columns;
+    private final float marginLeft;
+    private final float marginTop;
+    private final float marginRight;
+    private final float marginBottom;
+    private final LineSpacing lineSpacing;
+    private final float firstLineIndent;
+    private final float indentSize;
+    private final MultiPageType multiPageType;
+    private final Page[] pages;
+    private final PageKey pageKey;
+    private final int hashCode;
+
+    // Computed from the settings above
+    final boolean portrait;
+    final float pageWidthPoints;
+    final float pageHeightPoints;
+    final float availableWidthPoints;
+    final float availableHeightPoints;
+    final String pageWidth;
+    final String pageHeight;
+    final String marginLeftLength;
+    final String marginTopLength;
+    final String marginRightLength;
+    final String marginBottomLength;
+    final String tableWidth;
+    final String tableColumnWidth;
+
+    private CompiledSectionStyle(SectionStyle style) {
+        orientation = style.getOrientation();
+        pageSize = style.getPageSize();
+        columns = style.getColumns();
+        marginLeft = style.getMarginLeft();
+        marginTop = style.getMarginTop();
+        marginRight = style.getMarginRight();
+        marginBottom = style.getMarginBottom();
+        lineSpacing = style.getLineSpacing();
+        firstLineIndent = style.getFirstLineIndent();
+        indentSize = style.getIndentSize();
+        multiPageType = style.getMultiPageType() == null ? MultiPageType.ALL_EQUAL : style.getMultiPageType();
+        pages = new Page[PageType.values().length];
+        boolean missing = false;
+        for (PageType type : PageType.values()) {
+            PageSettings settings = style.resolveSettings(type);
+            missing |= settings == null;
+            pages[type.ordinal()] = settings == null ? Page.EMPTY : new Page(settings);
+        }
+        if (missing) {
+            logger.warn("Page Settings are empty");
+        }
+
+        portrait = orientation == Orientation.PORTRAIT;
+        float widthInch = portrait ? pageSize.getWidthInch() : pageSize.getHeightInch();
+        float heightInch = portrait ? pageSize.getHeightInch() : pageSize.getWidthInch();
+        pageWidthPoints = widthInch * 72.0f;
+        pageHeightPoints = heightInch * 72.0f;
+        availableWidthPoints = pageWidthPoints - marginLeft - marginRight;
+        availableHeightPoints = pageHeightPoints - marginTop - marginBottom;
+        DecimalFormat format = new DecimalFormat("0.000", DecimalFormatSymbols.getInstance(Locale.US));
+        pageWidth = format.format(widthInch) + "in";
+        pageHeight = format.format(heightInch) + "in";
+        marginLeftLength = format.format(DistanceUnit.IN.fromPoints(marginLeft)) + "in";
+        marginTopLength = format.format(DistanceUnit.IN.fromPoints(marginTop)) + "in";
+        marginRightLength = format.format(DistanceUnit.IN.fromPoints(marginRight)) + "in";
+        marginBottomLength = format.format(DistanceUnit.IN.fromPoints(marginBottom)) + "in";
+        float tableWidthInch = widthInch - DistanceUnit.IN.fromPoints(marginLeft) - DistanceUnit.IN.fromPoints(marginRight);
+        tableWidth = format.format(tableWidthInch) + "in";
+        tableColumnWidth = format.format(tableWidthInch / 3.0f) + "in";
+
+        pageKey = new PageKey(this);
+        hashCode = computeHashCode();
+    }
+
+    /**
+     * @param style the section style; it is not referenced by the snapshot
+     */
+    private static CompiledSectionStyle compile(SectionStyle style) {
+        return new CompiledSectionStyle(style);
+    }
+
+    float getMarginLeft() {
+        return marginLeft;
+    }
+
+    float getMarginTop() {
+        return marginTop;
+    }
+
+    float getMarginRight() {
+        return marginRight;
+    }
+
+    float getMarginBottom() {
+        return marginBottom;
+    }
+
+    int getColumns() {
+        return columns;
+    }
+
+    LineSpacing getLineSpacing() {
+        return lineSpacing;
+    }
+
+    float getFirstLineIndent() {
+        return firstLineIndent;
+    }
+
+    float getIndentSize() {
+        return indentSize;
+    }
+
+    /**
+     * @return the multi page type, ALL_EQUAL if the section style had none
+     */
+    MultiPageType getMultiPageType() {
+        return multiPageType;
+    }
+
+    boolean isDifferentFirst() {
+        return multiPageType == MultiPageType.DIFFERENT_FIRST || multiPageType == MultiPageType.DIFFERENT_FIRST_ODD_AND_EVEN;
+    }
+
+    boolean isOddAndEven() {
+        return multiPageType == MultiPageType.DIFFERENT_ODD_AND_EVEN || multiPageType == MultiPageType.DIFFERENT_FIRST_ODD_AND_EVEN;
+    }
+
+    /**
+     * @return the header and footer of the given type of page, empty if they are not set
+     */
+    Page getPage(PageType type) {
+        return pages[type.ordinal()];
+    }
+
+    /**
+     * @return the value of the settings that end up in the page layout and master page, so sections that
+     * only differ in their paragraph settings can share a master page
+     */
+    PageKey getPageKey() {
+        return pageKey;
+    }
+
+    /**
+     * @return the factor that makes an image of the given size (in points) fit within the margins
+     */
+    float scaleToPage(float width, float height) {
+        return Math.min(availableWidthPoints / width, availableHeightPoints / height);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CompiledSectionStyle)) {
+            return false;
+        }
+        CompiledSectionStyle other = (CompiledSectionStyle) o;
+        return hashCode == other.hashCode
+                && lineSpacing == other.lineSpacing
+                && Float.compare(firstLineIndent, other.firstLineIndent) == 0
+                && Float.compare(indentSize, other.indentSize) == 0
+                && pageKey.equals(other.pageKey);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    private int computeHashCode() {
+        int result = pageKey.hashCode();
+        result = 31 * result + (lineSpacing != null ? lineSpacing.hashCode() : 0);
+        result = 31 * result + Float.floatToIntBits(firstLineIndent);
+        result = 31 * result + Float.floatToIntBits(indentSize);
+        return result;
+    }
+
+    /**
+     * Page geometry, columns and headers and footers of a section style: everything a master page is
+     * made of, and nothing of the paragraph settings
+     */
+    static final class PageKey {
+
+        private final Orientation orientation;
+        private final PageSize pageSize;
+        private final int columns;
+        private final float marginLeft;
+        private final float marginTop;
+        private final float marginRight;
+        private final float marginBottom;
+        private final MultiPageType multiPageType;
+        private final Page[] pages;
+        private final int hashCode;
+
+        private PageKey(CompiledSectionStyle style) {
+            orientation = style.orientation;
+            pageSize = style.pageSize;
+            columns = style.columns;
+            marginLeft = style.marginLeft;
+            marginTop = style.marginTop;
+            marginRight = style.marginRight;
+            marginBottom = style.marginBottom;
+            multiPageType = style.multiPageType;
+            pages = style.pages;
+            hashCode = computeHashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof PageKey)) {
+                return false;
+            }
+            PageKey other = (PageKey) o;
+            return hashCode == other.hashCode
+                    && orientation == other.orientation
+                    && pageSize == other.pageSize
+                    && columns == other.columns
+                    && Float.compare(marginLeft, other.marginLeft) == 0
+                    && Float.compare(marginTop, other.marginTop) == 0
+                    && Float.compare(marginRight, other.marginRight) == 0
+                    && Float.compare(marginBottom, other.marginBottom) == 0
+                    && multiPageType == other.multiPageType
+                    && Arrays.equals(pages, other.pages);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        private int computeHashCode() {
+            int result = orientation != null ? orientation.hashCode() : 0;
+            result = 31 * result + pageSize.hashCode();
+            result = 31 * result + columns;
+            result = 31 * result + Float.floatToIntBits(marginLeft);
+            result = 31 * result + Float.floatToIntBits(marginTop);
+            result = 31 * result + Float.floatToIntBits(marginRight);
+            result = 31 * result + Float.floatToIntBits(marginBottom);
+            result = 31 * result + multiPageType.hashCode();
+            result = 31 * result + Arrays.hashCode(pages);
+            return result;
+        }
+    }
+
+    /**
+     * The snapshots of the section styles a format used last, keyed by the value of the section style.
+     * A section style that is used again, or an equal one, is not compiled again.
+     */
+    static final class Cache {
+
+        private final static int MAX_SIZE = 32;
+
+        private final Map<SectionStyle, CompiledSectionStyle> compiled =
+                new LinkedHashMap<SectionStyle, CompiledSectionStyle>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<SectionStyle, CompiledSectionStyle> eldest) {
+                        return size() > MAX_SIZE;
+                    }
+                };
+
+        /**
+         * @param style the section style; the cache keeps a copy of it, so it may be changed afterwards
+         * @return the snapshot of the section style
+         */
+        CompiledSectionStyle compile(SectionStyle style) {
+            CompiledSectionStyle result = compiled.get(style);
+            if (result == null) {
+                result = CompiledSectionStyle.compile(style);
+                compiled.put(new SectionStyle(style), result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Header and footer of one type of page
+     */
+    static final class Page {
+
+        static final Page EMPTY = new Page(new PageSettings());
+
+        final String headerLeft;
+        final String headerCenter;
+        final String headerRight;
+        final Style headerLeftStyle;
+        final Style headerCenterStyle;
+        final Style headerRightStyle;
+        final boolean lineAboveHeader;
+        final boolean lineBelowHeader;
+        final String footerLeft;
+        final String footerCenter;
+        final String footerRight;
+        final Style footerLeftStyle;
+        final Style footerCenterStyle;
+        final Style footerRightStyle;
+        final boolean lineAboveFooter;
+        final boolean lineBelowFooter;
+        final boolean header;
+        final boolean footer;
+
+        private Page(PageSettings settings) {
+            headerLeft = settings.getHeaderLeft();
+            headerCenter = settings.getHeaderCenter();
+            headerRight = settings.getHeaderRight();
+            headerLeftStyle = copy(settings.getHeaderLeftStyle());
+            headerCenterStyle = copy(settings.getHeaderCenterStyle());
+            headerRightStyle = copy(settings.getHeaderRightStyle());
+            lineAboveHeader = settings.isLineAboveHeader();
+            lineBelowHeader = settings.isLineBelowHeader();
+            footerLeft = settings.getFooterLeft();
+            footerCenter = settings.getFooterCenter();
+            footerRight = settings.getFooterRight();
+            footerLeftStyle = copy(settings.getFooterLeftStyle());
+            footerCenterStyle = copy(settings.getFooterCenterStyle());
+            footerRightStyle = copy(settings.getFooterRightStyle());
+            lineAboveFooter = settings.isLineAboveFooter();
+            lineBelowFooter = settings.isLineBelowFooter();
+            header = StringUtils.isNotEmpty(headerLeft) || StringUtils.isNotEmpty(headerCenter)
+                    || StringUtils.isNotEmpty(headerRight);
+            footer = StringUtils.isNotEmpty(footerLeft) || StringUtils.isNotEmpty(footerCenter)
+                    || StringUtils.isNotEmpty(footerRight);
+        }
+
+        private static Style copy(Style style) {
+            return style == null ? null : new Style(style);
+        }
+
+        private Object[] values() {
+            return new Object[]{headerLeft, headerCenter, headerRight, headerLeftStyle, headerCenterStyle,
+                    headerRightStyle, lineAboveHeader, lineBelowHeader, footerLeft, footerCenter, footerRight,
+                    footerLeftStyle, footerCenterStyle, footerRightStyle, lineAboveFooter, lineBelowFooter};
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || o instanceof Page && Arrays.equals(values(), ((Page) o).values());
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(values());
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * How the entries of a saved package are compressed: the deflate level for the XML files
+ * and whether pictures that are already compressed (PNG, JPEG, GIF) are stored as they are.
+ * The mimetype entry is always stored.
+ */
+public final class CompressionPolicy {
+
+    /**
+     * Default deflate level for XML, compressed pictures are stored
+     */
+    public final static CompressionPolicy DEFAULT = new CompressionPolicy(Deflater.DEFAULT_COMPRESSION, true);
+
+    /**
+     * Fastest deflate level for XML, compressed pictures are stored
+     */
+    public final static CompressionPolicy FAST = new CompressionPolicy(Deflater.BEST_SPEED, true);
+
+    /**
+     * Nothing is compressed: larger files, but no CPU is spent on deflating
+     */
+    public final static CompressionPolicy STORE_ALL = new CompressionPolicy(Deflater.NO_COMPRESSION, true);
+
+    private final static Set<String> COMPRESSED_TYPES = new HashSet<>(Arrays.asList(
+            "png", "jpg", "jpeg", "gif", "zip", "gz"));
+
+    private final int level;
+    private final boolean storeCompressedMedia;
+
+    /**
+     * @param level                the deflate level for XML entries, 0 (store) to 9, or -1 for the default level
+     * @param storeCompressedMedia true to store pictures that are already compressed instead of deflating them again
+     */
+    public CompressionPolicy(int level, boolean storeCompressedMedia) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid deflate level " + level);
+        }
+        this.level = level;
+        this.storeCompressedMedia = storeCompressedMedia;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public boolean isStoreCompressedMedia() {
+        return storeCompressedMedia;
+    }
+
+    /**
+     * @param path the path of the entry in the package
+     * @return true if the entry is stored, false if it is deflated
+     */
+    boolean isStored(String path) {
+        if (level == Deflater.NO_COMPRESSION || "mimetype".equals(path)) {
+            return true;
+        }
+        int dot = path.lastIndexOf('.');
+        return storeCompressedMedia && dot >= 0 && COMPRESSED_TYPES.contains(path.substring(dot + 1).toLowerCase());
+    }
+
+    /**
+     * Create the zip entry for a file of which the size and checksum are known
+     */
+    ZipEntry newEntry(String path, long size, long crc) {
+        ZipEntry entry = new ZipEntry(path);
+        if (isStored(path)) {
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(size);
+            entry.setCompressedSize(size);
+            entry.setCrc(crc);
+        }
+        return entry;
+    }
+
+    /**
+     * Create the zip entry for the given data
+     */
+    ZipEntry newEntry(String path, byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return newEntry(path, data.length, crc.getValue());
+    }
+}
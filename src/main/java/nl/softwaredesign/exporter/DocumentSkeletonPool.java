@@ -0,0 +1,149 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import org.apache.log4j.Logger;
+import org.odftoolkit.simple.TextDocument;
+import org.odftoolkit.simple.meta.Meta;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A bounded pool of empty documents for {@link ODTExportFormat}.
+ * <p>
+ * The document template is loaded and the fixed styles are added only once; the result
+ * is kept as a package in memory (the skeleton). New documents are loaded from the skeleton
+ * and parsed on a background thread, so startNewFile can take a document that is ready to use.
+ * When the pool is empty a document is loaded on the calling thread.
+ */
+public class DocumentSkeletonPool {
+
+    private final static Logger logger = Logger.getLogger(DocumentSkeletonPool.class);
+
+    private final static int DEFAULT_CAPACITY = 4;
+    private static DocumentSkeletonPool defaultPool;
+
+    private final BlockingQueue<TextDocument> documents;
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    private final ExecutorService refiller = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "document-skeleton-pool");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private byte[] skeleton;
+
+    /**
+     * @param capacity the maximum number of prepared documents kept in the pool
+     */
+    public DocumentSkeletonPool(int capacity) {
+        documents = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    }
+
+    /**
+     * @return the pool shared by exporters that are created without a pool
+     */
+    public static synchronized DocumentSkeletonPool getDefault() {
+        if (defaultPool == null) {
+            defaultPool = new DocumentSkeletonPool(DEFAULT_CAPACITY);
+        }
+        return defaultPool;
+    }
+
+    /**
+     * Take a prepared document from the pool, or create one if the pool is empty.
+     * Every document is handed out only once. Its creation date is the time it is handed out,
+     * not the time it was prepared.
+     */
+    public TextDocument acquire() throws IOException {
+        TextDocument document = documents.poll();
+        try {
+            if (document == null) {
+                document = create();
+            }
+            Meta meta = document.getOfficeMetadata();
+            Calendar now = Calendar.getInstance();
+            meta.setCreationDate(now);
+            meta.setDcdate(now);
+            meta.setEditingCycles(1);
+        } catch (Exception e) {
+            throw new IOException("Could not prepare document: " + e.getMessage(), e);
+        }
+        refill();
+        return document;
+    }
+
+    /**
+     * Fill the pool in the background
+     */
+    public void refill() {
+        if (documents.remainingCapacity() > 0 && refilling.compareAndSet(false, true)) {
+            refiller.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (documents.remainingCapacity() > 0) {
+                            documents.offer(create());
+                        }
+                    } catch (Exception e) {
+                        logger.warn("Could not prepare document", e);
+                    } finally {
+                        refilling.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Stop the background thread and release the prepared documents
+     */
+    public void shutdown() {
+        refiller.shutdownNow();
+        documents.clear();
+    }
+
+    private TextDocument create() throws Exception {
+        TextDocument document = TextDocument.loadDocument(new ByteArrayInputStream(getSkeleton()));
+        // Parse now, not when the document is first used
+        document.getContentDom();
+        document.getStylesDom();
+        return document;
+    }
+
+    private synchronized byte[] getSkeleton() throws Exception {
+        if (skeleton == null) {
+            TextDocument document = TextDocument.newTextDocument();
+            ODTExportFormat.addFixedStyles(document.getStylesDom().getAutomaticStyles());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            document.save(out);
+            document.close();
+            skeleton = out.toByteArray();
+        }
+        return skeleton;
+    }
+}
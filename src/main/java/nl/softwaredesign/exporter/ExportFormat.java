@@ -18,6 +18,10 @@ package nl.softwaredesign.exporter;
 import javax.swing.*;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
 
 /**
  * Implementations of this interface are responsible
@@ -26,13 +30,22 @@ import java.io.IOException;
  * To create a document, call:
  * <ol>
  * <li>startNewFile
+ * <li>writeTableOfContents (optional, where the table of contents should be)
  * <li>startSection (for each new section)
  * <li>newParagraph (for each new paragraph in the section)
- * <li>writeText (for all the text to add to the paragraph)
+ * <li>writeText (for all the text to add to the paragraph; text that an item of the table
+ * of contents refers to gets the bookmark id returned by addTOCItem)
  * <li>page break (for all page breaks)
  * <li>endSection
  * <li>endFile
  * </ol>
+ * Styles and paragraph settings that are used often can be registered once with registerStyle
+ * and registerParagraphFormat; the handles they return are passed to writeText and newParagraph
+ * instead of the settings themselves.
+ * <p>
+ * A document can be written to a file, a stream or a channel. The same target must be
+ * passed to startNewFile and endFile; formats may write to it at any time in between.
+ * Streams and channels are not closed by the format.
  */
 public interface ExportFormat {
 
@@ -46,6 +59,26 @@ public interface ExportFormat {
      */
     void startNewFile(File targetFile, String author,String title, String language) throws IOException;
 
+    /**
+     * Start a document that is written to a stream
+     *
+     * @param target stream to write to
+     * @param author author of the project
+     * @param title title of the project
+     * @param language the project language
+     */
+    void startNewFile(OutputStream target, String author, String title, String language) throws IOException;
+
+    /**
+     * Start a document that is written to a channel
+     *
+     * @param target channel to write to
+     * @param author author of the project
+     * @param title title of the project
+     * @param language the project language
+     */
+    void startNewFile(WritableByteChannel target, String author, String title, String language) throws IOException;
+
     /**
      * Close the file
      *
@@ -53,6 +86,20 @@ public interface ExportFormat {
      */
     public void endFile(File targetFile, boolean firstPass) throws IOException;
 
+    /**
+     * Complete the document and flush it to the stream. The stream is not closed.
+     *
+     * @param target the stream passed to startNewFile
+     */
+    void endFile(OutputStream target, boolean firstPass) throws IOException;
+
+    /**
+     * Complete the document and write the rest of it to the channel. The channel is not closed.
+     *
+     * @param target the channel passed to startNewFile
+     */
+    void endFile(WritableByteChannel target, boolean firstPass) throws IOException;
+
     /**
      * Start a new section of the document
      *
@@ -75,6 +122,54 @@ public interface ExportFormat {
      */
     void writeText(String text, Style style, Object bookmarkId, String bookmarkName) throws DocumentExportException;
 
+    /**
+     * Write text to output in a registered style
+     *
+     * @param text  text to add
+     * @param style handle of the style as returned by #registerStyle
+     * @param bookmarkId ID of bookmark as return by #addTOCItem
+     * @param bookmarkName the text of this bookmark (if any)
+     * @see #writeText(String, Style, Object, String)
+     */
+    void writeText(String text, int style, Object bookmarkId, String bookmarkName) throws DocumentExportException;
+
+    /**
+     * Register a style for writeText. A copy of the style is registered, so changing the
+     * style afterwards has no effect. The handle can be used for all documents of this exporter.
+     *
+     * @param style the style to register
+     * @return the handle of the style; registering an equal style again returns the same handle
+     */
+    int registerStyle(Style style);
+
+    /**
+     * Register the settings of a paragraph for newParagraph. The handle can be used for all
+     * documents of this exporter.
+     *
+     * @return the handle of the paragraph format; registering equal settings again returns the same handle
+     * @see #newParagraph(int, Alignment, ListType, float, float, LineSpacing)
+     */
+    int registerParagraphFormat(int indent, Alignment alignment, ListType listType,
+                                float firstLineIndent, float indentSize, LineSpacing spacing);
+
+    /**
+     * Add an item to the table of contents. Items can be added before and after the table
+     * of contents is written, it is completed when the file is closed.
+     *
+     * @param text  text of the item
+     * @param level level of the item: 1 for the top level, 2 for the level below it, etc.
+     * @return the bookmark id to pass to writeText for the text the item refers to
+     */
+    Object addTOCItem(String text, int level) throws DocumentExportException;
+
+    /**
+     * Insert the table of contents at this point. The items are filled in once, in endFile,
+     * so the document is generated in a single pass. A document has at most one table of contents.
+     *
+     * @param title title above the table of contents, or null for none
+     */
+    void writeTableOfContents(String title) throws DocumentExportException;
+
     /**
      * Start a new page in the exported document
      */
@@ -93,6 +188,13 @@ public interface ExportFormat {
     void newParagraph(int indent, Alignment alignment, ListType listType,
                       float firstLineIndent, float indentSize, LineSpacing spacing) throws DocumentExportException;
 
+    /**
+     * Start a new paragraph with registered settings
+     *
+     * @param paragraphFormat handle of the settings as returned by #registerParagraphFormat
+     */
+    void newParagraph(int paragraphFormat) throws DocumentExportException;
+
 
     /**
      * Add a note as annotation at this point in the text
@@ -109,4 +211,27 @@ public interface ExportFormat {
      * @param scaleToPage should the image be scaled to fit the page (constraining proportions)
      */
     void writeImage(ImageIcon image, boolean scaleToPage) throws DocumentExportException;
+
+    /**
+     * Add an image that is already encoded, for example a PNG or JPEG file. The bytes are
+     * stored in the document as they are.
+     * @param data the encoded image
+     * @param mimeType the mime type of the image, for example "image/jpeg"
+     * @param width width of the image in points
+     * @param height height of the image in points
+     * @param scaleToPage should the image be scaled to fit the page (constraining proportions)
+     */
+    void writeImage(byte[] data, String mimeType, int width, int height, boolean scaleToPage) throws DocumentExportException;
+
+    /**
+     * Add an encoded image from a file
+     * @see #writeImage(byte[], String, int, int, boolean)
+     */
+    void writeImage(Path file, String mimeType, int width, int height, boolean scaleToPage) throws DocumentExportException;
+
+    /**
+     * Add an encoded image read from a stream. The stream is read to its end, but not closed.
+     * @see #writeImage(byte[], String, int, int, boolean)
+     */
+    void writeImage(InputStream in, String mimeType, int width, int height, boolean scaleToPage) throws DocumentExportException;
 }
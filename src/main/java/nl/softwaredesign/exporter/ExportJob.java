@@ -0,0 +1,32 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import java.io.IOException;
+
+/**
+ * A document to be exported by the {@link BatchExporter}.
+ */
+public interface ExportJob {
+
+    /**
+     * Write the complete document, from startNewFile to endFile, to the given format.
+     * The format is only used by this job until the method returns.
+     *
+     * @param format the format to write the document to
+     */
+    void export(ExportFormat format) throws IOException, DocumentExportException;
+}
@@ -0,0 +1,63 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+/**
+ * Listener for what an export format does and how long it takes. Register an
+ * implementation with {@link AbstractExportFormat#setMetrics(ExportMetrics)}.
+ * <p>
+ * Images may be encoded on other threads, and one listener may be shared by several
+ * exporters, so implementations must be thread safe. Times are in nanoseconds.
+ */
+public interface ExportMetrics {
+
+    /**
+     * A document was started
+     * @param nanos time spent in startNewFile
+     */
+    void fileStarted(long nanos);
+
+    /**
+     * A document was completed
+     * @param nanos time spent writing the package in endFile
+     */
+    void fileSaved(long nanos);
+
+    /**
+     * @param nanos time spent in startSection
+     */
+    void sectionStarted(long nanos);
+
+    void paragraphWritten();
+
+    void spanWritten();
+
+    /**
+     * A text style was used for the first time in the document
+     */
+    void styleRegistered();
+
+    /**
+     * @param nanos time spent encoding an image
+     */
+    void imageEncoded(long nanos);
+
+    /**
+     * A picture was added to the package
+     * @param bytes size of the picture
+     */
+    void imageStored(long bytes);
+}
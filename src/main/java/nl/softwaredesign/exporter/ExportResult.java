@@ -0,0 +1,58 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The result of an export job run by the {@link BatchExporter}, with its timing.
+ */
+public class ExportResult {
+
+    private final ExportJob job;
+    private final long waitNanos;
+    private final long exportNanos;
+
+    public ExportResult(ExportJob job, long waitNanos, long exportNanos) {
+        this.job = job;
+        this.waitNanos = waitNanos;
+        this.exportNanos = exportNanos;
+    }
+
+    public ExportJob getJob() {
+        return job;
+    }
+
+    /**
+     * @return time between submitting the job and the start of the export
+     */
+    public long getWaitTime(TimeUnit unit) {
+        return unit.convert(waitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return time spent exporting the document
+     */
+    public long getExportTime(TimeUnit unit) {
+        return unit.convert(exportNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "ExportResult " + job + " [wait " + getWaitTime(TimeUnit.MILLISECONDS) +
+                "ms, export " + getExportTime(TimeUnit.MILLISECONDS) + "ms]";
+    }
+}
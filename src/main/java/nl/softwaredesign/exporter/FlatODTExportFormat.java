@@ -0,0 +1,31 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+/**
+ * Format used to create a flat ODT file (<code>.fodt</code>): a single <code>office:document</code>
+ * XML file instead of a zip package. Pictures are included as base64 encoded binary data.
+ * <p>
+ * The output can be processed as XML directly (XSLT, diff), nothing is compressed on writing
+ * or reading. The body is written to a temporary file while the methods are called and copied
+ * after the styles when the file is closed.
+ */
+public class FlatODTExportFormat extends StreamingODTExportFormat {
+
+    public FlatODTExportFormat() {
+        super(true);
+    }
+}
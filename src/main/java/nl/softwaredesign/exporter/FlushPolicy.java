@@ -0,0 +1,65 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+/**
+ * When a format that writes the document while it is generated flushes what it has written,
+ * so a reader (for example a browser) can show the start of the document before it is complete.
+ * A policy that flushes before the end also flushes the head of the document as soon as it is
+ * started. The document is always flushed when it ends.
+ */
+public final class FlushPolicy {
+
+    /**
+     * Flush only when the buffer is full and at the end: the fewest and largest writes
+     */
+    public final static FlushPolicy NEVER = new FlushPolicy(0, false);
+
+    /**
+     * Flush at the start of every section
+     */
+    public final static FlushPolicy EVERY_SECTION = new FlushPolicy(0, true);
+
+    private final int paragraphs;
+    private final boolean sections;
+
+    /**
+     * @param paragraphs flush after this number of paragraphs, 0 to not count paragraphs
+     * @param sections   true to flush at the start of every section
+     */
+    public FlushPolicy(int paragraphs, boolean sections) {
+        if (paragraphs < 0) {
+            throw new IllegalArgumentException("Invalid number of paragraphs " + paragraphs);
+        }
+        this.paragraphs = paragraphs;
+        this.sections = sections;
+    }
+
+    public int getParagraphs() {
+        return paragraphs;
+    }
+
+    public boolean isSections() {
+        return sections;
+    }
+
+    /**
+     * @return true if the policy flushes before the end of the document
+     */
+    boolean isEarly() {
+        return paragraphs > 0 || sections;
+    }
+}
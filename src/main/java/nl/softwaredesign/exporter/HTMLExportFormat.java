@@ -0,0 +1,843 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import java.awt.*;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Format that writes the document as HTML, for example for a preview in a browser.
+ * <p>
+ * The HTML is written to the target while the methods are called; no document model is built.
+ * Every text style and every paragraph layout gets one CSS class. Classes are declared in a
+ * small style element before the paragraph in which they are first used, so the document does
+ * not have to wait for all styles to be known. With a {@link FlushPolicy} the written part is
+ * flushed while the document is generated, so the browser can start rendering it.
+ * <p>
+ * Images are included as data URIs, or written to a directory next to the document
+ * (setImageDirectory). Sections start on a new page when printed; headers, footers and notes
+ * are left out.
+ */
+public class HTMLExportFormat extends AbstractExportFormat {
+
+    private final static Logger logger = Logger.getLogger(HTMLExportFormat.class);
+
+    private final static String CLASS_PREFIX = "sdnl-";
+    private final static String BREAK_CLASS = CLASS_PREFIX + "break";
+    private final static String BASE_STYLES = "p{margin:0 0 0.5em 0}li>p{margin:0}"
+            + "." + BREAK_CLASS + "{break-before:page;page-break-before:always}"
+            + "ul." + CLASS_PREFIX + "none{list-style-type:none}"
+            + "img." + CLASS_PREFIX + "page{max-width:100%;max-height:100vh;width:auto;height:auto}";
+    private final static int MAX_LIST_DEPTH = 10;
+
+    private FlushPolicy flushPolicy = FlushPolicy.NEVER;
+    private File imageDirectory;
+    private String imageUrl;
+
+    private Writer target;
+    private Writer out;
+    private File tocFile;
+    private String tocTitle;
+    private final PictureIndex pictureIndex = new PictureIndex("");
+    private final char[] encoded = new char[Base64Encoder.BLOCK_CHARS];
+
+    private StyleRegistry styles = new StyleRegistry();
+    private HandleCache<StyleRegistry.RegisteredStyle> styleHandles = new HandleCache<>();
+    // Class of every registered style, by index
+    private List<String> styleClasses = new ArrayList<>();
+    // Paragraph class by CSS rule
+    private Map<String, String> paragraphClasses = new HashMap<>();
+    // Paragraph class in the current section, by alignment and indent, and by paragraph format handle
+    private Map<String, String> sectionParagraphClasses = new HashMap<>();
+    private HandleCache<String> paragraphClassHandles = new HandleCache<>();
+    // Rules of classes that are not declared in the document yet, by class
+    private Map<String, String> pendingRules = new LinkedHashMap<>();
+
+    private final CompiledSectionStyle.Cache compiledSectionStyles = new CompiledSectionStyle.Cache();
+    private int sectionCounter = 0;
+    private boolean sectionOpen;
+    private boolean sectionStart;
+    private float indentSizePt;
+    private float firstLineIndentPt;
+    private LineSpacing lineSpacing;
+    private boolean pageBreak;
+    private int paragraphsSinceFlush;
+
+    private boolean paragraphOpen;
+    private boolean runOpen;
+    private StyleRegistry.RegisteredStyle runStyle;
+    private int listDepth;
+    private ListType listType;
+
+    private DecimalFormat numberFormat = new DecimalFormat("0.##", DecimalFormatSymbols.getInstance(Locale.US));
+
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    /**
+     * @param flushPolicy when the document is flushed while it is written, FlushPolicy.NEVER by default
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        if (flushPolicy == null) {
+            throw new IllegalArgumentException("Flush policy is required");
+        }
+        this.flushPolicy = flushPolicy;
+    }
+
+    /**
+     * Write images to files in a directory instead of including them in the document. An image
+     * that is added more than once is written once. The files are named image1, image2, etc.,
+     * so every document needs its own directory.
+     *
+     * @param directory the directory to write the images to, or null to include images in the document
+     * @param url       the URL of the directory for the browser, for example relative to the document
+     */
+    public void setImageDirectory(File directory, String url) {
+        this.imageDirectory = directory;
+        if (directory == null || StringUtils.isEmpty(url)) {
+            this.imageUrl = "";
+        } else {
+            this.imageUrl = url.endsWith("/") ? url : url + "/";
+        }
+    }
+
+    /**
+     * Start a document that is written to a Writer
+     *
+     * @param target writer to write to, it is not closed
+     */
+    public void startNewFile(Writer target, String author, String title, String language) throws IOException {
+        start(target, null, author, title, language);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The HTML is encoded as UTF-8.
+     */
+    @Override
+    public void startNewFile(OutputStream target, String author, String title, String language) throws IOException {
+        start(new BufferedWriter(new OutputStreamWriter(target, StandardCharsets.UTF_8), getBufferSize()),
+                "UTF-8", author, title, language);
+    }
+
+    /**
+     * @param charset the encoding to declare in the document, or null if it is not known
+     */
+    private void start(Writer target, String charset, String author, String title, String language) throws IOException {
+        logger.debug("Start file");
+        ExportMetrics metrics = getMetrics();
+        long start = metrics == null ? 0L : System.nanoTime();
+        reset();
+        this.target = target;
+        out = target;
+        out.write("<!DOCTYPE html>\n<html");
+        if (StringUtils.isNotEmpty(language)) {
+            out.write(" lang=\"");
+            writeEscaped(language);
+            out.write('"');
+        }
+        out.write(">\n<head>\n");
+        if (charset != null) {
+            out.write("<meta charset=\"" + charset + "\">\n");
+        }
+        out.write("<meta name=\"generator\" content=\"CommonDocExporter\">\n");
+        if (StringUtils.isNotEmpty(author)) {
+            out.write("<meta name=\"author\" content=\"");
+            writeEscaped(author);
+            out.write("\">\n");
+        }
+        if (StringUtils.isNotEmpty(title)) {
+            out.write("<title>");
+            writeEscaped(title);
+            out.write("</title>\n");
+        }
+        out.write("<style>" + BASE_STYLES + "</style>\n</head>\n<body>\n");
+        if (flushPolicy.isEarly()) {
+            out.flush();
+        }
+        if (metrics != null) {
+            metrics.fileStarted(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Complete the document and flush the writer. The writer is not closed.
+     *
+     * @param target the writer passed to startNewFile
+     */
+    public void endFile(Writer target, boolean firstPass) throws IOException {
+        logger.debug("End file");
+        ExportMetrics metrics = getMetrics();
+        long start = metrics == null ? 0L : System.nanoTime();
+        try {
+            closeParagraph();
+            closeLists(0);
+            if (tocFile != null) {
+                insertTableOfContents();
+            }
+            closeSection();
+            writePendingRules();
+            out.write("</body>\n</html>\n");
+            out.flush();
+            if (metrics != null) {
+                metrics.fileSaved(System.nanoTime() - start);
+            }
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void endFile(OutputStream target, boolean firstPass) throws IOException {
+        endFile(this.target, firstPass);
+    }
+
+    /**
+     * Write the table of contents and then the content that was written after it
+     */
+    private void insertTableOfContents() throws IOException {
+        out.close();
+        out = target;
+        out.write("<nav class=\"" + CLASS_PREFIX + "toc\">\n");
+        if (tocTitle != null) {
+            out.write("<p class=\"" + CLASS_PREFIX + "toc-title\">");
+            writeEscaped(tocTitle);
+            out.write("</p>\n");
+        }
+        for (TableOfContents.Item item : getTableOfContents().getItems()) {
+            out.write("<p");
+            if (item.level > 1) {
+                out.write(" style=\"margin-left:" + numberFormat.format(1.5f * (item.level - 1)) + "em\"");
+            }
+            out.write("><a href=\"#");
+            writeEscaped(item.bookmark);
+            out.write("\">");
+            writeEscaped(item.text);
+            out.write("</a></p>\n");
+        }
+        out.write("</nav>\n");
+        char[] buffer = new char[8192];
+        try (Reader in = new InputStreamReader(new FileInputStream(tocFile), StandardCharsets.UTF_8)) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    /**
+     * Discard the current document, if any. The exporter can be used for a new document
+     * afterwards; this is also done by startNewFile and endFile.
+     */
+    public void reset() {
+        closeTargetFile();
+        if (out != null && out != target) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                logger.warn("Could not close temporary file", e);
+            }
+        }
+        out = null;
+        target = null;
+        if (tocFile != null && !tocFile.delete()) {
+            tocFile.deleteOnExit();
+        }
+        tocFile = null;
+        tocTitle = null;
+        getTableOfContents().clear();
+        pictureIndex.clear();
+        styles.clear();
+        styleHandles.clear();
+        styleClasses.clear();
+        paragraphClasses.clear();
+        sectionParagraphClasses.clear();
+        paragraphClassHandles.clear();
+        pendingRules.clear();
+        sectionCounter = 0;
+        sectionOpen = false;
+        sectionStart = false;
+        indentSizePt = 0.0f;
+        firstLineIndentPt = 0.0f;
+        lineSpacing = null;
+        pageBreak = false;
+        paragraphsSinceFlush = 0;
+        paragraphOpen = false;
+        runOpen = false;
+        runStyle = null;
+        listDepth = 0;
+        listType = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void startSection(SectionStyle sectionStyle) throws DocumentExportException {
+        logger.debug("start section " + sectionStyle);
+        ExportMetrics metrics = getMetrics();
+        long start = metrics == null ? 0L : System.nanoTime();
+        CompiledSectionStyle compiled = compiledSectionStyles.compile(sectionStyle);
+        try {
+            closeParagraph();
+            closeLists(0);
+            closeSection();
+            sectionCounter++;
+            out.write("<section");
+            if (sectionCounter > 1) {
+                out.write(" class=\"" + BREAK_CLASS + "\"");
+            }
+            if (compiled.getColumns() > 1) {
+                out.write(" style=\"column-count:" + compiled.getColumns() + "\"");
+            }
+            out.write(">\n");
+            sectionOpen = true;
+            if (flushPolicy.isSections()) {
+                flush();
+            }
+        } catch (IOException e) {
+            throw new DocumentExportException("Could not start section", e);
+        }
+        sectionStart = true;
+        sectionParagraphClasses.clear();
+        paragraphClassHandles.clear();
+        indentSizePt = compiled.getIndentSize();
+        firstLineIndentPt = compiled.getFirstLineIndent();
+        lineSpacing = compiled.getLineSpacing();
+        pageBreak = false;
+        if (metrics != null) {
+            metrics.sectionStarted(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void endSection() throws DocumentExportException {
+    }
+
+    private void closeSection() throws IOException {
+        if (sectionOpen) {
+            out.write("</section>\n");
+            sectionOpen = false;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeText(String text, Style style, Object bookmarkId, String bookmarkName) throws DocumentExportException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Write " + style + ":" + text);
+        }
+        if (StringUtils.isEmpty(text)) {
+            return;
+        }
+        appendText(text, getOrCreateStyle(style), bookmarkId);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeText(String text, int style, Object bookmarkId, String bookmarkName) throws DocumentExportException {
+        if (StringUtils.isEmpty(text)) {
+            return;
+        }
+        StyleRegistry.RegisteredStyle textStyle = styleHandles.get(style);
+        if (textStyle == null) {
+            textStyle = getOrCreateStyle(getRegisteredStyle(style));
+            styleHandles.put(style, textStyle);
+        }
+        appendText(text, textStyle, bookmarkId);
+    }
+
+    private void appendText(String text, StyleRegistry.RegisteredStyle textStyle, Object bookmarkId) throws DocumentExportException {
+        if (!paragraphOpen) {
+            newParagraph(0, Alignment.LEFT, null, 0.0f, 0.0f, LineSpacing.SINGLE);
+        }
+        try {
+            if (runOpen && textStyle == runStyle && bookmarkId == null && isCoalesceText()) {
+                // Same style as the text before it, continue the span
+                writeEscaped(text);
+                return;
+            }
+            closeRun();
+            ExportMetrics metrics = getMetrics();
+            if (metrics != null) {
+                metrics.spanWritten();
+            }
+            if (bookmarkId != null) {
+                out.write("<a id=\"");
+                writeEscaped(bookmarkId.toString());
+                out.write("\"></a>");
+            }
+            if (textStyle != null) {
+                out.write("<span");
+                writeClass(styleClasses.get(textStyle.index), null);
+                out.write('>');
+            }
+            writeEscaped(text);
+            runOpen = true;
+            runStyle = textStyle;
+        } catch (IOException e) {
+            throw new DocumentExportException("Could not write text", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The content after the table of contents is kept in a temporary file until endFile has
+     * written the table, so it is not flushed before the end. The items link to their bookmarks.
+     */
+    @Override
+    public void writeTableOfContents(String title) throws DocumentExportException {
+        logger.debug("Table of contents");
+        if (tocFile != null) {
+            throw new DocumentExportException("The document already has a table of contents");
+        }
+        try {
+            closeParagraph();
+            closeLists(0);
+            flush();
+            tocFile = File.createTempFile("sdnl-content", ".html");
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tocFile), StandardCharsets.UTF_8));
+            tocTitle = title;
+        } catch (IOException e) {
+            throw new DocumentExportException("Could not add table of contents", e);
+        }
+    }
+
+    /**
+     * A page break does not start a new section: the next paragraph starts on a new page
+     * when the document is printed.
+     */
+    @Override
+    public void writePageBreak() throws DocumentExportException {
+        if (!sectionStart) {
+            pageBreak = true;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void newParagraph(int indent, Alignment alignment, ListType listType,
+                             float firstLineIndent, float indentSize, LineSpacing spacing) throws DocumentExportException {
+        startParagraph(indent, alignment, listType, -1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void newParagraph(int paragraphFormat) throws DocumentExportException {
+        ParagraphFormat format = getParagraphFormat(paragraphFormat);
+        startParagraph(format.indent, format.alignment, format.listType, paragraphFormat);
+    }
+
+    private void startParagraph(int indent, Alignment alignment, ListType listType, int handle) throws DocumentExportException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("New paragraph " + indent + ":" + alignment + ":" + listType);
+        }
+        ExportMetrics metrics = getMetrics();
+        if (metrics != null) {
+            metrics.paragraphWritten();
+        }
+        try {
+            closeParagraph();
+            // The list indents its items
+            String className = paragraphClassFor(listType == null ? indent : 0, alignment, handle);
+            if (listType == null || listType != this.listType) {
+                closeLists(0);
+            }
+            writePendingRules();
+            if (listType != null) {
+                openListItem(Math.min(MAX_LIST_DEPTH, Math.max(1, indent)), listType);
+            }
+            if (flushPolicy.getParagraphs() > 0 && ++paragraphsSinceFlush >= flushPolicy.getParagraphs()) {
+                flush();
+            }
+            out.write("<p");
+            writeClass(className, pageBreak ? BREAK_CLASS : null);
+            out.write('>');
+            paragraphOpen = true;
+            sectionStart = false;
+            pageBreak = false;
+        } catch (IOException e) {
+            throw new DocumentExportException("Could not write paragraph", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addNote(String title, String body, String author, String authorInitials) throws DocumentExportException {
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The image is included as a data URI, or written to the image directory if there is one.
+     * An image that is scaled to the page fits the width of the window.
+     */
+    @Override
+    public void writeImage(byte[] data, String mimeType, int width, int height, boolean scaleToPage) throws DocumentExportException {
+        if (scaleToPage) {
+            logger.debug("Add scaled image " + mimeType);
+        } else {
+            logger.debug("Add image " + mimeType);
+        }
+        if (!paragraphOpen) {
+            newParagraph(0, Alignment.CENTER, null, 0.0f, 0.0f, LineSpacing.SINGLE);
+        }
+        try {
+            String path = imageDirectory == null ? null : storeImage(data, mimeType);
+            closeRun();
+            out.write("<img src=\"");
+            if (path == null) {
+                out.write("data:");
+                writeEscaped(mimeType);
+                out.write(";base64,");
+                for (int offset = 0; offset < data.length; offset += Base64Encoder.BLOCK_BYTES) {
+                    int length = Math.min(Base64Encoder.BLOCK_BYTES, data.length - offset);
+                    out.write(encoded, 0, Base64Encoder.encode(data, offset, length, encoded));
+                }
+                ExportMetrics metrics = getMetrics();
+                if (metrics != null) {
+                    metrics.imageStored(data.length);
+                }
+            } else {
+                writeEscaped(imageUrl + path);
+            }
+            out.write("\" alt=\"\"");
+            if (scaleToPage) {
+                // The size gives the aspect ratio, the class makes the image fit
+                out.write(" class=\"" + CLASS_PREFIX + "page\" width=\"" + width + "\" height=\"" + height + "\">");
+            } else {
+                out.write(" style=\"width:" + width + "pt;height:" + height + "pt\">");
+            }
+        } catch (IOException e) {
+            throw new DocumentExportException("Could not write image", e);
+        }
+    }
+
+    /**
+     * Write the image to the image directory, unless it is there already
+     *
+     * @return the file name of the image
+     */
+    private String storeImage(byte[] data, String mimeType) throws IOException {
+        String key = pictureIndex.keyOf(data, mimeType);
+        String path = pictureIndex.find(key);
+        if (path == null) {
+            path = pictureIndex.add(key, mimeType);
+            try (OutputStream file = new FileOutputStream(new File(imageDirectory, path))) {
+                file.write(data);
+            }
+            ExportMetrics metrics = getMetrics();
+            if (metrics != null) {
+                metrics.imageStored(data.length);
+            }
+        }
+        return path;
+    }
+
+    private void closeParagraph() throws IOException {
+        closeRun();
+        if (paragraphOpen) {
+            out.write("</p>\n");
+            paragraphOpen = false;
+        }
+    }
+
+    /**
+     * Close the span that writeText left open for text in the same style
+     */
+    private void closeRun() throws IOException {
+        if (runOpen) {
+            if (runStyle != null) {
+                out.write("</span>");
+            }
+            runOpen = false;
+            runStyle = null;
+        }
+    }
+
+    /**
+     * Close open lists until the given depth is reached
+     */
+    private void closeLists(int depth) throws IOException {
+        while (listDepth > depth) {
+            out.write("</li>");
+            out.write(listType == ListType.NUMBER || listType == ListType.LETTER
+                    || listType == ListType.CAPITAL_LETTER ? "</ol>\n" : "</ul>\n");
+            listDepth--;
+        }
+    }
+
+    /**
+     * Start a new list item at the given depth, opening or closing (nested) lists as needed
+     */
+    private void openListItem(int depth, ListType type) throws IOException {
+        if (listDepth > 0 && type != listType) {
+            closeLists(0);
+        }
+        if (listDepth >= depth) {
+            closeLists(depth);
+            out.write("</li>\n<li>");
+        }
+        listType = type;
+        while (listDepth < depth) {
+            switch (type) {
+                case NUMBER:
+                    out.write("<ol>\n<li>");
+                    break;
+                case LETTER:
+                    out.write("<ol type=\"a\">\n<li>");
+                    break;
+                case CAPITAL_LETTER:
+                    out.write("<ol type=\"A\">\n<li>");
+                    break;
+                case NONE:
+                    out.write("<ul class=\"" + CLASS_PREFIX + "none\">\n<li>");
+                    break;
+                default:
+                    out.write("<ul>\n<li>");
+            }
+            listDepth++;
+        }
+    }
+
+    private StyleRegistry.RegisteredStyle getOrCreateStyle(Style style) {
+        if (style == null) {
+            return null;
+        }
+        StyleRegistry.RegisteredStyle found = styles.find(style);
+        if (found == null) {
+            found = styles.register(style);
+            String className = CLASS_PREFIX + "s" + (found.index + 1);
+            styleClasses.add(className);
+            pendingRules.put(className, styleRule(style));
+            ExportMetrics metrics = getMetrics();
+            if (metrics != null) {
+                metrics.styleRegistered();
+            }
+        }
+        return found;
+    }
+
+    private String styleRule(Style style) {
+        StringBuilder rule = new StringBuilder();
+        if (style.isBold()) {
+            rule.append("font-weight:bold;");
+        }
+        if (style.isItalic()) {
+            rule.append("font-style:italic;");
+        }
+        if (style.isUnderline()) {
+            rule.append("text-decoration:underline;");
+        }
+        if (StringUtils.isNotEmpty(style.getFontName())) {
+            rule.append("font-family:'").append(cssString(style.getFontName())).append("';");
+        }
+        if (style.getFontSize() != null && style.getFontSize() > 0) {
+            rule.append("font-size:").append(style.getFontSize()).append("pt;");
+        }
+        if (style.getColor() != null) {
+            rule.append("color:#").append(ODTExportFormat.rgbHexValue(new Color(style.getColor()))).append(';');
+        }
+        return rule.toString();
+    }
+
+    /**
+     * @param handle the paragraph format handle the class is for, or -1 if there is none
+     * @return the class of the paragraph, empty if it needs none
+     */
+    private String paragraphClassFor(int indent, Alignment alignment, int handle) {
+        if (handle < 0) {
+            return getOrCreateParagraphClass(indent, alignment);
+        }
+        String className = paragraphClassHandles.get(handle);
+        if (className == null) {
+            className = getOrCreateParagraphClass(indent, alignment);
+            paragraphClassHandles.put(handle, className);
+        }
+        return className;
+    }
+
+    private String getOrCreateParagraphClass(int indent, Alignment alignment) {
+        String key = "" + alignment + indent;
+        String className = sectionParagraphClasses.get(key);
+        if (className != null) {
+            return className;
+        }
+        StringBuilder rule = new StringBuilder();
+        if (indent > 0 && indentSizePt > 0) {
+            rule.append("margin-left:").append(numberFormat.format(indent * indentSizePt)).append("pt;");
+        }
+        if (firstLineIndentPt > 0) {
+            rule.append("text-indent:").append(numberFormat.format(firstLineIndentPt)).append("pt;");
+        }
+        if (lineSpacing != null && lineSpacing != LineSpacing.SINGLE) {
+            rule.append("line-height:").append(lineSpacing.getPercentage()).append("%;");
+        }
+        if (alignment != null && alignment != Alignment.LEFT) {
+            rule.append("text-align:").append(alignment.name().toLowerCase()).append(';');
+        }
+        if (rule.length() == 0) {
+            className = "";
+        } else {
+            // Sections with the same settings share the classes
+            className = paragraphClasses.get(rule.toString());
+            if (className == null) {
+                className = CLASS_PREFIX + "p" + (paragraphClasses.size() + 1);
+                paragraphClasses.put(rule.toString(), className);
+                pendingRules.put(className, rule.toString());
+            }
+        }
+        sectionParagraphClasses.put(key, className);
+        return className;
+    }
+
+    /**
+     * Declare the classes that were created since the last time. A style element is not allowed
+     * in a paragraph or a list, so there the rules stay pending and writeClass sets them inline.
+     */
+    private void writePendingRules() throws IOException {
+        if (!pendingRules.isEmpty() && !paragraphOpen && listDepth == 0) {
+            out.write("<style>");
+            for (Map.Entry<String, String> rule : pendingRules.entrySet()) {
+                out.write('.');
+                out.write(rule.getKey());
+                out.write('{');
+                out.write(rule.getValue());
+                out.write('}');
+            }
+            out.write("</style>\n");
+            pendingRules.clear();
+        }
+    }
+
+    /**
+     * Write the class attribute for a class, if any, with its rule as the style attribute
+     * when the class is not declared yet
+     *
+     * @param otherClass a declared class to add, or null
+     */
+    private void writeClass(String className, String otherClass) throws IOException {
+        if (className.isEmpty() && otherClass == null) {
+            return;
+        }
+        out.write(" class=\"");
+        out.write(className);
+        if (otherClass != null) {
+            out.write(className.isEmpty() ? otherClass : " " + otherClass);
+        }
+        out.write('"');
+        String rule = pendingRules.get(className);
+        if (rule != null) {
+            out.write(" style=\"");
+            writeEscaped(rule);
+            out.write('"');
+        }
+    }
+
+    /**
+     * Send what is written so far to the target, with the classes it uses
+     */
+    private void flush() throws IOException {
+        writePendingRules();
+        out.flush();
+        paragraphsSinceFlush = 0;
+    }
+
+    /**
+     * Write text, escaping the characters that have a meaning in HTML. Runs of characters
+     * that need no escaping are written at once.
+     */
+    private void writeEscaped(String text) throws IOException {
+        int run = 0;
+        for (int i = 0; i < text.length(); i++) {
+            String entity;
+            switch (text.charAt(i)) {
+                case '&':
+                    entity = "&amp;";
+                    break;
+                case '<':
+                    entity = "&lt;";
+                    break;
+                case '>':
+                    entity = "&gt;";
+                    break;
+                case '"':
+                    entity = "&quot;";
+                    break;
+                default:
+                    continue;
+            }
+            out.write(text, run, i - run);
+            out.write(entity);
+            run = i + 1;
+        }
+        out.write(text, run, text.length() - run);
+    }
+
+    /**
+     * @return the text without the characters that would end a CSS string or the style element
+     */
+    private static String cssString(String text) {
+        StringBuilder result = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != '\'' && c != '\\' && c != '<' && c != '\n') {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+}
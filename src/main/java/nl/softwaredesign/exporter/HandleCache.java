@@ -0,0 +1,48 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import java.util.Arrays;
+
+/**
+ * What a format has created for the style and paragraph format handles of a document,
+ * indexed by handle, so writing with a handle does not have to look the style up again.
+ *
+ * @param <T> what the format creates for a handle
+ */
+final class HandleCache<T> {
+
+    private Object[] values = new Object[16];
+
+    /**
+     * @return the value for the handle, or null if there is none (yet) or the handle is not valid
+     */
+    @SuppressWarnings("unchecked")
+    T get(int handle) {
+        return handle >= 0 && handle < values.length ? (T) values[handle] : null;
+    }
+
+    void put(int handle, T value) {
+        if (handle >= values.length) {
+            values = Arrays.copyOf(values, Math.max(handle + 1, values.length * 2));
+        }
+        values[handle] = value;
+    }
+
+    void clear() {
+        Arrays.fill(values, null);
+    }
+}
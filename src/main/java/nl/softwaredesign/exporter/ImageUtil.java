@@ -0,0 +1,156 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import org.w3c.dom.Element;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.ImageObserver;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Image helpers shared by the export formats.
+ */
+final class ImageUtil {
+
+    private final static Map<String, String> extensions = new HashMap<>();
+
+    static {
+        extensions.put("image/png", "png");
+        extensions.put("image/jpeg", "jpg");
+        extensions.put("image/jpg", "jpg");
+        extensions.put("image/gif", "gif");
+        extensions.put("image/bmp", "bmp");
+        extensions.put("image/tiff", "tif");
+        extensions.put("image/svg+xml", "svg");
+    }
+
+    private ImageUtil() {
+    }
+
+    /**
+     * Extract the content data (bytes) from the given image.
+     * @param icon image to get bytes for
+     * @param format desired format for image
+     * @param background Color to use as background if transparency in image
+     * @param width Desired width of the image in the byte array
+     * @param height Desired width of the image in the byte array
+     * @return the bytes of the image
+     * @throws IOException
+     */
+    static byte[] imageToBytes(ImageIcon icon, String format, Color background, int width, int height) throws IOException {
+        Iterator writers = ImageIO.getImageWritersByFormatName(format);
+        ImageWriter writer = (ImageWriter)writers.next();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageOutputStream ios = ImageIO.createImageOutputStream(output);
+        writer.setOutput(ios);
+        BufferedImage img;
+        if("png".equalsIgnoreCase(format) || "gif".equalsIgnoreCase(format)){
+            img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        } else {
+            img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+        WaitingObserver observer = new WaitingObserver();
+        if(!img.getGraphics().drawImage(icon.getImage(), 0, 0, width,height, background, observer)) {
+            try {
+                observer.waitForDone();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new byte[0];
+            }
+        }
+        IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(img), writer.getDefaultWriteParam());
+        if(format.equalsIgnoreCase("jpg")) {
+            Element tree = (Element)metadata.getAsTree("javax_imageio_jpeg_image_1.0");
+            Element jfif = (Element)tree.getElementsByTagName("app0JFIF").item(0);
+            jfif.setAttribute("Xdensity", Integer.toString(72));
+            jfif.setAttribute("Ydensity", Integer.toString(72));
+            jfif.setAttribute("resUnits", "1");
+            metadata.setFromTree("javax_imageio_jpeg_image_1.0", tree);
+        } else {
+            double dotsPerMilli = 7.2 / 2.54;
+            IIOMetadataNode horiz = new IIOMetadataNode("HorizontalPixelSize");
+            horiz.setAttribute("value", Double.toString(dotsPerMilli));
+            IIOMetadataNode vert = new IIOMetadataNode("VerticalPixelSize");
+            vert.setAttribute("value", Double.toString(dotsPerMilli));
+            IIOMetadataNode dim = new IIOMetadataNode("Dimension");
+            dim.appendChild(horiz);
+            dim.appendChild(vert);
+            IIOMetadataNode root = new IIOMetadataNode("javax_imageio_1.0");
+            root.appendChild(dim);
+            metadata.mergeTree("javax_imageio_1.0", root);
+        }
+
+        writer.write(null, new IIOImage(img,null,metadata),null);
+        return output.toByteArray();
+    }
+
+    /**
+     * @return the file extension for pictures of the given mime type
+     */
+    static String extensionFor(String mimeType) {
+        String extension = mimeType == null ? null : extensions.get(mimeType.toLowerCase(Locale.ENGLISH));
+        return extension == null ? "bin" : extension;
+    }
+
+    /**
+     * Read the stream to its end. The stream is not closed.
+     */
+    static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static class WaitingObserver implements ImageObserver {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        public void waitForDone() throws InterruptedException {
+            latch.await();
+        }
+
+        @Override
+        public boolean imageUpdate(Image img, int infoflags, int x, int y, int width, int height) {
+            // Also stop waiting when loading fails, the image is then drawn as far as it got
+            if ((infoflags & (ALLBITS|FRAMEBITS|ABORT|ERROR)) != 0) {
+                latch.countDown();
+                return false;
+            }
+            return true;
+        }
+    }
+}
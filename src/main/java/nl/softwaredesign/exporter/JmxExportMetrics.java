@@ -0,0 +1,340 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Export metrics that are collected in memory and published as a JMX MBean.
+ * One instance can be shared by all exporters of an application.
+ */
+public class JmxExportMetrics implements ExportMetrics, JmxExportMetricsMBean {
+
+    /**
+     * Default name the metrics are registered under
+     */
+    public final static String DEFAULT_NAME = "nl.softwaredesign.exporter:type=ExportMetrics";
+
+    private final AtomicLong documents = new AtomicLong();
+    private final AtomicLong sections = new AtomicLong();
+    private final AtomicLong paragraphs = new AtomicLong();
+    private final AtomicLong spans = new AtomicLong();
+    private final AtomicLong styles = new AtomicLong();
+    private final AtomicLong images = new AtomicLong();
+    private final AtomicLong imageBytes = new AtomicLong();
+    private final TimingHistogram startNewFile = new TimingHistogram();
+    private final TimingHistogram startSection = new TimingHistogram();
+    private final TimingHistogram imageEncoding = new TimingHistogram();
+    private final TimingHistogram save = new TimingHistogram();
+
+    private ObjectName registeredName;
+
+    /**
+     * Register with the platform MBean server under {@link #DEFAULT_NAME}
+     */
+    public void register() throws JMException {
+        register(new ObjectName(DEFAULT_NAME));
+    }
+
+    /**
+     * Register with the platform MBean server. An MBean that is already registered
+     * under the same name is replaced.
+     */
+    public synchronized void register(ObjectName name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, name);
+        } catch (InstanceAlreadyExistsException e) {
+            server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        }
+        registeredName = name;
+    }
+
+    /**
+     * Remove the MBean from the platform MBean server
+     */
+    public synchronized void unregister() throws JMException {
+        if (registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            } catch (InstanceNotFoundException e) {
+                // Already removed
+            }
+            registeredName = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void fileStarted(long nanos) {
+        documents.incrementAndGet();
+        startNewFile.record(nanos);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void fileSaved(long nanos) {
+        save.record(nanos);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sectionStarted(long nanos) {
+        sections.incrementAndGet();
+        startSection.record(nanos);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void paragraphWritten() {
+        paragraphs.incrementAndGet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void spanWritten() {
+        spans.incrementAndGet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void styleRegistered() {
+        styles.incrementAndGet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void imageEncoded(long nanos) {
+        imageEncoding.record(nanos);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void imageStored(long bytes) {
+        images.incrementAndGet();
+        imageBytes.addAndGet(bytes);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getDocuments() {
+        return documents.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSections() {
+        return sections.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getParagraphs() {
+        return paragraphs.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSpans() {
+        return spans.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getStyles() {
+        return styles.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getImages() {
+        return images.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getImageBytes() {
+        return imageBytes.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getStartNewFileMean() {
+        return startNewFile.getMean(TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getStartNewFile99thPercentile() {
+        return startNewFile.getPercentile(99.0, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getStartNewFileMax() {
+        return startNewFile.getMax(TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getStartSectionMean() {
+        return startSection.getMean(TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getStartSection99thPercentile() {
+        return startSection.getPercentile(99.0, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getStartSectionMax() {
+        return startSection.getMax(TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getImagesEncoded() {
+        return imageEncoding.getCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getImageEncodingMean() {
+        return imageEncoding.getMean(TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getImageEncoding99thPercentile() {
+        return imageEncoding.getPercentile(99.0, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getImageEncodingMax() {
+        return imageEncoding.getMax(TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getDocumentsSaved() {
+        return save.getCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getSaveMean() {
+        return save.getMean(TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getSave99thPercentile() {
+        return save.getPercentile(99.0, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getSaveMax() {
+        return save.getMax(TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reset() {
+        documents.set(0);
+        sections.set(0);
+        paragraphs.set(0);
+        spans.set(0);
+        styles.set(0);
+        images.set(0);
+        imageBytes.set(0);
+        startNewFile.reset();
+        startSection.reset();
+        imageEncoding.reset();
+        save.reset();
+    }
+}
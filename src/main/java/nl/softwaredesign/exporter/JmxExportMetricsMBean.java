@@ -0,0 +1,69 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+/**
+ * Management interface of {@link JmxExportMetrics}. Times are in microseconds.
+ */
+public interface JmxExportMetricsMBean {
+
+    long getDocuments();
+
+    long getSections();
+
+    long getParagraphs();
+
+    long getSpans();
+
+    long getStyles();
+
+    long getImages();
+
+    long getImageBytes();
+
+    double getStartNewFileMean();
+
+    double getStartNewFile99thPercentile();
+
+    double getStartNewFileMax();
+
+    double getStartSectionMean();
+
+    double getStartSection99thPercentile();
+
+    double getStartSectionMax();
+
+    long getImagesEncoded();
+
+    double getImageEncodingMean();
+
+    double getImageEncoding99thPercentile();
+
+    double getImageEncodingMax();
+
+    long getDocumentsSaved();
+
+    double getSaveMean();
+
+    double getSave99thPercentile();
+
+    double getSaveMax();
+
+    /**
+     * Set all counters and timings back to zero
+     */
+    void reset();
+}
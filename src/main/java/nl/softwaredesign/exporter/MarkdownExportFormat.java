@@ -0,0 +1,433 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import org.apache.log4j.Logger;
+
+import javax.swing.*;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Format that writes the text of a document as Markdown or as plain text.
+ * <p>
+ * The text is written to the target while the methods are called; no document model is built.
+ * Lists get Markdown list markers, bold and italic text is emphasized (Markdown only), and
+ * sections and page breaks are written as separators. Images, notes, headers and footers
+ * are left out.
+ */
+public class MarkdownExportFormat extends AbstractExportFormat {
+
+    private final static Logger logger = Logger.getLogger(MarkdownExportFormat.class);
+
+    private final static int MAX_LIST_DEPTH = 10;
+    private final static String MARKDOWN_SEPARATOR = "\n---\n\n";
+    private final static String PLAIN_SEPARATOR = "\f\n";
+    private final static String LIST_INDENT = "    ";
+
+    private final boolean markdown;
+
+    private Writer out;
+    private boolean contentWritten;
+    private boolean separatorPending;
+    private boolean paragraphOpen;
+    private boolean lineStart;
+    // Only digits were written since the start of the line, so a '.' or ')' would make it an ordered list
+    private boolean leadingDigits;
+    private boolean bold;
+    private boolean italic;
+    // White space at the end of emphasized text, written when more text in the same style follows
+    private final StringBuilder heldSpace = new StringBuilder();
+    private int listDepth;
+    private final ListType[] listTypes = new ListType[MAX_LIST_DEPTH];
+    private final int[] listCounters = new int[MAX_LIST_DEPTH];
+
+    /**
+     * Create a format that writes Markdown
+     */
+    public MarkdownExportFormat() {
+        this(true);
+    }
+
+    /**
+     * @param markdown true to write Markdown, false to write plain text
+     */
+    public MarkdownExportFormat(boolean markdown) {
+        this.markdown = markdown;
+    }
+
+    /**
+     * Start a document that is written to a Writer
+     *
+     * @param target writer to write to, it is not closed
+     */
+    public void startNewFile(Writer target, String author, String title, String language) throws IOException {
+        logger.debug("Start file");
+        ExportMetrics metrics = getMetrics();
+        long start = metrics == null ? 0L : System.nanoTime();
+        reset();
+        out = target;
+        if (metrics != null) {
+            metrics.fileStarted(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The text is encoded as UTF-8.
+     */
+    @Override
+    public void startNewFile(OutputStream target, String author, String title, String language) throws IOException {
+        startNewFile(new BufferedWriter(new OutputStreamWriter(target, StandardCharsets.UTF_8), getBufferSize()),
+                author, title, language);
+    }
+
+    /**
+     * Complete the document and flush the writer. The writer is not closed.
+     *
+     * @param target the writer passed to startNewFile
+     */
+    public void endFile(Writer target, boolean firstPass) throws IOException {
+        logger.debug("End file");
+        ExportMetrics metrics = getMetrics();
+        long start = metrics == null ? 0L : System.nanoTime();
+        try {
+            endParagraph();
+            out.flush();
+            if (metrics != null) {
+                metrics.fileSaved(System.nanoTime() - start);
+            }
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void endFile(OutputStream target, boolean firstPass) throws IOException {
+        endFile(out, firstPass);
+    }
+
+    /**
+     * Discard the current document, if any. The exporter can be used for a new document
+     * afterwards; this is also done by startNewFile and endFile.
+     */
+    public void reset() {
+        closeTargetFile();
+        out = null;
+        contentWritten = false;
+        separatorPending = false;
+        paragraphOpen = false;
+        lineStart = false;
+        leadingDigits = false;
+        bold = false;
+        italic = false;
+        heldSpace.setLength(0);
+        listDepth = 0;
+        Arrays.fill(listTypes, null);
+        Arrays.fill(listCounters, 0);
+        getTableOfContents().clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void startSection(SectionStyle sectionStyle) throws DocumentExportException {
+        logger.debug("start section " + sectionStyle);
+        ExportMetrics metrics = getMetrics();
+        long start = metrics == null ? 0L : System.nanoTime();
+        separator();
+        if (metrics != null) {
+            metrics.sectionStarted(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void endSection() throws DocumentExportException {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writePageBreak() throws DocumentExportException {
+        separator();
+    }
+
+    private void separator() throws DocumentExportException {
+        try {
+            endParagraph();
+        } catch (IOException e) {
+            throw new DocumentExportException("Could not write text", e);
+        }
+        // Only between content, and only once for a page break followed by a new section
+        separatorPending = contentWritten;
+        listDepth = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void newParagraph(int indent, Alignment alignment, ListType listType,
+                             float firstLineIndent, float indentSize, LineSpacing spacing) throws DocumentExportException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("New paragraph " + indent + ":" + alignment + ":" + listType);
+        }
+        ExportMetrics metrics = getMetrics();
+        if (metrics != null) {
+            metrics.paragraphWritten();
+        }
+        boolean listItem = listType != null && listType != ListType.NONE;
+        try {
+            endParagraph();
+            if (separatorPending) {
+                out.write(markdown ? MARKDOWN_SEPARATOR : PLAIN_SEPARATOR);
+                separatorPending = false;
+            } else if (contentWritten && !(listItem && listDepth > 0)) {
+                // Blank line between paragraphs, not between the items of a list
+                out.write('\n');
+            }
+            if (listItem) {
+                int depth = Math.min(MAX_LIST_DEPTH, Math.max(1, indent));
+                startListItem(depth, listType);
+            } else {
+                listDepth = 0;
+                if (!markdown) {
+                    // Indented Markdown would be a code block
+                    for (int i = 0; i < indent; i++) {
+                        out.write(LIST_INDENT);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new DocumentExportException("Could not write paragraph", e);
+        }
+        paragraphOpen = true;
+        contentWritten = true;
+        lineStart = true;
+        leadingDigits = false;
+    }
+
+    private void startListItem(int depth, ListType listType) throws IOException {
+        for (int i = listDepth; i < depth; i++) {
+            // Deeper levels start counting again
+            listCounters[i] = 0;
+            listTypes[i] = null;
+        }
+        if (listTypes[depth - 1] != listType) {
+            listTypes[depth - 1] = listType;
+            listCounters[depth - 1] = 0;
+        }
+        listDepth = depth;
+        int number = ++listCounters[depth - 1];
+        for (int i = 1; i < depth; i++) {
+            out.write(LIST_INDENT);
+        }
+        if (listType == ListType.NONE) {
+            return;
+        }
+        out.write(listType.getValueFor(number));
+        if (listType != ListType.BULLET) {
+            out.write('.');
+        }
+        out.write(' ');
+    }
+
+    private void endParagraph() throws IOException {
+        if (paragraphOpen) {
+            closeEmphasis();
+            out.write('\n');
+            paragraphOpen = false;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeText(String text, Style style, Object bookmarkId, String bookmarkName) throws DocumentExportException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Write " + style + ":" + text);
+        }
+        if (text == null || text.isEmpty()) {
+            return;
+        }
+        if (!paragraphOpen) {
+            newParagraph(0, Alignment.LEFT, null, 0.0f, 0.0f, LineSpacing.SINGLE);
+        }
+        try {
+            int start = 0;
+            int end = text.length();
+            if (markdown) {
+                boolean newBold = style != null && style.isBold();
+                boolean newItalic = style != null && style.isItalic();
+                if (newBold != bold || newItalic != italic) {
+                    closeEmphasis();
+                    if (newBold || newItalic) {
+                        // Emphasis cannot start with white space
+                        while (start < text.length() && Character.isWhitespace(text.charAt(start))) {
+                            start++;
+                        }
+                        writeEscaped(text, 0, start);
+                        if (start == text.length()) {
+                            return;
+                        }
+                        ExportMetrics metrics = getMetrics();
+                        if (metrics != null) {
+                            metrics.spanWritten();
+                        }
+                        if (newBold) {
+                            out.write("**");
+                        }
+                        if (newItalic) {
+                            out.write('*');
+                        }
+                        bold = newBold;
+                        italic = newItalic;
+                    }
+                }
+                if (bold || italic) {
+                    // Emphasis cannot end with white space either
+                    while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+                        end--;
+                    }
+                    if (end > start && heldSpace.length() > 0) {
+                        out.write(heldSpace.toString());
+                        heldSpace.setLength(0);
+                    }
+                    heldSpace.append(text, end, text.length());
+                }
+            }
+            writeEscaped(text, start, end);
+        } catch (IOException e) {
+            throw new DocumentExportException("Could not write text", e);
+        }
+    }
+
+    private void closeEmphasis() throws IOException {
+        if (italic) {
+            out.write('*');
+            italic = false;
+        }
+        if (bold) {
+            out.write("**");
+            bold = false;
+        }
+        if (heldSpace.length() > 0) {
+            out.write(heldSpace.toString());
+            heldSpace.setLength(0);
+        }
+    }
+
+    /**
+     * Write text, escaping the characters that have a meaning in Markdown. Runs of characters
+     * that need no escaping are written at once.
+     */
+    private void writeEscaped(String text, int start, int end) throws IOException {
+        if (!markdown) {
+            out.write(text, start, end - start);
+            return;
+        }
+        int run = start;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            boolean escape;
+            switch (c) {
+                case '\\':
+                case '`':
+                case '*':
+                case '_':
+                case '[':
+                case ']':
+                case '<':
+                    escape = true;
+                    break;
+                case '#':
+                case '>':
+                case '+':
+                case '-':
+                case '=':
+                    // Heading, quote or list marker when at the start of a line
+                    escape = lineStart;
+                    break;
+                case '.':
+                case ')':
+                    // Ordered list marker when it follows a number at the start of a line
+                    escape = leadingDigits;
+                    break;
+                default:
+                    escape = false;
+            }
+            leadingDigits = c >= '0' && c <= '9' && (lineStart || leadingDigits);
+            lineStart = c == '\n' || (lineStart && c == ' ');
+            if (escape) {
+                out.write(text, run, i - run);
+                out.write('\\');
+                run = i;
+            }
+        }
+        out.write(text, run, end - run);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addNote(String title, String body, String author, String authorInitials) throws DocumentExportException {
+    }
+
+    /**
+     * The text is written as it is produced, so there is no table of contents.
+     */
+    @Override
+    public void writeTableOfContents(String title) throws DocumentExportException {
+    }
+
+    /**
+     * Images are not written; the image is not encoded.
+     */
+    @Override
+    public void writeImage(ImageIcon image, boolean scaleToPage) throws DocumentExportException {
+    }
+
+    /**
+     * Images are not written; the file is not read.
+     */
+    @Override
+    public void writeImage(Path file, String mimeType, int width, int height, boolean scaleToPage) throws DocumentExportException {
+    }
+
+    /**
+     * Images are not written.
+     */
+    @Override
+    public void writeImage(byte[] data, String mimeType, int width, int height, boolean scaleToPage) throws DocumentExportException {
+    }
+}
@@ -20,6 +20,7 @@ import org.apache.log4j.Logger;
 import org.odftoolkit.odfdom.dom.OdfDocumentNamespace;
 import org.odftoolkit.odfdom.dom.element.office.OfficeDocumentStylesElement;
 import org.odftoolkit.odfdom.dom.element.office.OfficeMasterStylesElement;
+import org.odftoolkit.odfdom.dom.element.office.OfficeStylesElement;
 import org.odftoolkit.odfdom.dom.element.style.*;
 import org.odftoolkit.odfdom.dom.element.table.TableTableCellElement;
 import org.odftoolkit.odfdom.dom.element.table.TableTableColumnElement;
@@ -34,36 +35,35 @@ import org.odftoolkit.odfdom.incubator.doc.office.OdfOfficeAutomaticStyles;
 import org.odftoolkit.odfdom.incubator.doc.style.OdfStyle;
 import org.odftoolkit.odfdom.pkg.OdfElement;
 import org.odftoolkit.odfdom.pkg.OdfFileDom;
+import org.odftoolkit.odfdom.pkg.OdfPackage;
 import org.odftoolkit.simple.TextDocument;
 import org.odftoolkit.simple.text.Paragraph;
 import org.odftoolkit.simple.text.list.*;
 import org.odftoolkit.simple.text.list.List;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
+import org.w3c.dom.Text;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageTypeSpecifier;
-import javax.imageio.ImageWriter;
-import javax.imageio.metadata.IIOMetadata;
-import javax.imageio.metadata.IIOMetadataNode;
-import javax.imageio.stream.ImageOutputStream;
-import javax.swing.*;
 import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.awt.image.ImageObserver;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.text.DecimalFormat;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Format used to create an ODT file.
+ * <p>
+ * startAppend opens a document that was written before to add content at the end of it.
  */
-public class ODTExportFormat implements ExportFormat {
+public class ODTExportFormat extends AbstractExportFormat {
 
     private final static Logger logger = Logger.getLogger(ODTExportFormat.class);
 
@@ -72,8 +72,8 @@ public class ODTExportFormat implements ExportFormat {
 
     private TextDocument document;
 
-    private java.util.List<ODFStyleWrapper> styles = new ArrayList<>();
-    private Set<String> styleNames = new HashSet<>();
+    private StyleRegistry styles = new StyleRegistry();
+    private HandleCache<StyleRegistry.RegisteredStyle> styleHandles = new HandleCache<>();
 
     private int sectionStyleCounter = 0;
     private OdfStyle newSectionStyle = null;
@@ -81,75 +81,209 @@ public class ODTExportFormat implements ExportFormat {
     private float firstLineIndentPt;
     private LineSpacing lineSpacing;
     private Map<String, OdfStyle> paragraphStyles = new HashMap<>();
+    // Paragraph style per paragraph format handle in the current section, without and with page break
+    private HandleCache<OdfStyle> paragraphStyleHandles = new HandleCache<>();
+    private boolean pageBreak;
+    private TextSpanElement lastSpan;
+    private StyleRegistry.RegisteredStyle lastSpanStyle;
+    private TextTableOfContentSourceElement tocSource;
+    private TextIndexBodyElement tocBody;
 
-    private DecimalFormat numberFormat = new DecimalFormat("0.000");
     private final static String TABLE_TOP_LINE = "TTL";
     private final static String TABLE_BOTTOM_LINE = "TBL";
     private final static String TABLE_BOTH_LINES = "TBL";
     private final static String CELL_CENTER = "CellCenter";
+    private final static String TOC_NAME = "Table of Contents";
     private final static String CELL_RIGHT = "CellRight";
-    private SectionStyle currentSectionStyle;
+    // Names of the styles created for a section, with the section number
+    private final static Pattern SECTION_STYLE_NAME = Pattern.compile("(?:first_page_)?(?:SSDNL|SDNLSS|SDNL|TPS|Table)(\\d+).*");
+    // Package entries that are written again when content is appended, all others are copied as they are
+    private final static Set<String> APPEND_REWRITTEN = new HashSet<>(Arrays.asList(
+            "META-INF/manifest.xml", "content.xml", "styles.xml", "meta.xml"));
+    private CompiledSectionStyle currentSectionStyle;
+    private final CompiledSectionStyle.Cache compiledSectionStyles = new CompiledSectionStyle.Cache();
+    private Map<CompiledSectionStyle.PageKey, String> masterPages = new HashMap<>();
+
+    private final PictureIndex pictures = new PictureIndex();
+    private final PendingPictures pendingPictures = new PendingPictures(pictures, new PendingPictures.Store() {
+        @Override
+        public void store(String path, String mimeType, byte[] data) {
+            document.getPackage().insert(data, path, mimeType);
+            ExportMetrics metrics = getMetrics();
+            if (metrics != null) {
+                metrics.imageStored(data.length);
+            }
+        }
+    });
+
+    private final DocumentSkeletonPool skeletonPool;
+    private File appendSource;
+
+    /**
+     * Create a format that takes its documents from the shared skeleton pool
+     */
+    public ODTExportFormat() {
+        this(DocumentSkeletonPool.getDefault());
+    }
 
-    private int imageCounter = 0;
+    /**
+     * @param skeletonPool the pool to take new documents from, or null to create every document from the template
+     */
+    public ODTExportFormat(DocumentSkeletonPool skeletonPool) {
+        this.skeletonPool = skeletonPool;
+    }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void startNewFile(File targetFile, String author, String title, String language) throws IOException {
-        logger.debug("Start file " + targetFile);
-
+    public void startNewFile(OutputStream target, String author, String title, String language) throws IOException {
+        logger.debug("Start file");
+        ExportMetrics metrics = getMetrics();
+        long start = metrics == null ? 0L : System.nanoTime();
+        reset();
         try {
-            document = TextDocument.newTextDocument();
-
-            OdfStyle tableTopLine = getAutoStyles().newStyle(OdfStyleFamily.TableCell);
-            tableTopLine.setStyleNameAttribute(TABLE_TOP_LINE);
-            tableTopLine.setStyleDisplayNameAttribute("Table top line");
-            tableTopLine.setProperty(OdfTableCellProperties.BorderBottom, "none");
-            tableTopLine.setProperty(OdfTableCellProperties.BorderTop, "0.05pt solid #000000");
-            tableTopLine.setProperty(OdfTableCellProperties.BorderLeft, "none");
-            tableTopLine.setProperty(OdfTableCellProperties.BorderRight, "none");
-
-            OdfStyle tableBottomLine = getAutoStyles().newStyle(OdfStyleFamily.TableCell);
-            tableBottomLine.setStyleNameAttribute(TABLE_BOTTOM_LINE);
-            tableBottomLine.setStyleDisplayNameAttribute("Table bottom line");
-            tableBottomLine.setProperty(OdfTableCellProperties.BorderBottom, "0.05pt solid #000000");
-            tableBottomLine.setProperty(OdfTableCellProperties.BorderTop, "none");
-            tableBottomLine.setProperty(OdfTableCellProperties.BorderLeft, "none");
-            tableBottomLine.setProperty(OdfTableCellProperties.BorderRight, "none");
-
-            OdfStyle tableBothLines = getAutoStyles().newStyle(OdfStyleFamily.TableCell);
-            tableBothLines.setStyleNameAttribute(TABLE_BOTH_LINES);
-            tableBothLines.setStyleDisplayNameAttribute("Table both lines");
-            tableBothLines.setProperty(OdfTableCellProperties.BorderBottom, "0.05pt solid #000000");
-            tableBothLines.setProperty(OdfTableCellProperties.BorderTop, "0.05pt solid #000000");
-            tableBothLines.setProperty(OdfTableCellProperties.BorderLeft, "none");
-            tableBothLines.setProperty(OdfTableCellProperties.BorderRight, "none");
-
-            OdfStyle cellCenter = getAutoStyles().newStyle(OdfStyleFamily.Paragraph);
-            cellCenter.setStyleNameAttribute(CELL_CENTER);
-            cellCenter.setStyleDisplayNameAttribute("Cell center");
-            cellCenter.setProperty(OdfParagraphProperties.TextAlign, "center");
-
-            OdfStyle cellRight = getAutoStyles().newStyle(OdfStyleFamily.Paragraph);
-            cellRight.setStyleNameAttribute(CELL_RIGHT);
-            cellRight.setStyleDisplayNameAttribute("Cell right");
-            cellRight.setProperty(OdfParagraphProperties.TextAlign, "end");
+            if (skeletonPool != null) {
+                document = skeletonPool.acquire();
+            } else {
+                document = TextDocument.newTextDocument();
+                addFixedStyles(getAutoStyles());
+            }
+        } catch (Exception e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        if (metrics != null) {
+            metrics.fileStarted(System.nanoTime() - start);
+        }
+    }
 
+    /**
+     * Open a document that was written by this format, to add content at the end of it.
+     * Generate the new content as usual, starting with startSection, and write the document
+     * with endFile; the target may be the existing file itself.
+     * <p>
+     * The section and style names continue from the names in the document. The text and
+     * styles are written again, all other entries of the package (such as pictures) are copied
+     * as they are, without decompressing them.
+     *
+     * @param existingFile the document to add content to
+     */
+    public void startAppend(File existingFile) throws IOException {
+        logger.debug("Append to " + existingFile);
+        ExportMetrics metrics = getMetrics();
+        long start = metrics == null ? 0L : System.nanoTime();
+        reset();
+        try {
+            document = TextDocument.loadDocument(existingFile);
+            continueNames();
         } catch (Exception e) {
+            reset();
             throw new IOException(e.getMessage(), e);
         }
+        appendSource = existingFile;
+        if (metrics != null) {
+            metrics.fileStarted(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Take over the names that are used in the document that is appended to
+     */
+    private void continueNames() throws Exception {
+        String styleNamespace = OdfDocumentNamespace.STYLE.getUri();
+        NodeList elements = document.getStylesDom().getElementsByTagNameNS(styleNamespace, "*");
+        for (int i = 0; i < elements.getLength(); i++) {
+            Element element = (Element) elements.item(i);
+            String name = element.getAttributeNS(styleNamespace, "name");
+            Matcher matcher = SECTION_STYLE_NAME.matcher(name);
+            if (matcher.matches()) {
+                sectionStyleCounter = Math.max(sectionStyleCounter, Integer.parseInt(matcher.group(1)));
+            }
+            if (element.getParentNode() instanceof OfficeStylesElement && element instanceof OdfStyle) {
+                OdfStyle style = (OdfStyle) element;
+                if (style.getFamily() == OdfStyleFamily.Text) {
+                    styles.reserveName(name);
+                } else if (name.startsWith("TPS")) {
+                    // Paragraphs before the first new section continue the last section
+                    paragraphStyles.put(name, style);
+                }
+            }
+        }
+        for (String path : document.getPackage().getFilePaths()) {
+            pictures.reservePath(path);
+        }
+    }
+
+    /**
+     * Add the styles used by every document (header and footer cells)
+     */
+    static void addFixedStyles(OdfOfficeAutomaticStyles autoStyles) {
+        OdfStyle tableTopLine = autoStyles.newStyle(OdfStyleFamily.TableCell);
+        tableTopLine.setStyleNameAttribute(TABLE_TOP_LINE);
+        tableTopLine.setStyleDisplayNameAttribute("Table top line");
+        tableTopLine.setProperty(OdfTableCellProperties.BorderBottom, "none");
+        tableTopLine.setProperty(OdfTableCellProperties.BorderTop, "0.05pt solid #000000");
+        tableTopLine.setProperty(OdfTableCellProperties.BorderLeft, "none");
+        tableTopLine.setProperty(OdfTableCellProperties.BorderRight, "none");
+
+        OdfStyle tableBottomLine = autoStyles.newStyle(OdfStyleFamily.TableCell);
+        tableBottomLine.setStyleNameAttribute(TABLE_BOTTOM_LINE);
+        tableBottomLine.setStyleDisplayNameAttribute("Table bottom line");
+        tableBottomLine.setProperty(OdfTableCellProperties.BorderBottom, "0.05pt solid #000000");
+        tableBottomLine.setProperty(OdfTableCellProperties.BorderTop, "none");
+        tableBottomLine.setProperty(OdfTableCellProperties.BorderLeft, "none");
+        tableBottomLine.setProperty(OdfTableCellProperties.BorderRight, "none");
+
+        OdfStyle tableBothLines = autoStyles.newStyle(OdfStyleFamily.TableCell);
+        tableBothLines.setStyleNameAttribute(TABLE_BOTH_LINES);
+        tableBothLines.setStyleDisplayNameAttribute("Table both lines");
+        tableBothLines.setProperty(OdfTableCellProperties.BorderBottom, "0.05pt solid #000000");
+        tableBothLines.setProperty(OdfTableCellProperties.BorderTop, "0.05pt solid #000000");
+        tableBothLines.setProperty(OdfTableCellProperties.BorderLeft, "none");
+        tableBothLines.setProperty(OdfTableCellProperties.BorderRight, "none");
+
+        OdfStyle cellCenter = autoStyles.newStyle(OdfStyleFamily.Paragraph);
+        cellCenter.setStyleNameAttribute(CELL_CENTER);
+        cellCenter.setStyleDisplayNameAttribute("Cell center");
+        cellCenter.setProperty(OdfParagraphProperties.TextAlign, "center");
+
+        OdfStyle cellRight = autoStyles.newStyle(OdfStyleFamily.Paragraph);
+        cellRight.setStyleNameAttribute(CELL_RIGHT);
+        cellRight.setStyleDisplayNameAttribute("Cell right");
+        cellRight.setProperty(OdfParagraphProperties.TextAlign, "end");
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void endFile(File targetFile, boolean firstPass) throws IOException {
+    public void endFile(OutputStream target, boolean firstPass) throws IOException {
         logger.debug("End file");
+        ExportMetrics metrics = getMetrics();
         try {
-            document.save(targetFile);
-            reset();
+            if (tocBody != null) {
+                fillTableOfContents();
+            }
+            pendingPictures.storeAll();
+            if (!pendingPictures.getAliases().isEmpty()) {
+                relinkImages(pendingPictures.getAliases());
+            }
+            long start = metrics == null ? 0L : System.nanoTime();
+            document.getOfficeMetadata().setDcdate(Calendar.getInstance());
+            OutputStream out = buffered(target);
+            CompressionPolicy compression = getCompression();
+            if (appendSource != null) {
+                saveAppended(out, compression);
+            } else if (compression.getLevel() == Deflater.DEFAULT_COMPRESSION && compression.isStoreCompressedMedia()) {
+                // The same as the Simple API does
+                document.save(out);
+            } else {
+                savePackage(out, compression);
+            }
+            out.flush();
+            if (metrics != null) {
+                metrics.fileSaved(System.nanoTime() - start);
+            }
         } catch (Exception e) {
             throw new IOException(e.getMessage(), e);
         } finally {
@@ -157,9 +291,107 @@ public class ODTExportFormat implements ExportFormat {
         }
     }
 
-    private void reset() {
+    /**
+     * {@inheritDoc}
+     * <p>
+     * When the document was opened with startAppend and the target is the same file, the
+     * document is written to a temporary file that replaces the existing file when it is complete.
+     */
+    @Override
+    public void endFile(File targetFile, boolean firstPass) throws IOException {
+        File source = appendSource;
+        if (source == null || !source.getCanonicalFile().equals(targetFile.getCanonicalFile())) {
+            super.endFile(targetFile, firstPass);
+            return;
+        }
+        File temporary = File.createTempFile("append", ".odt", targetFile.getAbsoluteFile().getParentFile());
+        try {
+            super.endFile(temporary, firstPass);
+            Files.move(temporary.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary.toPath());
+        }
+    }
+
+    /**
+     * Write the package with the given compression policy instead of the compression
+     * of the Simple API (default level, pictures stored)
+     */
+    private void savePackage(OutputStream out, CompressionPolicy compression) throws Exception {
+        OdfPackage odfPackage = document.getPackage();
+        ZipOutputStream zip = new ZipOutputStream(out);
+        zip.setLevel(compression.getLevel());
+        // The mimetype must be the first entry
+        writeEntry(zip, compression, "mimetype", odfPackage.getMediaTypeString().getBytes("UTF-8"));
+        writeEntry(zip, compression, "META-INF/manifest.xml", odfPackage.getManifestAsString().getBytes("UTF-8"));
+        for (String path : odfPackage.getFilePaths()) {
+            if (path.endsWith("/") || "mimetype".equals(path) || "META-INF/manifest.xml".equals(path)) {
+                continue;
+            }
+            byte[] data = odfPackage.getBytes(path);
+            if (data != null) {
+                writeEntry(zip, compression, path, data);
+            }
+        }
+        zip.finish();
+    }
+
+    /**
+     * Write the package of a document that was opened with startAppend: the changed entries
+     * are written, the others are copied from the existing file without decompressing them
+     */
+    private void saveAppended(OutputStream out, CompressionPolicy compression) throws Exception {
+        OdfPackage odfPackage = document.getPackage();
+        RawZipWriter zip = new RawZipWriter(out);
+        Set<String> written = new HashSet<>();
+        try (RandomAccessFile source = new RandomAccessFile(appendSource, "r")) {
+            // In the order of the existing package, so the mimetype stays the first entry
+            for (RawZipWriter.Entry entry : RawZipWriter.readEntries(source)) {
+                if ("META-INF/manifest.xml".equals(entry.name)) {
+                    writeAppendedEntry(zip, compression, entry.name, odfPackage.getManifestAsString().getBytes("UTF-8"));
+                } else if (APPEND_REWRITTEN.contains(entry.name)) {
+                    writeAppendedEntry(zip, compression, entry.name, odfPackage.getBytes(entry.name));
+                } else {
+                    zip.copy(source, entry);
+                }
+                written.add(entry.name);
+            }
+        }
+        for (String path : odfPackage.getFilePaths()) {
+            if (!path.endsWith("/") && !written.contains(path)) {
+                byte[] data = odfPackage.getBytes(path);
+                if (data != null) {
+                    writeAppendedEntry(zip, compression, path, data);
+                }
+            }
+        }
+        zip.finish();
+    }
+
+    private static void writeAppendedEntry(RawZipWriter zip, CompressionPolicy compression, String path, byte[] data)
+            throws IOException {
+        zip.write(path, data, compression.isStored(path), compression.getLevel());
+    }
+
+    private static void writeEntry(ZipOutputStream zip, CompressionPolicy compression, String path, byte[] data) throws IOException {
+        zip.putNextEntry(compression.newEntry(path, data));
+        zip.write(data);
+        zip.closeEntry();
+    }
+
+    /**
+     * Discard the current document, if any. The exporter can be used for a new document
+     * afterwards; this is also done by startNewFile and endFile.
+     */
+    public void reset() {
+        closeTargetFile();
+        if (document != null) {
+            document.close();
+            document = null;
+        }
+        appendSource = null;
         styles.clear();
-        styleNames.clear();
+        styleHandles.clear();
         currentParagraph = null;
         lists.clear();
         sectionStyleCounter = 0;
@@ -168,14 +400,24 @@ public class ODTExportFormat implements ExportFormat {
         firstLineIndentPt = 0.0f;
         lineSpacing = null;
         paragraphStyles.clear();
-        imageCounter = 0;
+        paragraphStyleHandles.clear();
+        currentSectionStyle = null;
+        masterPages.clear();
+        pageBreak = false;
+        lastSpan = null;
+        lastSpanStyle = null;
+        tocSource = null;
+        tocBody = null;
+        getTableOfContents().clear();
+        pictures.clear();
+        pendingPictures.clear();
     }
 
     /**
      * @param toConvert color to convert
      * @return the six character hex string (rrggbb) for the color
      */
-    private static String rgbHexValue(Color toConvert) {
+    static String rgbHexValue(Color toConvert) {
         StringBuilder result = new StringBuilder();
 
         result.append(Integer.toHexString(toConvert.getRed()));
@@ -196,127 +438,102 @@ public class ODTExportFormat implements ExportFormat {
         return result.toString();
     }
 
-    private ODFStyleWrapper getOrCreateStyle(Style style) {
-        ODFStyleWrapper found = null;
+    private StyleRegistry.RegisteredStyle getOrCreateStyle(Style style) {
         if (style == null) {
-            return found;
-        }
-        int index = 0;
-        while (found == null && index < styles.size()) {
-            ODFStyleWrapper current = styles.get(index);
-            if (current.style!=null && style.equals(current.style)) {
-                found = current;
-            }
-            index++;
+            return null;
         }
+        StyleRegistry.RegisteredStyle found = styles.find(style);
         if (found == null) {
-            // Create stylename
-            String stylename = "SDNL style 1";
-            if (style.getName() != null && style.getName().length() > 0 && !"Default".equalsIgnoreCase(style.getName())) {
-                stylename = style.getName();
-            }
-            String basename = stylename;
-            int counter = 1;
-            while (styleNames.contains(stylename)) {
-                stylename = basename + " " + counter;
-                counter++;
-            }
-            styleNames.add(stylename);
+            found = styles.register(style);
+            ExportMetrics metrics = getMetrics();
+            if (metrics != null) {
+                metrics.styleRegistered();
+            }
             // Create style
-            OdfStyle odfStyle = document.getOrCreateDocumentStyles().newStyle(stylename, OdfStyleFamily.Text);
-            odfStyle.setStyleDisplayNameAttribute(stylename);
-            found = new ODFStyleWrapper();
-            found.style = style;
-            found.name = stylename;
-            found.odfStyle = odfStyle;
-            found.applyToStyle();
-            styles.add(found);
+            OdfStyle odfStyle = document.getOrCreateDocumentStyles().newStyle(found.name, OdfStyleFamily.Text);
+            odfStyle.setStyleDisplayNameAttribute(found.name);
+            applyToStyle(found.style, odfStyle);
         }
         return found;
     }
 
-    private void createSectionStyle(SectionStyle sectionStyle) throws DocumentExportException {
+    private void createSectionStyle(CompiledSectionStyle sectionStyle) throws DocumentExportException {
         sectionStyleCounter++;
+        String paragraphStyleName = "SSDNL" + sectionStyleCounter; // Style for first paragraph of new section
+        String masterPageName = masterPages.get(sectionStyle.getPageKey());
+        if (masterPageName == null) {
+            masterPageName = createMasterPage(sectionStyle);
+            masterPages.put(sectionStyle.getPageKey(), masterPageName);
+        }
+        newSectionStyle = document.getOrCreateDocumentStyles().newStyle(paragraphStyleName, OdfStyleFamily.Paragraph);
+        newSectionStyle.setStyleDisplayNameAttribute("SDNL Section " + sectionStyleCounter);
+        newSectionStyle.setStyleMasterPageNameAttribute(masterPageName);
+    }
+
+    /**
+     * Create the page layout and master page(s) for a section
+     *
+     * @return the name of the master page of the section
+     */
+    private String createMasterPage(CompiledSectionStyle sectionStyle) throws DocumentExportException {
         String styleName = "SDNL" + sectionStyleCounter;
         String styleDisplayName = "SDNL Section " + sectionStyleCounter;
         String stylePageLayoutName = "SDNLSS" + sectionStyleCounter;
         String styleTableName = "Table" + sectionStyleCounter;
         String styleTableColumnName = "Table" + sectionStyleCounter + ".A";
-        String paragraphStyleName = "S" + styleName; // Style for first paragraph of new section
 
         // Page layout
         StylePageLayoutElement pageLayoutStyle = getAutoStyles().newStylePageLayoutElement(stylePageLayoutName);
         // Page settings
-        float marginLeft = DistanceUnit.IN.fromPoints(sectionStyle.getMarginLeft());
-        float marginTop = DistanceUnit.IN.fromPoints(sectionStyle.getMarginTop());
-        float marginRight = DistanceUnit.IN.fromPoints(sectionStyle.getMarginRight());
-        float marginBottom = DistanceUnit.IN.fromPoints(sectionStyle.getMarginBottom());
-        float pageWidth, pageHeight;
-        if (sectionStyle.getOrientation() == Orientation.PORTRAIT) {
-            pageLayoutStyle.setProperty(OdfPageLayoutProperties.PrintOrientation, "portrait");
-            pageWidth = sectionStyle.getPageSize().getWidthInch();
-            pageHeight = sectionStyle.getPageSize().getHeightInch();
-        } else {
-            pageLayoutStyle.setProperty(OdfPageLayoutProperties.PrintOrientation, "landscape");
-            pageWidth = sectionStyle.getPageSize().getHeightInch();
-            pageHeight = sectionStyle.getPageSize().getWidthInch();
-        }
-        pageLayoutStyle.setProperty(OdfPageLayoutProperties.PageWidth, "" + numberFormat.format(pageWidth) + "in");
-        pageLayoutStyle.setProperty(OdfPageLayoutProperties.PageHeight, "" + numberFormat.format(pageHeight) + "in");
-        pageLayoutStyle.setProperty(OdfPageLayoutProperties.MarginLeft, "" + numberFormat.format(marginLeft) + "in");
-        pageLayoutStyle.setProperty(OdfPageLayoutProperties.MarginTop, "" + numberFormat.format(marginTop) + "in");
-        pageLayoutStyle.setProperty(OdfPageLayoutProperties.MarginRight, "" + numberFormat.format(marginRight) + "in");
-        pageLayoutStyle.setProperty(OdfPageLayoutProperties.MarginBottom, "" + numberFormat.format(marginBottom) + "in");
+        pageLayoutStyle.setProperty(OdfPageLayoutProperties.PrintOrientation, sectionStyle.portrait ? "portrait" : "landscape");
+        pageLayoutStyle.setProperty(OdfPageLayoutProperties.PageWidth, sectionStyle.pageWidth);
+        pageLayoutStyle.setProperty(OdfPageLayoutProperties.PageHeight, sectionStyle.pageHeight);
+        pageLayoutStyle.setProperty(OdfPageLayoutProperties.MarginLeft, sectionStyle.marginLeftLength);
+        pageLayoutStyle.setProperty(OdfPageLayoutProperties.MarginTop, sectionStyle.marginTopLength);
+        pageLayoutStyle.setProperty(OdfPageLayoutProperties.MarginRight, sectionStyle.marginRightLength);
+        pageLayoutStyle.setProperty(OdfPageLayoutProperties.MarginBottom, sectionStyle.marginBottomLength);
 
         // Create header/footer table style
-        float tableWidth = pageWidth - marginLeft - marginRight;
         OdfStyle tableStyle = getAutoStyles().newStyle(OdfStyleFamily.Table);
         tableStyle.setStyleNameAttribute(styleTableName);
-        tableStyle.setProperty(OdfTableProperties.Width, "" + numberFormat.format(tableWidth) + "in");
+        tableStyle.setProperty(OdfTableProperties.Width, sectionStyle.tableWidth);
         tableStyle.setProperty(OdfTableProperties.Align, "margins");
         tableStyle.setProperty(OdfTableProperties.BorderModel, "separating");
         OdfStyle tableColumnStyle = getAutoStyles().newStyle(OdfStyleFamily.TableColumn);
         tableColumnStyle.setStyleNameAttribute(styleTableColumnName);
-        tableColumnStyle.setProperty(OdfTableProperties.Width, "" + numberFormat.format(tableWidth / 3.0f) + "in");
+        tableColumnStyle.setProperty(OdfTableProperties.Width, sectionStyle.tableColumnWidth);
 
         // Create master page layoyut
-        MultiPageType pageType = sectionStyle.getMultiPageType();
         StyleMasterPageElement masterPageStyle = getOrCreateMasterPageStyle(styleName, styleDisplayName, stylePageLayoutName);
-        if (pageType == MultiPageType.DIFFERENT_ODD_AND_EVEN || pageType == MultiPageType.DIFFERENT_FIRST_ODD_AND_EVEN) {
-            // Add odd and even header
-            if (sectionStyle.hasHeader(PageType.ODD_PAGE)) {
-                addHeaderTable(styleTableName, masterPageStyle.newStyleHeaderElement(), sectionStyle, PageType.ODD_PAGE);
-            }
-            if (sectionStyle.hasFooter(PageType.ODD_PAGE)) {
-                addFooterTable(styleTableName, masterPageStyle.newStyleFooterElement(), sectionStyle, PageType.ODD_PAGE);
-            }
-            if (sectionStyle.hasHeader(PageType.EVEN_PAGE)) {
-                addHeaderTable(styleTableName, masterPageStyle.newStyleHeaderLeftElement(), sectionStyle, PageType.ODD_PAGE);
-            }
-            if (sectionStyle.hasFooter(PageType.EVEN_PAGE)) {
-                addFooterTable(styleTableName, masterPageStyle.newStyleFooterLeftElement(), sectionStyle, PageType.ODD_PAGE);
-            }
-
-        } else {
-            // Add normal header and footer
-            if (sectionStyle.hasHeader(PageType.ODD_PAGE)) {
-                addHeaderTable(styleTableName, masterPageStyle.newStyleHeaderElement(), sectionStyle, PageType.ODD_PAGE);
+        CompiledSectionStyle.Page odd = sectionStyle.getPage(PageType.ODD_PAGE);
+        if (odd.header) {
+            addHeaderTable(styleTableName, masterPageStyle.newStyleHeaderElement(), odd);
+        }
+        if (odd.footer) {
+            addFooterTable(styleTableName, masterPageStyle.newStyleFooterElement(), odd);
+        }
+        if (sectionStyle.isOddAndEven()) {
+            // Add even header and footer
+            CompiledSectionStyle.Page even = sectionStyle.getPage(PageType.EVEN_PAGE);
+            if (even.header) {
+                addHeaderTable(styleTableName, masterPageStyle.newStyleHeaderLeftElement(), even);
             }
-            if (sectionStyle.hasFooter(PageType.ODD_PAGE)) {
-                addFooterTable(styleTableName, masterPageStyle.newStyleFooterElement(), sectionStyle, PageType.ODD_PAGE);
+            if (even.footer) {
+                addFooterTable(styleTableName, masterPageStyle.newStyleFooterLeftElement(), even);
             }
         }
-        if (pageType == MultiPageType.DIFFERENT_FIRST || pageType == MultiPageType.DIFFERENT_FIRST_ODD_AND_EVEN) {
+        if (sectionStyle.isDifferentFirst()) {
             StyleMasterPageElement firstPageStyle = getOrCreateMasterPageStyle(
                     "first_page_" + styleName,
                     "First Page " + styleDisplayName,
                     "first_page_" + stylePageLayoutName);
             // Add first page, with a next style pointing at the Standard style
-            if (sectionStyle.hasHeader(PageType.FIRST_PAGE_ODD)) {
-                addHeaderTable(styleTableName, firstPageStyle.newStyleHeaderElement(), sectionStyle, PageType.FIRST_PAGE_ODD);
+            CompiledSectionStyle.Page first = sectionStyle.getPage(PageType.FIRST_PAGE_ODD);
+            if (first.header) {
+                addHeaderTable(styleTableName, firstPageStyle.newStyleHeaderElement(), first);
             }
-            if (sectionStyle.hasFooter(PageType.FIRST_PAGE_ODD)) {
-                addFooterTable(styleTableName, firstPageStyle.newStyleFooterElement(), sectionStyle, PageType.FIRST_PAGE_ODD);
+            if (first.footer) {
+                addFooterTable(styleTableName, firstPageStyle.newStyleFooterElement(), first);
             }
         }
 
@@ -325,66 +542,39 @@ public class ODTExportFormat implements ExportFormat {
             StylePageLayoutPropertiesElement props = (StylePageLayoutPropertiesElement) pageLayoutStyle.getOrCreatePropertiesElement(OdfStylePropertiesSet.PageLayoutProperties);
             props.newStyleColumnsElement(sectionStyle.getColumns());
         }
+        return masterPageStyle.getStyleNameAttribute();
+    }
 
-        newSectionStyle = document.getOrCreateDocumentStyles().newStyle(paragraphStyleName, OdfStyleFamily.Paragraph);
-        newSectionStyle.setStyleDisplayNameAttribute(styleDisplayName);
-        newSectionStyle.setStyleMasterPageNameAttribute(styleName);
-    }
-
-    private void addHeaderTable(String styleTableName, StyleHeaderElement header, SectionStyle sectionStyle,
-                                PageType pageType) {
-        String left = sectionStyle.getHeaderLeft(pageType);
-        Style leftStyle = sectionStyle.getHeaderLeftStyle(pageType);
-        String center = sectionStyle.getHeaderCenter(pageType);
-        Style centerStyle = sectionStyle.getHeaderCenterStyle(pageType);
-        String right = sectionStyle.getHeaderRight(pageType);
-        Style rightStyle = sectionStyle.getHeaderRightStyle(pageType);
-        TableTableElement table = header.newTableTableElement();
-        boolean lineAbove = sectionStyle.isLineAboveHeader(pageType);
-        boolean lineBelow = sectionStyle.isLineBelowHeader(pageType);
-        fillTable(styleTableName, table, leftStyle, left, centerStyle, center, rightStyle, right, lineAbove, lineBelow);
-    }
-
-    private void addFooterTable(String styleTableName, StyleFooterElement footer, SectionStyle sectionStyle,
-                                PageType pageType) {
-        String left = sectionStyle.getFooterLeft(pageType);
-        Style leftStyle = sectionStyle.getFooterLeftStyle(pageType);
-        String center = sectionStyle.getFooterCenter(pageType);
-        Style centerStyle = sectionStyle.getFooterCenterStyle(pageType);
-        String right = sectionStyle.getFooterRight(pageType);
-        Style rightStyle = sectionStyle.getFooterRightStyle(pageType);
-        TableTableElement table = footer.newTableTableElement();
-        boolean lineAbove = sectionStyle.isLineAboveFooter(pageType);
-        boolean lineBelow = sectionStyle.isLineBelowFooter(pageType);
-        fillTable(styleTableName, table, leftStyle, left, centerStyle, center, rightStyle, right, lineAbove, lineBelow);
-    }
-
-    private void addHeaderTable(String styleTableName, StyleHeaderLeftElement header, SectionStyle sectionStyle,
-                                PageType pageType) {
-        String left = sectionStyle.getHeaderLeft(pageType);
-        Style leftStyle = sectionStyle.getHeaderLeftStyle(pageType);
-        String center = sectionStyle.getHeaderCenter(pageType);
-        Style centerStyle = sectionStyle.getHeaderCenterStyle(pageType);
-        String right = sectionStyle.getHeaderRight(pageType);
-        Style rightStyle = sectionStyle.getHeaderRightStyle(pageType);
-        TableTableElement table = header.newTableTableElement();
-        boolean lineAbove = sectionStyle.isLineAboveHeader(pageType);
-        boolean lineBelow = sectionStyle.isLineBelowHeader(pageType);
-        fillTable(styleTableName, table, leftStyle, left, centerStyle, center, rightStyle, right, lineAbove, lineBelow);
-    }
-
-    private void addFooterTable(String styleTableName, StyleFooterLeftElement footer, SectionStyle sectionStyle,
-                                PageType pageType) {
-        String left = sectionStyle.getFooterLeft(pageType);
-        Style leftStyle = sectionStyle.getFooterLeftStyle(pageType);
-        String center = sectionStyle.getFooterCenter(pageType);
-        Style centerStyle = sectionStyle.getFooterCenterStyle(pageType);
-        String right = sectionStyle.getFooterRight(pageType);
-        Style rightStyle = sectionStyle.getFooterRightStyle(pageType);
-        TableTableElement table = footer.newTableTableElement();
-        boolean lineAbove = sectionStyle.isLineAboveFooter(pageType);
-        boolean lineBelow = sectionStyle.isLineBelowFooter(pageType);
-        fillTable(styleTableName, table, leftStyle, left, centerStyle, center, rightStyle, right, lineAbove, lineBelow);
+    private void addHeaderTable(String styleTableName, StyleHeaderElement header, CompiledSectionStyle.Page page) {
+        fillTable(styleTableName, header.newTableTableElement(),
+                page.headerLeftStyle, page.headerLeft,
+                page.headerCenterStyle, page.headerCenter,
+                page.headerRightStyle, page.headerRight,
+                page.lineAboveHeader, page.lineBelowHeader);
+    }
+
+    private void addFooterTable(String styleTableName, StyleFooterElement footer, CompiledSectionStyle.Page page) {
+        fillTable(styleTableName, footer.newTableTableElement(),
+                page.footerLeftStyle, page.footerLeft,
+                page.footerCenterStyle, page.footerCenter,
+                page.footerRightStyle, page.footerRight,
+                page.lineAboveFooter, page.lineBelowFooter);
+    }
+
+    private void addHeaderTable(String styleTableName, StyleHeaderLeftElement header, CompiledSectionStyle.Page page) {
+        fillTable(styleTableName, header.newTableTableElement(),
+                page.headerLeftStyle, page.headerLeft,
+                page.headerCenterStyle, page.headerCenter,
+                page.headerRightStyle, page.headerRight,
+                page.lineAboveHeader, page.lineBelowHeader);
+    }
+
+    private void addFooterTable(String styleTableName, StyleFooterLeftElement footer, CompiledSectionStyle.Page page) {
+        fillTable(styleTableName, footer.newTableTableElement(),
+                page.footerLeftStyle, page.footerLeft,
+                page.footerCenterStyle, page.footerCenter,
+                page.footerRightStyle, page.footerRight,
+                page.lineAboveFooter, page.lineBelowFooter);
     }
 
     private void fillTable(String styleTableName, TableTableElement table, final Style leftStyle, String left,
@@ -488,9 +678,55 @@ public class ODTExportFormat implements ExportFormat {
      */
     @Override
     public void writeText(String text, Style style, Object bookmarkId, String bookmarkName) throws DocumentExportException {
-        logger.debug("Write " + style + ":" + text);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Write " + style + ":" + text);
+        }
+        if (StringUtils.isEmpty(text)) {
+            return;
+        }
+        appendText(text, getOrCreateStyle(style), bookmarkId);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeText(String text, int style, Object bookmarkId, String bookmarkName) throws DocumentExportException {
+        if (StringUtils.isEmpty(text)) {
+            return;
+        }
+        StyleRegistry.RegisteredStyle registeredStyle = styleHandles.get(style);
+        if (registeredStyle == null) {
+            registeredStyle = getOrCreateStyle(getRegisteredStyle(style));
+            styleHandles.put(style, registeredStyle);
+        }
+        appendText(text, registeredStyle, bookmarkId);
+    }
+
+    private void appendText(String text, StyleRegistry.RegisteredStyle registeredStyle, Object bookmarkId) {
         Paragraph paragraph = currentParagraph;
-        addStyledTextToParagraph(text, style, paragraph);
+        if (lastSpan != null && lastSpanStyle == registeredStyle && bookmarkId == null && isCoalesceText()
+                && paragraph.getOdfElement().getLastChild() == lastSpan) {
+            // Same style as the text before it, continue the span
+            ((Text) lastSpan.getLastChild()).appendData(text);
+            return;
+        }
+        ExportMetrics metrics = getMetrics();
+        if (metrics != null) {
+            metrics.spanWritten();
+        }
+        if (bookmarkId != null) {
+            addBookmark(bookmarkId.toString(), paragraph);
+        }
+        lastSpan = addSpan(text, registeredStyle, paragraph);
+        lastSpanStyle = registeredStyle;
+    }
+
+    private void addBookmark(String name, Paragraph paragraph) {
+        OdfFileDom odfFileDom = (OdfFileDom) paragraph.getOdfElement().getOwnerDocument();
+        TextBookmarkElement bookmark = odfFileDom.newOdfElement(TextBookmarkElement.class);
+        bookmark.setTextNameAttribute(name);
+        paragraph.getOdfElement().appendChild(bookmark);
     }
 
     private void addPageNumberToParagraph(Paragraph paragraph) {
@@ -509,26 +745,88 @@ public class ODTExportFormat implements ExportFormat {
         if (StringUtils.isEmpty(text)) {
             return;
         }
-        ODFStyleWrapper styleWrapper = getOrCreateStyle(style);
+        addSpan(text, getOrCreateStyle(style), paragraph);
+    }
+
+    private TextSpanElement addSpan(String text, StyleRegistry.RegisteredStyle registeredStyle, Paragraph paragraph) {
         // Wow, OdfToolkit is a great high-level API :(
         OdfFileDom odfFileDom = (OdfFileDom) paragraph.getOdfElement().getOwnerDocument();
         TextSpanElement span = odfFileDom.newOdfElement(TextSpanElement.class);
-        if (styleWrapper != null) {
-            span.setTextStyleNameAttribute(styleWrapper.name);
+        if (registeredStyle != null) {
+            span.setTextStyleNameAttribute(registeredStyle.name);
         }
         span.setTextContent(text);
         paragraph.getOdfElement().appendChild(span);
+        return span;
     }
 
 
     /**
      * {@inheritDoc}
+     * <p>
+     * The table of contents is an empty element until endFile adds a linked paragraph
+     * for every item. Page numbers are added when the document is updated in an editor.
+     */
+    @Override
+    public void writeTableOfContents(String title) throws DocumentExportException {
+        logger.debug("Table of contents");
+        if (tocBody != null) {
+            throw new DocumentExportException("The document already has a table of contents");
+        }
+        try {
+            OdfElement root = document.getContentRoot();
+            OdfFileDom odfFileDom = (OdfFileDom) root.getOwnerDocument();
+            TextTableOfContentElement toc = odfFileDom.newOdfElement(TextTableOfContentElement.class);
+            toc.setTextNameAttribute(TOC_NAME);
+            toc.setTextProtectedAttribute(true);
+            tocSource = toc.newTextTableOfContentSourceElement();
+            tocSource.setTextUseOutlineLevelAttribute(false);
+            tocSource.setTextUseIndexMarksAttribute(false);
+            tocBody = toc.newTextIndexBodyElement();
+            if (title != null) {
+                tocSource.newTextIndexTitleTemplateElement().setTextContent(title);
+                TextPElement paragraph = tocBody.newTextIndexTitleElement(TOC_NAME + " title").newTextPElement();
+                paragraph.setTextStyleNameAttribute(getOrCreateParagraphStyle(0, Alignment.LEFT, false).getStyleNameAttribute());
+                paragraph.setTextContent(title);
+            }
+            root.appendChild(toc);
+        } catch (Exception e) {
+            throw new DocumentExportException("Could not add table of contents", e);
+        }
+        lists.clear();
+        lastSpan = null;
+        lastSpanStyle = null;
+    }
+
+    /**
+     * Add an entry template for every level and a paragraph that links to the bookmark for every item
+     */
+    private void fillTableOfContents() throws DocumentExportException {
+        TableOfContents tableOfContents = getTableOfContents();
+        for (int level = 1; level <= tableOfContents.getMaxLevel(); level++) {
+            TextTableOfContentEntryTemplateElement template = tocSource.newTextTableOfContentEntryTemplateElement(
+                    level, getOrCreateParagraphStyle(level - 1, Alignment.LEFT, false).getStyleNameAttribute());
+            template.newTextIndexEntryLinkStartElement();
+            template.newTextIndexEntryTextElement();
+            template.newTextIndexEntryLinkEndElement();
+        }
+        for (TableOfContents.Item item : tableOfContents.getItems()) {
+            TextPElement paragraph = tocBody.newTextPElement();
+            paragraph.setTextStyleNameAttribute(getOrCreateParagraphStyle(item.level - 1, Alignment.LEFT, false).getStyleNameAttribute());
+            paragraph.newTextAElement("#" + item.bookmark, "simple").setTextContent(item.text);
+        }
+    }
+
+    /**
+     * A page break does not start a new section: the next paragraph gets a
+     * paragraph style that breaks before the paragraph.
      */
     @Override
     public void writePageBreak() throws DocumentExportException {
-//        document.addPageBreak();
-//        currentParagraph = null;
-        startSection(currentSectionStyle);
+        // A new section already starts on a new page
+        if (newSectionStyle == null) {
+            pageBreak = true;
+        }
     }
 
     private void initParagraphStyle(OdfStyle style, int indent, Alignment alignment) {
@@ -549,8 +847,8 @@ public class ODTExportFormat implements ExportFormat {
         }
     }
 
-    private OdfStyle getOrCreateParagraphStyle(int indent, Alignment alignment) throws DocumentExportException {
-        String name = "TPS" + sectionStyleCounter + alignment + indent;
+    private OdfStyle getOrCreateParagraphStyle(int indent, Alignment alignment, boolean breakBefore) throws DocumentExportException {
+        String name = "TPS" + sectionStyleCounter + alignment + indent + (breakBefore ? "B" : "");
         OdfStyle style = paragraphStyles.get(name);
         if (style == null) {
             style = document.getOrCreateDocumentStyles().newStyle(name, OdfStyleFamily.Paragraph);
@@ -560,20 +858,62 @@ public class ODTExportFormat implements ExportFormat {
             if (indent != 0) {
                 displayName += indent;
             }
+            if (breakBefore) {
+                displayName += " page break";
+            }
             style.setStyleDisplayNameAttribute(displayName);
             initParagraphStyle(style, indent, alignment);
+            if (breakBefore) {
+                style.setProperty(OdfParagraphProperties.BreakBefore, "page");
+            }
             paragraphStyles.put(name, style);
         }
         return style;
     }
 
+    /**
+     * @param handle the paragraph format handle the style is for, or -1 if there is none
+     */
+    private OdfStyle getOrCreateParagraphStyle(int indent, Alignment alignment, boolean breakBefore, int handle)
+            throws DocumentExportException {
+        if (handle < 0) {
+            return getOrCreateParagraphStyle(indent, alignment, breakBefore);
+        }
+        int index = 2 * handle + (breakBefore ? 1 : 0);
+        OdfStyle style = paragraphStyleHandles.get(index);
+        if (style == null) {
+            style = getOrCreateParagraphStyle(indent, alignment, breakBefore);
+            paragraphStyleHandles.put(index, style);
+        }
+        return style;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void newParagraph(int indent, Alignment alignment, ListType listType,
                              float firstLineIndent, float indentSize, LineSpacing spacing) throws DocumentExportException {
-        logger.debug("New paragraph " + indent + ":" + alignment + ":" + listType);
+        startParagraph(indent, alignment, listType, -1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void newParagraph(int paragraphFormat) throws DocumentExportException {
+        ParagraphFormat format = getParagraphFormat(paragraphFormat);
+        startParagraph(format.indent, format.alignment, format.listType, paragraphFormat);
+    }
+
+    private void startParagraph(int indent, Alignment alignment, ListType listType, int handle) throws DocumentExportException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("New paragraph " + indent + ":" + alignment + ":" + listType);
+        }
+        ExportMetrics metrics = getMetrics();
+        if (metrics != null) {
+            metrics.paragraphWritten();
+        }
         if (listType == null) {
             currentParagraph = document.addParagraph("");
             if (newSectionStyle != null) {
@@ -582,8 +922,9 @@ public class ODTExportFormat implements ExportFormat {
                 currentParagraph.getOdfElement().setTextStyleNameAttribute(newSectionStyle.getStyleNameAttribute());
                 newSectionStyle = null;
             } else {
-                OdfStyle style = getOrCreateParagraphStyle(indent, alignment);
+                OdfStyle style = getOrCreateParagraphStyle(indent, alignment, pageBreak, handle);
                 currentParagraph.getOdfElement().setTextStyleNameAttribute(style.getStyleNameAttribute());
+                pageBreak = false;
             }
             lists.clear();
         } else {
@@ -594,7 +935,7 @@ public class ODTExportFormat implements ExportFormat {
                 currentParagraph.setStyleName(newSectionStyle.getStyleNameAttribute());
                 newSectionStyle = null;
             } else {
-                OdfStyle style = getOrCreateParagraphStyle(indent, alignment);
+                OdfStyle style = getOrCreateParagraphStyle(indent, alignment, false, handle);
 
                 currentParagraph.getOdfElement().setTextStyleNameAttribute(style.getStyleNameAttribute());
             }
@@ -623,6 +964,11 @@ public class ODTExportFormat implements ExportFormat {
             }
             ListItem currentListItem = list.addItem("");
             currentParagraph = Paragraph.getInstanceof((TextParagraphElementBase) currentListItem.getOdfElement().getLastChild());
+            if (pageBreak) {
+                OdfStyle style = getOrCreateParagraphStyle(indent, alignment, true, handle);
+                currentParagraph.getOdfElement().setTextStyleNameAttribute(style.getStyleNameAttribute());
+                pageBreak = false;
+            }
         }
     }
 
@@ -644,12 +990,20 @@ public class ODTExportFormat implements ExportFormat {
     @Override
     public void startSection(SectionStyle sectionStyle) throws DocumentExportException {
         logger.debug("start section " + sectionStyle);
-        currentSectionStyle = sectionStyle;
+        ExportMetrics metrics = getMetrics();
+        long start = metrics == null ? 0L : System.nanoTime();
+        CompiledSectionStyle compiled = compiledSectionStyles.compile(sectionStyle);
+        currentSectionStyle = compiled;
         paragraphStyles.clear();
-        createSectionStyle(sectionStyle);
-        indentSizePt = sectionStyle.getIndentSize();
-        firstLineIndentPt = sectionStyle.getIndentSize();
-        lineSpacing = sectionStyle.getLineSpacing();
+        paragraphStyleHandles.clear();
+        pageBreak = false;
+        createSectionStyle(compiled);
+        indentSizePt = compiled.getIndentSize();
+        firstLineIndentPt = compiled.getIndentSize();
+        lineSpacing = compiled.getLineSpacing();
+        if (metrics != null) {
+            metrics.sectionStarted(System.nanoTime() - start);
+        }
     }
 
     /**
@@ -671,166 +1025,118 @@ public class ODTExportFormat implements ExportFormat {
      * {@inheritDoc}
      */
     @Override
-    public void writeImage(ImageIcon image, boolean scaleToPage) throws DocumentExportException {
-        if(scaleToPage){
-            logger.debug("Add image " + image);
-        } else {
-            logger.debug("Add scaled image " + image);
-        }
-        try {
-            if(currentParagraph == null) {
-                newParagraph(0,Alignment.CENTER,null,0.0f,0.0f,LineSpacing.SINGLE);
-            }
-            // Again, we have to do this by hand. Go ODF toolkit :(
-            OdfFileDom odfFileDom = (OdfFileDom) currentParagraph.getOdfElement().getOwnerDocument();
-            OdfDrawFrame frame = odfFileDom.newOdfElement(OdfDrawFrame.class);
-
-            int imgWidth = 0;
-            int imgHeight = 0;
-            if(scaleToPage) {
-                frame.setTextAnchorTypeAttribute("paragraph");
-                int pgWidth = (int)currentSectionStyle.getPageSize().getWidthPoints(72.0f);
-                int pgHeight = (int)currentSectionStyle.getPageSize().getHeightPoints(72.0f);
-                if(currentSectionStyle.getOrientation() == Orientation.LANDSCAPE ||
-                        currentSectionStyle.getOrientation() == Orientation.REVERSE_LANDSCAPE) {
-                    // Landscape, switch width and height
-                    int tmp = pgWidth;
-                    pgWidth = pgHeight;
-                    pgHeight = tmp;
-                }
-                Dimension page = new Dimension(pgWidth, pgHeight);
-                Insets margins = new Insets((int)(currentSectionStyle.getMarginTop()),
-                        (int)(currentSectionStyle.getMarginLeft()),
-                        (int)(currentSectionStyle.getMarginBottom()),
-                        (int)(currentSectionStyle.getMarginRight()));
-                Dimension pic = new Dimension(image.getIconWidth(), image.getIconHeight());
-                // TODO Correct scaling???
-            } else {
-                frame.setTextAnchorTypeAttribute("as-char");
-                imgWidth = image.getIconWidth();
-                imgHeight = image.getIconHeight();
+    public void writeImage(byte[] data, String mimeType, int width, int height, boolean scaleToPage) throws DocumentExportException {
+        OdfDrawImage imageElement = addFrame(mimeType, width, height, scaleToPage);
+        String key = pictures.keyOf(data, mimeType);
+        String path = pictures.find(key);
+        if (path == null) {
+            path = pictures.add(key, mimeType);
+            // Not newImage: it decodes the picture and replaces the size of the frame
+            document.getPackage().insert(data, path, mimeType);
+            ExportMetrics metrics = getMetrics();
+            if (metrics != null) {
+                metrics.imageStored(data.length);
             }
-
-            frame.setSvgWidthAttribute(""+DistanceUnit.IN.fromPoints(imgWidth)+"in");
-            frame.setSvgHeightAttribute("" + DistanceUnit.IN.fromPoints(imgHeight) + "in");
-
-            OdfDrawImage imageElement = (OdfDrawImage)frame.newDrawImageElement();
-            byte[] bytes = imageToBytes(image, "png", Color.white, imgWidth, imgHeight);
-            imageCounter++;
-            imageElement.newImage(new ByteArrayInputStream(bytes),"Pictures/image"+imageCounter+".png", "image/png");
-
-            currentParagraph.getOdfElement().appendChild(frame);
-
-        } catch (Exception e) {
-            throw new DocumentExportException("Could not write image", e);
         }
+        linkImage(imageElement, path);
     }
 
     /**
-     * TODO Move to utility class?
-     * Extract the content data (bytes) from the given image.
-     * @param icon image to get bytes for
-     * @param format desired format for image
-     * @param background Color to use as background if transparency in image
-     * @param width Desired width of the image in the byte array
-     * @param height Desired width of the image in the byte array
-     * @return the bytes of the image
-     * @throws IOException
+     * The picture is added to the package in endFile, when it is encoded.
      */
-    private byte[] imageToBytes(ImageIcon icon, String format, Color background, int width, int height) throws IOException {
-        Iterator writers = ImageIO.getImageWritersByFormatName(format);
-        ImageWriter writer = (ImageWriter)writers.next();
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        ImageOutputStream ios = ImageIO.createImageOutputStream(output);
-        writer.setOutput(ios);
-        BufferedImage img;
-        if("png".equalsIgnoreCase(format) || "gif".equalsIgnoreCase(format)){
-            img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        } else {
-            img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        }
-        WaitingObserver observer = new WaitingObserver();
-        if(!img.getGraphics().drawImage(icon.getImage(), 0, 0, width,height, background, observer)) {
-            try {
-                observer.waitForDone();
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                return new byte[0];
-            }
-        }
-        IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(img), writer.getDefaultWriteParam());
-        if(format.equalsIgnoreCase("jpg")) {
-            Element tree = (Element)metadata.getAsTree("javax_imageio_jpeg_image_1.0");
-            Element jfif = (Element)tree.getElementsByTagName("app0JFIF").item(0);
-            jfif.setAttribute("Xdensity", Integer.toString(72));
-            jfif.setAttribute("Ydensity", Integer.toString(72));
-            jfif.setAttribute("resUnits", "1");
-            metadata.setFromTree("javax_imageio_jpeg_image_1.0", tree);
-        } else {
-            double dotsPerMilli = 7.2 / 2.54;
-            IIOMetadataNode horiz = new IIOMetadataNode("HorizontalPixelSize");
-            horiz.setAttribute("value", Double.toString(dotsPerMilli));
-            IIOMetadataNode vert = new IIOMetadataNode("VerticalPixelSize");
-            vert.setAttribute("value", Double.toString(dotsPerMilli));
-            IIOMetadataNode dim = new IIOMetadataNode("Dimension");
-            dim.appendChild(horiz);
-            dim.appendChild(vert);
-            IIOMetadataNode root = new IIOMetadataNode("javax_imageio_1.0");
-            root.appendChild(dim);
-            metadata.mergeTree("javax_imageio_1.0", root);
+    @Override
+    protected void writePendingImage(Future<byte[]> data, String mimeType, int width, int height,
+                                     boolean scaleToPage) throws DocumentExportException {
+        pendingPictures.storeCompleted();
+        OdfDrawImage imageElement = addFrame(mimeType, width, height, scaleToPage);
+        String path = pendingPictures.find(data);
+        if (path == null) {
+            path = pictures.reserve(mimeType);
+            pendingPictures.add(data, path, mimeType);
         }
-
-        writer.write(null, new IIOImage(img,null,metadata),null);
-        return output.toByteArray();
+        linkImage(imageElement, path);
     }
 
-    private static class ODFStyleWrapper {
-        private Style style;
-        private String name;
-        private OdfStyle odfStyle;
-
-        public void applyToStyle() {
-            if (style.isBold()) {
-                odfStyle.setProperty(OdfTextProperties.FontWeight, "bold");
-            }
-            if (style.isItalic()) {
-                odfStyle.setProperty(OdfTextProperties.FontStyle, "italic");
+    /**
+     * Refer to the stored picture in the frames of pictures that turned out to be equal to it
+     *
+     * @param aliases the path of the stored picture by the path the frames refer to
+     */
+    private void relinkImages(Map<String, String> aliases) throws Exception {
+        String xlinkNamespace = OdfDocumentNamespace.XLINK.getUri();
+        NodeList images = document.getContentDom().getElementsByTagNameNS(OdfDocumentNamespace.DRAW.getUri(), "image");
+        for (int i = 0; i < images.getLength(); i++) {
+            Element image = (Element) images.item(i);
+            String path = aliases.get(image.getAttributeNS(xlinkNamespace, "href"));
+            if (path != null) {
+                image.setAttributeNS(xlinkNamespace, "xlink:href", path);
             }
-            if (style.isUnderline()) {
-                odfStyle.setProperty(OdfTextProperties.TextUnderlineStyle, "solid");
-                odfStyle.setProperty(OdfTextProperties.TextUnderlineWidth, "auto");
-                odfStyle.setProperty(OdfTextProperties.TextUnderlineColor, "font-color");
+        }
+    }
 
+    private static void linkImage(OdfDrawImage imageElement, String path) {
+        imageElement.setXlinkHrefAttribute(path);
+        imageElement.setXlinkTypeAttribute("simple");
+        imageElement.setXlinkShowAttribute("embed");
+        imageElement.setXlinkActuateAttribute("onLoad");
+    }
+
+    private OdfDrawImage addFrame(String mimeType, int width, int height, boolean scaleToPage) throws DocumentExportException {
+        if(scaleToPage){
+            logger.debug("Add scaled image " + mimeType);
+        } else {
+            logger.debug("Add image " + mimeType);
+        }
+        if(currentParagraph == null) {
+            newParagraph(0,Alignment.CENTER,null,0.0f,0.0f,LineSpacing.SINGLE);
+        }
+        // Again, we have to do this by hand. Go ODF toolkit :(
+        OdfFileDom odfFileDom = (OdfFileDom) currentParagraph.getOdfElement().getOwnerDocument();
+        OdfDrawFrame frame = odfFileDom.newOdfElement(OdfDrawFrame.class);
+
+        float imgWidth = width;
+        float imgHeight = height;
+        if(scaleToPage) {
+            frame.setTextAnchorTypeAttribute("paragraph");
+            if (currentSectionStyle != null) {
+                float scale = currentSectionStyle.scaleToPage(width, height);
+                imgWidth = width * scale;
+                imgHeight = height * scale;
             }
-            if (StringUtils.isNotEmpty(style.getFontName())) {
-                odfStyle.setProperty(OdfTextProperties.FontFamily, style.getFontName());
-            }
-            if (style.getFontSize() != null && style.getFontSize() > 0) {
-                odfStyle.setProperty(OdfTextProperties.FontSize, "" + style.getFontSize());
-            }
-            if (style.getColor() != null) {
-                Color color = new Color(style.getColor());
-                odfStyle.setProperty(OdfTextProperties.Color, "#" + rgbHexValue(color));
-            }
+        } else {
+            frame.setTextAnchorTypeAttribute("as-char");
         }
-    }
 
-    private static class WaitingObserver implements ImageObserver {
+        frame.setSvgWidthAttribute(""+DistanceUnit.IN.fromPoints(imgWidth)+"in");
+        frame.setSvgHeightAttribute("" + DistanceUnit.IN.fromPoints(imgHeight) + "in");
 
-        private final CountDownLatch latch = new CountDownLatch(1);
+        OdfDrawImage imageElement = (OdfDrawImage)frame.newDrawImageElement();
+        currentParagraph.getOdfElement().appendChild(frame);
+        return imageElement;
+    }
 
-        public void waitForDone() throws InterruptedException {
-            synchronized (latch) {
-                latch.wait();
-            }
+    private static void applyToStyle(Style style, OdfStyle odfStyle) {
+        if (style.isBold()) {
+            odfStyle.setProperty(OdfTextProperties.FontWeight, "bold");
         }
+        if (style.isItalic()) {
+            odfStyle.setProperty(OdfTextProperties.FontStyle, "italic");
+        }
+        if (style.isUnderline()) {
+            odfStyle.setProperty(OdfTextProperties.TextUnderlineStyle, "solid");
+            odfStyle.setProperty(OdfTextProperties.TextUnderlineWidth, "auto");
+            odfStyle.setProperty(OdfTextProperties.TextUnderlineColor, "font-color");
 
-        @Override
-        public boolean imageUpdate(Image img, int infoflags, int x, int y, int width, int height) {
-            if ((infoflags & (ALLBITS)) != 0) {
-                latch.countDown();
-            }
-            return (infoflags & (ALLBITS|ABORT)) == 0;
+        }
+        if (StringUtils.isNotEmpty(style.getFontName())) {
+            odfStyle.setProperty(OdfTextProperties.FontFamily, style.getFontName());
+        }
+        if (style.getFontSize() != null && style.getFontSize() > 0) {
+            odfStyle.setProperty(OdfTextProperties.FontSize, "" + style.getFontSize());
+        }
+        if (style.getColor() != null) {
+            Color color = new Color(style.getColor());
+            odfStyle.setProperty(OdfTextProperties.Color, "#" + rgbHexValue(color));
         }
     }
 }
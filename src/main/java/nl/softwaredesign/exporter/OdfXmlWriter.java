@@ -0,0 +1,234 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Thin wrapper around a StAX writer for writing ODF and Office Open XML using qualified names
+ * ("text:p", "style:name") instead of separate prefixes and namespace URIs. Names without a
+ * prefix are written without one, in the default namespace of the element.
+ */
+final class OdfXmlWriter {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final XMLOutputFactory factory = XMLOutputFactory.newInstance();
+    private static final Map<String, String> namespaces = new HashMap<>();
+
+    static {
+        namespaces.put("office", "urn:oasis:names:tc:opendocument:xmlns:office:1.0");
+        namespaces.put("style", "urn:oasis:names:tc:opendocument:xmlns:style:1.0");
+        namespaces.put("text", "urn:oasis:names:tc:opendocument:xmlns:text:1.0");
+        namespaces.put("table", "urn:oasis:names:tc:opendocument:xmlns:table:1.0");
+        namespaces.put("draw", "urn:oasis:names:tc:opendocument:xmlns:drawing:1.0");
+        namespaces.put("fo", "urn:oasis:names:tc:opendocument:xmlns:xsl-fo-compatible:1.0");
+        namespaces.put("xlink", "http://www.w3.org/1999/xlink");
+        namespaces.put("dc", "http://purl.org/dc/elements/1.1/");
+        namespaces.put("meta", "urn:oasis:names:tc:opendocument:xmlns:meta:1.0");
+        namespaces.put("svg", "urn:oasis:names:tc:opendocument:xmlns:svg-compatible:1.0");
+        namespaces.put("manifest", "urn:oasis:names:tc:opendocument:xmlns:manifest:1.0");
+        namespaces.put("xml", "http://www.w3.org/XML/1998/namespace");
+        namespaces.put("w", "http://schemas.openxmlformats.org/wordprocessingml/2006/main");
+        namespaces.put("r", "http://schemas.openxmlformats.org/officeDocument/2006/relationships");
+        namespaces.put("wp", "http://schemas.openxmlformats.org/drawingml/2006/wordprocessingDrawing");
+        namespaces.put("a", "http://schemas.openxmlformats.org/drawingml/2006/main");
+        namespaces.put("pic", "http://schemas.openxmlformats.org/drawingml/2006/picture");
+        namespaces.put("cp", "http://schemas.openxmlformats.org/package/2006/metadata/core-properties");
+        namespaces.put("dcterms", "http://purl.org/dc/terms/");
+        namespaces.put("xsi", "http://www.w3.org/2001/XMLSchema-instance");
+    }
+
+    private final Writer out;
+    private final XMLStreamWriter xml;
+    private final Target target;
+
+    OdfXmlWriter(Writer out) throws XMLStreamException {
+        this(out, null);
+    }
+
+    private OdfXmlWriter(Writer out, Target target) throws XMLStreamException {
+        this.out = out;
+        this.xml = factory.createXMLStreamWriter(out);
+        this.target = target;
+    }
+
+    /**
+     * Create a writer that writes UTF-8 encoded XML to the given stream.
+     * Closing the writer does not close the stream.
+     */
+    static OdfXmlWriter create(OutputStream out) throws XMLStreamException {
+        Target target = new Target(out);
+        return new OdfXmlWriter(new BufferedWriter(target), target);
+    }
+
+    static String namespaceFor(String prefix) {
+        return namespaces.get(prefix);
+    }
+
+    OdfXmlWriter startDocument() throws XMLStreamException {
+        xml.writeStartDocument("UTF-8", "1.0");
+        return this;
+    }
+
+    OdfXmlWriter endDocument() throws XMLStreamException {
+        xml.writeEndDocument();
+        return this;
+    }
+
+    OdfXmlWriter start(String qName) throws XMLStreamException {
+        int colon = qName.indexOf(':');
+        if (colon < 0) {
+            xml.writeStartElement(qName);
+            return this;
+        }
+        xml.writeStartElement(qName.substring(0, colon), qName.substring(colon + 1),
+                namespaces.get(qName.substring(0, colon)));
+        return this;
+    }
+
+    OdfXmlWriter empty(String qName) throws XMLStreamException {
+        int colon = qName.indexOf(':');
+        if (colon < 0) {
+            xml.writeEmptyElement(qName);
+            return this;
+        }
+        xml.writeEmptyElement(qName.substring(0, colon), qName.substring(colon + 1),
+                namespaces.get(qName.substring(0, colon)));
+        return this;
+    }
+
+    OdfXmlWriter end() throws XMLStreamException {
+        xml.writeEndElement();
+        return this;
+    }
+
+    /**
+     * Declare the namespaces for the given prefixes on the current element.
+     */
+    OdfXmlWriter declare(String... prefixes) throws XMLStreamException {
+        for (String prefix : prefixes) {
+            xml.writeNamespace(prefix, namespaces.get(prefix));
+        }
+        return this;
+    }
+
+    /**
+     * Declare the default namespace on the current element, for the names without a prefix
+     */
+    OdfXmlWriter declareDefault(String namespace) throws XMLStreamException {
+        xml.writeDefaultNamespace(namespace);
+        return this;
+    }
+
+    OdfXmlWriter attr(String qName, String value) throws XMLStreamException {
+        if (value != null) {
+            int colon = qName.indexOf(':');
+            if (colon < 0) {
+                xml.writeAttribute(qName, value);
+                return this;
+            }
+            xml.writeAttribute(qName.substring(0, colon), namespaces.get(qName.substring(0, colon)),
+                    qName.substring(colon + 1), value);
+        }
+        return this;
+    }
+
+    OdfXmlWriter text(String text) throws XMLStreamException {
+        xml.writeCharacters(text);
+        return this;
+    }
+
+    OdfXmlWriter text(char[] text, int start, int length) throws XMLStreamException {
+        xml.writeCharacters(text, start, length);
+        return this;
+    }
+
+    /**
+     * Write an already serialized XML fragment at the current position.
+     */
+    OdfXmlWriter raw(String fragment) throws XMLStreamException {
+        // Writing (empty) characters closes a pending start tag
+        xml.writeCharacters("");
+        xml.flush();
+        try {
+            out.write(fragment);
+        } catch (IOException e) {
+            throw new XMLStreamException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Write everything that follows to another stream. What is written so far is flushed
+     * to the current stream first. Only for writers made with {@link #create(OutputStream)}.
+     */
+    void redirect(OutputStream stream) throws XMLStreamException {
+        raw("");
+        flush();
+        target.writer = new OutputStreamWriter(stream, UTF8);
+    }
+
+    void flush() throws XMLStreamException {
+        xml.flush();
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new XMLStreamException(e);
+        }
+    }
+
+    /**
+     * The encoder below the buffer, which can be replaced by {@link #redirect(OutputStream)}
+     */
+    private static class Target extends Writer {
+        private Writer writer;
+
+        private Target(OutputStream out) {
+            writer = new OutputStreamWriter(out, UTF8);
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            writer.write(buffer, offset, length);
+        }
+
+        @Override
+        public void write(String text, int offset, int length) throws IOException {
+            writer.write(text, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writer.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+}
@@ -15,6 +15,8 @@ limitations under the License.
  */
 package nl.softwaredesign.exporter;
 
+import java.util.Arrays;
+
 /**
  * Settings object for representing page settings: header, footer, margins, orientation, etc.
  */
@@ -44,6 +46,34 @@ public class PageSettings {
     private boolean lineBelowFooter;
     private boolean lineAboveFooter;
 
+    public PageSettings() {
+    }
+
+    /**
+     * Create a copy of the given settings, including copies of their styles
+     *
+     * @param other the settings to copy
+     */
+    public PageSettings(PageSettings other) {
+        this.id = other.id;
+        this.headerLeft = other.headerLeft;
+        this.headerCenter = other.headerCenter;
+        this.headerRight = other.headerRight;
+        this.footerLeft = other.footerLeft;
+        this.footerCenter = other.footerCenter;
+        this.footerRight = other.footerRight;
+        this.headerLeftStyle = copy(other.headerLeftStyle);
+        this.headerCenterStyle = copy(other.headerCenterStyle);
+        this.headerRightStyle = copy(other.headerRightStyle);
+        this.footerLeftStyle = copy(other.footerLeftStyle);
+        this.footerCenterStyle = copy(other.footerCenterStyle);
+        this.footerRightStyle = copy(other.footerRightStyle);
+        this.lineBelowHeader = other.lineBelowHeader;
+        this.lineAboveHeader = other.lineAboveHeader;
+        this.lineBelowFooter = other.lineBelowFooter;
+        this.lineAboveFooter = other.lineAboveFooter;
+    }
+
     public Integer getId() {
         return id;
     }
@@ -179,4 +209,27 @@ public class PageSettings {
     public void setLineAboveFooter(boolean lineAboveFooter) {
         this.lineAboveFooter = lineAboveFooter;
     }
+
+    private static Style copy(Style style) {
+        return style == null ? null : new Style(style);
+    }
+
+    private Object[] values() {
+        return new Object[]{id, headerLeft, headerCenter, headerRight, footerLeft, footerCenter, footerRight,
+                headerLeftStyle, headerCenterStyle, headerRightStyle, footerLeftStyle, footerCenterStyle,
+                footerRightStyle, lineBelowHeader, lineAboveHeader, lineBelowFooter, lineAboveFooter};
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(values());
+    }
+
+    /**
+     * Two page settings are equal when all their settings are equal
+     */
+    @Override
+    public boolean equals(Object obj) {
+        return this == obj || obj instanceof PageSettings && Arrays.equals(values(), ((PageSettings) obj).values());
+    }
 }
@@ -0,0 +1,67 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+/**
+ * The settings of a paragraph registered with registerParagraphFormat
+ */
+final class ParagraphFormat {
+
+    final int indent;
+    final Alignment alignment;
+    final ListType listType;
+    final float firstLineIndent;
+    final float indentSize;
+    final LineSpacing spacing;
+
+    ParagraphFormat(int indent, Alignment alignment, ListType listType,
+                    float firstLineIndent, float indentSize, LineSpacing spacing) {
+        this.indent = indent;
+        this.alignment = alignment;
+        this.listType = listType;
+        this.firstLineIndent = firstLineIndent;
+        this.indentSize = indentSize;
+        this.spacing = spacing;
+    }
+
+    @Override
+    public int hashCode() {
+        int hashcode = indent;
+        hashcode = 31 * hashcode + (alignment == null ? 0 : alignment.hashCode());
+        hashcode = 31 * hashcode + (listType == null ? 0 : listType.hashCode());
+        hashcode = 31 * hashcode + Float.floatToIntBits(firstLineIndent);
+        hashcode = 31 * hashcode + Float.floatToIntBits(indentSize);
+        hashcode = 31 * hashcode + (spacing == null ? 0 : spacing.hashCode());
+        return hashcode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ParagraphFormat)) {
+            return false;
+        }
+        ParagraphFormat other = (ParagraphFormat) obj;
+        return indent == other.indent &&
+                alignment == other.alignment &&
+                listType == other.listType &&
+                Float.floatToIntBits(firstLineIndent) == Float.floatToIntBits(other.firstLineIndent) &&
+                Float.floatToIntBits(indentSize) == Float.floatToIntBits(other.indentSize) &&
+                spacing == other.spacing;
+    }
+}
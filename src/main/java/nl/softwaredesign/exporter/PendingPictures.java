@@ -0,0 +1,156 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Pictures that are referenced by the document but are still being encoded.
+ * A picture is stored as soon as it is encoded, so the encoded data is not kept in memory.
+ * A picture that is added more than once is stored once, and so is a picture that turns
+ * out to be equal to another one when it is encoded.
+ */
+final class PendingPictures {
+
+    /**
+     * Stores the encoded pictures in the document
+     */
+    interface Store {
+
+        void store(String path, String mimeType, byte[] data) throws IOException;
+    }
+
+    private final PictureIndex index;
+    private final Store store;
+    private final Map<Future<byte[]>, Picture> pictures = new LinkedHashMap<>();
+    private final Map<String, String> aliases = new HashMap<>();
+
+    /**
+     * @param index the pictures of the document, by content
+     * @param store stores a picture that is encoded
+     */
+    PendingPictures(PictureIndex index, Store store) {
+        this.index = index;
+        this.store = store;
+    }
+
+    /**
+     * @return the path of the picture that is encoded by the given task, or null if it was not added
+     * or is stored already
+     */
+    String find(Future<byte[]> data) {
+        Picture picture = pictures.get(data);
+        return picture == null ? null : picture.path;
+    }
+
+    void add(Future<byte[]> data, String path, String mimeType) {
+        pictures.put(data, new Picture(data, path, mimeType));
+    }
+
+    /**
+     * Store the pictures that are encoded by now, without waiting for the others.
+     * A picture that could not be encoded is reported.
+     */
+    void storeCompleted() throws DocumentExportException {
+        Iterator<Picture> pending = pictures.values().iterator();
+        while (pending.hasNext()) {
+            Picture picture = pending.next();
+            if (picture.data.isDone()) {
+                store(picture);
+                pending.remove();
+            }
+        }
+    }
+
+    /**
+     * Wait until all pictures are encoded and store them
+     */
+    void storeAll() throws DocumentExportException {
+        for (Picture picture : pictures.values()) {
+            store(picture);
+        }
+        pictures.clear();
+    }
+
+    /**
+     * @return the path of every picture that was equal to a stored picture, with the path of that
+     * picture. The document must refer to that path instead.
+     */
+    Map<String, String> getAliases() {
+        return Collections.unmodifiableMap(aliases);
+    }
+
+    void clear() {
+        pictures.clear();
+        aliases.clear();
+    }
+
+    private void store(Picture picture) throws DocumentExportException {
+        byte[] data = picture.get();
+        String path = index.addReserved(index.keyOf(data, picture.mimeType), picture.path);
+        if (!path.equals(picture.path)) {
+            aliases.put(picture.path, path);
+            return;
+        }
+        try {
+            store.store(picture.path, picture.mimeType, data);
+        } catch (IOException e) {
+            throw new DocumentExportException("Could not store " + picture.path, e);
+        }
+    }
+
+    private static class Picture {
+        final Future<byte[]> data;
+        final String path;
+        final String mimeType;
+
+        private Picture(Future<byte[]> data, String path, String mimeType) {
+            this.data = data;
+            this.path = path;
+            this.mimeType = mimeType;
+        }
+
+        byte[] get() throws DocumentExportException {
+            return PendingPictures.get(data, path);
+        }
+    }
+
+    /**
+     * Wait for an encoded picture
+     *
+     * @param name name of the picture used in the error message
+     */
+    static byte[] get(Future<byte[]> data, String name) throws DocumentExportException {
+        try {
+            return data.get();
+        } catch (ExecutionException e) {
+            throw new DocumentExportException("Could not encode " + name, e.getCause());
+        } catch (CancellationException e) {
+            throw new DocumentExportException("Encoding of " + name + " was cancelled", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DocumentExportException("Interrupted while encoding " + name, e);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The pictures stored in a document, by content. A picture that is added more than
+ * once is stored once and every frame refers to the same path.
+ */
+final class PictureIndex {
+
+    private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Map<String, String> paths = new HashMap<>();
+    private final MessageDigest digest;
+    private final String folder;
+    private int counter;
+
+    PictureIndex() {
+        this("Pictures/");
+    }
+
+    /**
+     * @param folder the folder of the pictures in the package, ending with a slash
+     */
+    PictureIndex(String folder) {
+        this.folder = folder;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the key of the picture: a hash of the type and content
+     */
+    String keyOf(byte[] data, String mimeType) {
+        digest.reset();
+        digest.update(mimeType.getBytes(OdfXmlWriter.UTF8));
+        byte[] hash = digest.digest(data);
+        char[] key = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            key[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+            key[i * 2 + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(key);
+    }
+
+    /**
+     * @return the path of the picture with the given key, or null if it is not stored yet
+     */
+    String find(String key) {
+        return paths.get(key);
+    }
+
+    /**
+     * Allocate the path for a new picture
+     */
+    String add(String key, String mimeType) {
+        String path = reserve(mimeType);
+        paths.put(key, path);
+        return path;
+    }
+
+    /**
+     * Store a picture under the path that was reserved for it before its content was known
+     *
+     * @return the path of an equal picture that is stored already, or the reserved path
+     */
+    String addReserved(String key, String reservedPath) {
+        String path = paths.get(key);
+        if (path == null) {
+            paths.put(key, reservedPath);
+            return reservedPath;
+        }
+        return path;
+    }
+
+    /**
+     * Allocate the path for a picture of which the content is not known yet
+     */
+    String reserve(String mimeType) {
+        counter++;
+        return folder + "image" + counter + "." + ImageUtil.extensionFor(mimeType);
+    }
+
+    /**
+     * Mark a path as used, for a picture that is already in the package, so new
+     * pictures get other paths
+     */
+    void reservePath(String path) {
+        String prefix = folder + "image";
+        int dot = path.lastIndexOf('.');
+        if (path.startsWith(prefix) && dot > prefix.length()) {
+            try {
+                counter = Math.max(counter, Integer.parseInt(path.substring(prefix.length(), dot)));
+            } catch (NumberFormatException e) {
+                // Not a name given by this index
+            }
+        }
+    }
+
+    void clear() {
+        paths.clear();
+        counter = 0;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Temporary storage for the pictures of a streamed package. The zip entries
+ * of a package can only be written one after the other, so pictures added while
+ * the content is being written are kept in a temporary file until the content is done.
+ */
+final class PictureSpool implements Closeable {
+
+    private final static Logger logger = Logger.getLogger(PictureSpool.class);
+
+    private File file;
+    private OutputStream out;
+    private final List<Picture> pictures = new ArrayList<>();
+
+    /**
+     * Append a picture to the spool
+     * @param path the path of the picture in the package
+     * @param mediaType the mime type of the picture
+     * @param data the encoded picture
+     */
+    void add(String path, String mediaType, byte[] data) throws IOException {
+        if (out == null) {
+            file = File.createTempFile("sdnl-pictures", ".tmp");
+            out = new BufferedOutputStream(new FileOutputStream(file));
+        }
+        out.write(data);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        pictures.add(new Picture(path, mediaType, data.length, crc.getValue()));
+    }
+
+    List<Picture> getPictures() {
+        return pictures;
+    }
+
+    /**
+     * Write all spooled pictures as separate entries to the package
+     * @param compression decides which pictures are stored and which are deflated
+     */
+    void copyTo(ZipOutputStream zip, CompressionPolicy compression) throws IOException {
+        if (out == null) {
+            return;
+        }
+        out.close();
+        out = null;
+        byte[] buffer = new byte[8192];
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            for (Picture picture : pictures) {
+                zip.putNextEntry(compression.newEntry(picture.path, picture.length, picture.crc));
+                long remaining = picture.length;
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new IOException("Picture spool is truncated at " + picture.path);
+                    }
+                    zip.write(buffer, 0, read);
+                    remaining -= read;
+                }
+                zip.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * Remove the temporary file
+     */
+    @Override
+    public void close() {
+        try {
+            if (out != null) {
+                out.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Could not close picture spool", e);
+        }
+        out = null;
+        if (file != null && !file.delete()) {
+            file.deleteOnExit();
+        }
+        file = null;
+        pictures.clear();
+    }
+
+    static class Picture {
+        final String path;
+        final String mediaType;
+        final long length;
+        final long crc;
+
+        Picture(String path, String mediaType, long length, long crc) {
+            this.path = path;
+            this.mediaType = mediaType;
+            this.length = length;
+            this.crc = crc;
+        }
+    }
+}
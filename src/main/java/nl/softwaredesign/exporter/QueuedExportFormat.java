@@ -0,0 +1,472 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Base class for formats that pass the calls to other formats on their own threads.
+ * <p>
+ * Every format gets the calls of a document through a bounded queue and a thread that
+ * makes the calls. A call returns as soon as it is queued for all formats; when the queue
+ * of a slow format is full, the caller waits for that format. When a format fails, the
+ * document is discarded and the next call throws a DocumentExportException with the cause.
+ * A format starts on the next document when it has completed the one before it.
+ * <p>
+ * Arguments that can be changed after the call are copied. The data of an image must not be
+ * changed after it is added.
+ */
+abstract class QueuedExportFormat extends AbstractExportFormat {
+
+    private final static Logger logger = Logger.getLogger(QueuedExportFormat.class);
+
+    private final static ExecutorService workers = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "queued-export-format");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final List<ExportFormat> formats;
+    private final int queueSize;
+    private Worker[] running;
+    private AtomicReference<Worker> failed;
+    // The workers of the previous document, a format is used by one document at a time
+    private Worker[] previous;
+
+    /**
+     * @param queueSize maximum number of calls queued for a format
+     * @param formats   the formats to pass the calls to
+     */
+    QueuedExportFormat(int queueSize, ExportFormat... formats) {
+        if (formats.length == 0) {
+            throw new IllegalArgumentException("At least one format is required");
+        }
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("queueSize must be at least 1");
+        }
+        this.formats = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(formats)));
+        this.queueSize = queueSize;
+    }
+
+    public List<ExportFormat> getFormats() {
+        return formats;
+    }
+
+    /**
+     * Discard the current document, if any. The formats stop after the call they are
+     * working on; this is also done by startNewFile and when a format fails.
+     */
+    public void reset() {
+        closeTargetFile();
+        if (running != null) {
+            Call stop = new Call(true) {
+                @Override
+                void run(Worker worker) {
+                }
+            };
+            for (Worker worker : running) {
+                worker.queue.clear();
+                worker.queue.offer(stop);
+            }
+            running = null;
+        }
+        getTableOfContents().clear();
+    }
+
+    /**
+     * Start the workers for a new document
+     *
+     * @param targets a File, OutputStream or WritableByteChannel for every format
+     */
+    void start(final Object[] targets, final String author, final String title, final String language) throws IOException {
+        if (targets.length != formats.size()) {
+            throw new IllegalArgumentException("Expected " + formats.size() + " targets, not " + targets.length);
+        }
+        logger.debug("Start file");
+        reset();
+        failed = new AtomicReference<>();
+        running = new Worker[formats.size()];
+        for (int i = 0; i < running.length; i++) {
+            running[i] = new Worker(i, formats.get(i), previous == null ? null : previous[i], failed);
+        }
+        previous = running;
+        for (Worker worker : running) {
+            worker.future = workers.submit(worker);
+        }
+        try {
+            send(new Call(false) {
+                @Override
+                void run(Worker worker) throws Exception {
+                    Object target = targets[worker.index];
+                    if (target instanceof File) {
+                        worker.format.startNewFile((File) target, author, title, language);
+                    } else if (target instanceof OutputStream) {
+                        worker.format.startNewFile((OutputStream) target, author, title, language);
+                    } else {
+                        worker.format.startNewFile((WritableByteChannel) target, author, title, language);
+                    }
+                }
+            });
+        } catch (DocumentExportException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Queue the end of the document
+     *
+     * @param targets the targets passed to start
+     * @return for every format, the task that completes when the format has written the document;
+     * get() throws an ExecutionException with the exception of a format that failed
+     */
+    List<Future<Void>> finish(final Object[] targets, final boolean firstPass) throws IOException {
+        if (targets.length != formats.size()) {
+            throw new IllegalArgumentException("Expected " + formats.size() + " targets, not " + targets.length);
+        }
+        logger.debug("End file");
+        try {
+            send(new Call(true) {
+                @Override
+                void run(Worker worker) throws Exception {
+                    Object target = targets[worker.index];
+                    if (target instanceof File) {
+                        worker.format.endFile((File) target, firstPass);
+                    } else if (target instanceof OutputStream) {
+                        worker.format.endFile((OutputStream) target, firstPass);
+                    } else {
+                        worker.format.endFile((WritableByteChannel) target, firstPass);
+                    }
+                }
+            });
+        } catch (DocumentExportException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        List<Future<Void>> done = new ArrayList<>(running.length);
+        for (Worker worker : running) {
+            done.add(worker.future);
+        }
+        running = null;
+        return done;
+    }
+
+    /**
+     * Wait until a format has written the document
+     *
+     * @param format the number of the format
+     */
+    static void await(Future<Void> done, int format) throws IOException {
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for format " + format, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Format " + format + " failed: " + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void startSection(SectionStyle sectionStyle) throws DocumentExportException {
+        final SectionStyle copy = new SectionStyle(sectionStyle);
+        send(new Call(false) {
+            @Override
+            void run(Worker worker) throws Exception {
+                worker.format.startSection(copy);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void endSection() throws DocumentExportException {
+        send(new Call(false) {
+            @Override
+            void run(Worker worker) throws Exception {
+                worker.format.endSection();
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeText(String text, Style style, Object bookmarkId, String bookmarkName) throws DocumentExportException {
+        sendText(text, style == null ? null : new Style(style), bookmarkId, bookmarkName);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Registered styles cannot change, so they are not copied.
+     */
+    @Override
+    public void writeText(String text, int style, Object bookmarkId, String bookmarkName) throws DocumentExportException {
+        sendText(text, getRegisteredStyle(style), bookmarkId, bookmarkName);
+    }
+
+    private void sendText(final String text, final Style style, final Object bookmarkId, final String bookmarkName)
+            throws DocumentExportException {
+        send(new Call(false) {
+            @Override
+            void run(Worker worker) throws Exception {
+                worker.format.writeText(text, style, worker.bookmarkId(bookmarkId), bookmarkName);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The id is passed to the formats as the id each of them returned for the item.
+     */
+    @Override
+    public Object addTOCItem(final String text, final int level) throws DocumentExportException {
+        final Object id = super.addTOCItem(text, level);
+        send(new Call(false) {
+            @Override
+            void run(Worker worker) throws Exception {
+                worker.tocItems.put(id, worker.format.addTOCItem(text, level));
+            }
+        });
+        return id;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeTableOfContents(final String title) throws DocumentExportException {
+        send(new Call(false) {
+            @Override
+            void run(Worker worker) throws Exception {
+                worker.format.writeTableOfContents(title);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writePageBreak() throws DocumentExportException {
+        send(new Call(false) {
+            @Override
+            void run(Worker worker) throws Exception {
+                worker.format.writePageBreak();
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void newParagraph(final int indent, final Alignment alignment, final ListType listType,
+                             final float firstLineIndent, final float indentSize, final LineSpacing spacing)
+            throws DocumentExportException {
+        send(new Call(false) {
+            @Override
+            void run(Worker worker) throws Exception {
+                worker.format.newParagraph(indent, alignment, listType, firstLineIndent, indentSize, spacing);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addNote(final String title, final String body, final String author, final String authorInitials)
+            throws DocumentExportException {
+        send(new Call(false) {
+            @Override
+            void run(Worker worker) throws Exception {
+                worker.format.addNote(title, body, author, authorInitials);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeImage(final byte[] data, final String mimeType, final int width, final int height,
+                           final boolean scaleToPage) throws DocumentExportException {
+        send(new Call(false) {
+            @Override
+            void run(Worker worker) throws Exception {
+                worker.format.writeImage(data, mimeType, width, height, scaleToPage);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The picture is passed on when it is encoded, the caller does not wait for it.
+     */
+    @Override
+    protected void writePendingImage(final Future<byte[]> data, final String mimeType, final int width, final int height,
+                                     final boolean scaleToPage) throws DocumentExportException {
+        send(new Call(false) {
+            @Override
+            void run(Worker worker) throws Exception {
+                worker.format.writeImage(PendingPictures.get(data, "image"), mimeType, width, height, scaleToPage);
+            }
+        });
+    }
+
+    /**
+     * Queue the call for every format, waiting while the queue of a format is full
+     */
+    private void send(Call call) throws DocumentExportException {
+        if (running == null) {
+            throw new DocumentExportException("No document started");
+        }
+        checkFailure();
+        try {
+            for (Worker worker : running) {
+                worker.queue.put(call);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reset();
+            throw new DocumentExportException("Interrupted while writing the document", e);
+        }
+    }
+
+    private void checkFailure() throws DocumentExportException {
+        Worker worker = failed.get();
+        if (worker != null) {
+            Exception cause = worker.error;
+            reset();
+            throw new DocumentExportException(worker + " failed: " + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * A call to make on every format
+     */
+    private abstract static class Call {
+        // The format is done with the document after this call
+        private final boolean last;
+
+        private Call(boolean last) {
+            this.last = last;
+        }
+
+        abstract void run(Worker worker) throws Exception;
+    }
+
+    /**
+     * Makes the calls of one document on one format, after the document before it is done
+     */
+    private class Worker implements Callable<Void> {
+        private final int index;
+        private final ExportFormat format;
+        // The worker of the previous document until it is done, so the workers do not form a chain
+        private Worker previous;
+        private final AtomicReference<Worker> failed;
+        private final BlockingQueue<Call> queue = new ArrayBlockingQueue<>(queueSize);
+        private final Map<Object, Object> tocItems = new HashMap<>();
+        private Future<Void> future;
+        private volatile Exception error;
+
+        private Worker(int index, ExportFormat format, Worker previous, AtomicReference<Worker> failed) {
+            this.index = index;
+            this.format = format;
+            this.previous = previous;
+            this.failed = failed;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            if (previous != null) {
+                try {
+                    previous.future.get();
+                } catch (ExecutionException e) {
+                    // Reported for the previous document
+                }
+                previous = null;
+            }
+            Call call;
+            do {
+                call = queue.take();
+                if (error == null) {
+                    try {
+                        call.run(this);
+                    } catch (Exception e) {
+                        logger.warn(this + " failed", e);
+                        error = e;
+                        failed.compareAndSet(null, this);
+                    }
+                }
+                // After a failure the queue is emptied, so the caller does not wait for this format
+            } while (!call.last);
+            if (error != null) {
+                throw error;
+            }
+            return null;
+        }
+
+        /**
+         * @return the id the format returned for a table of contents item, or the id itself
+         */
+        private Object bookmarkId(Object id) {
+            Object own = id == null ? null : tocItems.get(id);
+            return own == null ? id : own;
+        }
+
+        @Override
+        public String toString() {
+            String name = format.getClass().getSimpleName();
+            return "Format " + index + " (" + (name.length() > 0 ? name : format.getClass().getName()) + ")";
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes a zip package in which entries of an existing package can be copied as they are
+ * stored: the compressed bytes are copied without inflating and deflating them again.
+ * <p>
+ * Only what ODF packages need is supported: no ZIP64, no encryption and no comments.
+ */
+final class RawZipWriter {
+
+    private final static int LOCAL_HEADER = 0x04034b50;
+    private final static int CENTRAL_HEADER = 0x02014b50;
+    private final static int END_OF_DIRECTORY = 0x06054b50;
+    private final static int UTF8_FLAG = 0x0800;
+    private final static int DATA_DESCRIPTOR_FLAG = 0x0008;
+    private final static long MAX_SIZE = 0xFFFFFFFFL;
+
+    private final OutputStream out;
+    private final List<Entry> written = new ArrayList<>();
+    private final byte[] header = new byte[46];
+    private long position;
+
+    /**
+     * @param out the stream to write the package to, it is not closed
+     */
+    RawZipWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Read the entries of a package from its central directory
+     *
+     * @return the entries in the order of the directory
+     */
+    static List<Entry> readEntries(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        int tail = (int) Math.min(length, 22 + 0xFFFF);
+        byte[] buffer = new byte[tail];
+        file.seek(length - tail);
+        file.readFully(buffer);
+        int end = -1;
+        for (int i = tail - 22; i >= 0; i--) {
+            if (getInt(buffer, i) == END_OF_DIRECTORY) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new IOException("Not a zip package");
+        }
+        int count = getShort(buffer, end + 10);
+        long directorySize = getInt(buffer, end + 12) & MAX_SIZE;
+        long directoryOffset = getInt(buffer, end + 16) & MAX_SIZE;
+        if (count == 0xFFFF || directoryOffset == MAX_SIZE) {
+            throw new IOException("ZIP64 packages are not supported");
+        }
+        byte[] directory = new byte[(int) directorySize];
+        file.seek(directoryOffset);
+        file.readFully(directory);
+        List<Entry> entries = new ArrayList<>(count);
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            if (getInt(directory, offset) != CENTRAL_HEADER) {
+                throw new IOException("Invalid zip directory");
+            }
+            int nameLength = getShort(directory, offset + 28);
+            int extraLength = getShort(directory, offset + 30);
+            int commentLength = getShort(directory, offset + 32);
+            String name = new String(directory, offset + 46, nameLength, OdfXmlWriter.UTF8);
+            entries.add(new Entry(name,
+                    getShort(directory, offset + 8),
+                    getShort(directory, offset + 10),
+                    getInt(directory, offset + 12),
+                    getInt(directory, offset + 16) & MAX_SIZE,
+                    getInt(directory, offset + 20) & MAX_SIZE,
+                    getInt(directory, offset + 24) & MAX_SIZE,
+                    getInt(directory, offset + 42) & MAX_SIZE));
+            offset += 46 + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    /**
+     * Copy an entry of another package without decompressing it
+     *
+     * @param file  the package the entry was read from
+     * @param entry the entry, as returned by readEntries
+     */
+    void copy(RandomAccessFile file, Entry entry) throws IOException {
+        file.seek(entry.offset + 26);
+        int nameLength = file.readUnsignedByte() | file.readUnsignedByte() << 8;
+        int extraLength = file.readUnsignedByte() | file.readUnsignedByte() << 8;
+        file.seek(entry.offset + 30 + nameLength + extraLength);
+        Entry copy = new Entry(entry.name, (entry.flags & ~DATA_DESCRIPTOR_FLAG) | UTF8_FLAG, entry.method,
+                entry.time, entry.crc, entry.compressedSize, entry.size, position);
+        writeLocalHeader(copy);
+        byte[] buffer = new byte[64 * 1024];
+        long remaining = entry.compressedSize;
+        while (remaining > 0) {
+            int read = file.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new IOException("Unexpected end of package in " + entry.name);
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+        position += entry.compressedSize;
+    }
+
+    /**
+     * Write a new entry
+     *
+     * @param stored true to store the data, false to deflate it
+     * @param level  the deflate level
+     */
+    void write(String name, byte[] data, boolean stored, int level) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        byte[] compressed = data;
+        if (!stored) {
+            Deflater deflater = new Deflater(level, true);
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+                byte[] chunk = new byte[16 * 1024];
+                while (!deflater.finished()) {
+                    buffer.write(chunk, 0, deflater.deflate(chunk));
+                }
+                compressed = buffer.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+        Entry entry = new Entry(name, UTF8_FLAG, stored ? ZipEntry.STORED : ZipEntry.DEFLATED,
+                dosTime(System.currentTimeMillis()), crc.getValue(), compressed.length, data.length, position);
+        writeLocalHeader(entry);
+        out.write(compressed);
+        position += compressed.length;
+    }
+
+    /**
+     * Write the central directory. The stream is not closed.
+     */
+    void finish() throws IOException {
+        if (written.size() >= 0xFFFF) {
+            throw new IOException("The package has too many entries, ZIP64 is not supported");
+        }
+        long directoryOffset = position;
+        for (Entry entry : written) {
+            byte[] name = entry.name.getBytes(OdfXmlWriter.UTF8);
+            putInt(header, 0, CENTRAL_HEADER);
+            putShort(header, 4, 20);
+            putShort(header, 6, 20);
+            putShort(header, 8, entry.flags);
+            putShort(header, 10, entry.method);
+            putInt(header, 12, entry.time);
+            putInt(header, 16, (int) entry.crc);
+            putInt(header, 20, (int) entry.compressedSize);
+            putInt(header, 24, (int) entry.size);
+            putShort(header, 28, name.length);
+            putShort(header, 30, 0);
+            putShort(header, 32, 0);
+            putShort(header, 34, 0);
+            putShort(header, 36, 0);
+            putInt(header, 38, 0);
+            putInt(header, 42, (int) entry.offset);
+            out.write(header, 0, 46);
+            out.write(name);
+            position += 46 + name.length;
+        }
+        if (position > MAX_SIZE) {
+            throw new IOException("The package is too large, ZIP64 is not supported");
+        }
+        putInt(header, 0, END_OF_DIRECTORY);
+        putShort(header, 4, 0);
+        putShort(header, 6, 0);
+        putShort(header, 8, written.size());
+        putShort(header, 10, written.size());
+        putInt(header, 12, (int) (position - directoryOffset));
+        putInt(header, 16, (int) directoryOffset);
+        putShort(header, 20, 0);
+        out.write(header, 0, 22);
+        position += 22;
+    }
+
+    private void writeLocalHeader(Entry entry) throws IOException {
+        if (entry.offset > MAX_SIZE || entry.compressedSize > MAX_SIZE || entry.size > MAX_SIZE) {
+            throw new IOException("The package is too large, ZIP64 is not supported");
+        }
+        byte[] name = entry.name.getBytes(OdfXmlWriter.UTF8);
+        putInt(header, 0, LOCAL_HEADER);
+        putShort(header, 4, 20);
+        putShort(header, 6, entry.flags);
+        putShort(header, 8, entry.method);
+        putInt(header, 10, entry.time);
+        putInt(header, 14, (int) entry.crc);
+        putInt(header, 18, (int) entry.compressedSize);
+        putInt(header, 22, (int) entry.size);
+        putShort(header, 26, name.length);
+        putShort(header, 28, 0);
+        out.write(header, 0, 30);
+        out.write(name);
+        position += 30 + name.length;
+        written.add(entry);
+    }
+
+    /**
+     * @return the time in MS-DOS format: the date in the high and the time in the low 16 bits
+     */
+    static int dosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    private static int getShort(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) | (buffer[offset + 1] & 0xff) << 8;
+    }
+
+    private static int getInt(byte[] buffer, int offset) {
+        return getShort(buffer, offset) | getShort(buffer, offset + 2) << 16;
+    }
+
+    private static void putShort(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        putShort(buffer, offset, value);
+        putShort(buffer, offset + 2, value >>> 16);
+    }
+
+    /**
+     * An entry of a package, with the offset of its local header
+     */
+    static final class Entry {
+        final String name;
+        final int flags;
+        final int method;
+        final int time;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long offset;
+
+        private Entry(String name, int flags, int method, int time, long crc, long compressedSize, long size,
+                      long offset) {
+            this.name = name;
+            this.flags = flags;
+            this.method = method;
+            this.time = time;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,787 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the calls made on it in a compact binary log, and passes them on to another
+ * format if one is given. The log can be replayed into any format with {@link #replay},
+ * so a document that is expensive to gather can be gathered once and written many times.
+ * <p>
+ * Strings up to {@value #MAX_INTERNED_LENGTH} characters, styles, paragraph settings and
+ * pictures are written to the log once and referred to by number after that. Images are
+ * recorded encoded as PNG. The log is not closed by the format.
+ */
+public class RecordingExportFormat extends AbstractExportFormat {
+
+    private final static Logger logger = Logger.getLogger(RecordingExportFormat.class);
+
+    /**
+     * Longer strings (text, mostly) are written every time they are used
+     */
+    public final static int MAX_INTERNED_LENGTH = 64;
+
+    private final static int MAGIC = 0x53444e4c;
+    private final static int VERSION = 1;
+
+    private final static int START_FILE = 1;
+    private final static int END_FILE = 2;
+    private final static int START_SECTION = 3;
+    private final static int END_SECTION = 4;
+    private final static int TEXT = 5;
+    private final static int TOC_ITEM = 6;
+    private final static int TABLE_OF_CONTENTS = 7;
+    private final static int PAGE_BREAK = 8;
+    private final static int PARAGRAPH = 9;
+    private final static int NOTE = 10;
+    private final static int IMAGE = 11;
+
+    // References: 0 is null, then a new value, then the numbers of values written before
+    private final static int NULL = 0;
+    private final static int NEW = 1;
+    private final static int NEW_INTERNED = 2;
+    private final static int STRING_TABLE = 3;
+    private final static int TABLE = 2;
+
+    // Bookmarks of writeText
+    private final static int BOOKMARK_ITEM = 1;
+    private final static int BOOKMARK_OTHER = 2;
+
+    private final static int BOLD = 1;
+    private final static int ITALIC = 2;
+    private final static int UNDERLINE = 4;
+    private final static int FONT_SIZE = 8;
+    private final static int COLOR = 16;
+
+    private final static int LINE_BELOW_HEADER = 1;
+    private final static int LINE_ABOVE_HEADER = 2;
+    private final static int LINE_BELOW_FOOTER = 4;
+    private final static int LINE_ABOVE_FOOTER = 8;
+    private final static int ID = 16;
+
+    private final ExportFormat delegate;
+    private final DataOutputStream log;
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final Map<Style, Integer> styles = new HashMap<>();
+    private final Map<ParagraphFormat, Integer> paragraphFormats = new HashMap<>();
+    private final Map<String, Integer> pictures = new HashMap<>();
+    private final PictureIndex pictureKeys = new PictureIndex();
+    private final Map<Object, Integer> tocItems = new HashMap<>();
+
+    /**
+     * Record the calls without writing a document
+     *
+     * @param log stream to write the log to
+     */
+    public RecordingExportFormat(OutputStream log) {
+        this(log, null);
+    }
+
+    /**
+     * @param log      stream to write the log to
+     * @param delegate format that writes the document, or null to only record the calls
+     */
+    public RecordingExportFormat(OutputStream log, ExportFormat delegate) {
+        this.delegate = delegate;
+        this.log = new DataOutputStream(new BufferedOutputStream(log, DEFAULT_BUFFER_SIZE));
+        try {
+            this.log.writeInt(MAGIC);
+            this.log.writeByte(VERSION);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write export log", e);
+        }
+    }
+
+    /**
+     * Replay a log into a format. Every document in the log is written to the target.
+     *
+     * @param log    the log written by a RecordingExportFormat; the stream is not closed
+     * @param format the format to write the document with
+     * @param target the stream to write the document to; the stream is not closed
+     */
+    public static void replay(InputStream log, ExportFormat format, OutputStream target)
+            throws IOException, DocumentExportException {
+        new Replay(log, format, target).run();
+    }
+
+    /**
+     * @return the format the calls are passed to, or null if there is none
+     */
+    public ExportFormat getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void startNewFile(File targetFile, String author, String title, String language) throws IOException {
+        recordStart(author, title, language);
+        if (delegate != null) {
+            delegate.startNewFile(targetFile, author, title, language);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void startNewFile(OutputStream target, String author, String title, String language) throws IOException {
+        recordStart(author, title, language);
+        if (delegate != null) {
+            delegate.startNewFile(target, author, title, language);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void startNewFile(WritableByteChannel target, String author, String title, String language) throws IOException {
+        recordStart(author, title, language);
+        if (delegate != null) {
+            delegate.startNewFile(target, author, title, language);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void endFile(File targetFile, boolean firstPass) throws IOException {
+        recordEnd(firstPass);
+        if (delegate != null) {
+            delegate.endFile(targetFile, firstPass);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void endFile(OutputStream target, boolean firstPass) throws IOException {
+        recordEnd(firstPass);
+        if (delegate != null) {
+            delegate.endFile(target, firstPass);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void endFile(WritableByteChannel target, boolean firstPass) throws IOException {
+        recordEnd(firstPass);
+        if (delegate != null) {
+            delegate.endFile(target, firstPass);
+        }
+    }
+
+    private void recordStart(String author, String title, String language) throws IOException {
+        logger.debug("Record file");
+        getTableOfContents().clear();
+        tocItems.clear();
+        log.writeByte(START_FILE);
+        writeString(author);
+        writeString(title);
+        writeString(language);
+    }
+
+    private void recordEnd(boolean firstPass) throws IOException {
+        log.writeByte(END_FILE);
+        log.writeBoolean(firstPass);
+        log.flush();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void startSection(SectionStyle sectionStyle) throws DocumentExportException {
+        try {
+            log.writeByte(START_SECTION);
+            writeSectionStyle(sectionStyle);
+        } catch (IOException e) {
+            throw new DocumentExportException("Could not record section", e);
+        }
+        if (delegate != null) {
+            delegate.startSection(sectionStyle);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void endSection() throws DocumentExportException {
+        record(END_SECTION);
+        if (delegate != null) {
+            delegate.endSection();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeText(String text, Style style, Object bookmarkId, String bookmarkName) throws DocumentExportException {
+        try {
+            log.writeByte(TEXT);
+            writeString(text);
+            writeStyle(style);
+            Integer item = bookmarkId == null ? null : tocItems.get(bookmarkId);
+            if (item != null) {
+                log.writeByte(BOOKMARK_ITEM);
+                writeNumber(item);
+            } else if (bookmarkId != null) {
+                log.writeByte(BOOKMARK_OTHER);
+                writeString(bookmarkId.toString());
+            } else {
+                log.writeByte(NULL);
+            }
+            writeString(bookmarkName);
+        } catch (IOException e) {
+            throw new DocumentExportException("Could not record text", e);
+        }
+        if (delegate != null) {
+            delegate.writeText(text, style, bookmarkId, bookmarkName);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The id is the one returned by the delegate, if there is one.
+     */
+    @Override
+    public Object addTOCItem(String text, int level) throws DocumentExportException {
+        try {
+            log.writeByte(TOC_ITEM);
+            writeString(text);
+            writeInteger(level);
+        } catch (IOException e) {
+            throw new DocumentExportException("Could not record table of contents item", e);
+        }
+        Object id = delegate != null ? delegate.addTOCItem(text, level) : super.addTOCItem(text, level);
+        tocItems.put(id, tocItems.size());
+        return id;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeTableOfContents(String title) throws DocumentExportException {
+        try {
+            log.writeByte(TABLE_OF_CONTENTS);
+            writeString(title);
+        } catch (IOException e) {
+            throw new DocumentExportException("Could not record table of contents", e);
+        }
+        if (delegate != null) {
+            delegate.writeTableOfContents(title);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writePageBreak() throws DocumentExportException {
+        record(PAGE_BREAK);
+        if (delegate != null) {
+            delegate.writePageBreak();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void newParagraph(int indent, Alignment alignment, ListType listType,
+                             float firstLineIndent, float indentSize, LineSpacing spacing) throws DocumentExportException {
+        try {
+            log.writeByte(PARAGRAPH);
+            writeParagraphFormat(new ParagraphFormat(indent, alignment, listType, firstLineIndent, indentSize, spacing));
+        } catch (IOException e) {
+            throw new DocumentExportException("Could not record paragraph", e);
+        }
+        if (delegate != null) {
+            delegate.newParagraph(indent, alignment, listType, firstLineIndent, indentSize, spacing);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addNote(String title, String body, String author, String authorInitials) throws DocumentExportException {
+        try {
+            log.writeByte(NOTE);
+            writeString(title);
+            writeString(body);
+            writeString(author);
+            writeString(authorInitials);
+        } catch (IOException e) {
+            throw new DocumentExportException("Could not record note", e);
+        }
+        if (delegate != null) {
+            delegate.addNote(title, body, author, authorInitials);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Images that are added as ImageIcon are passed on to the delegate encoded, so they
+     * are encoded only once.
+     */
+    @Override
+    public void writeImage(byte[] data, String mimeType, int width, int height, boolean scaleToPage) throws DocumentExportException {
+        try {
+            log.writeByte(IMAGE);
+            String key = pictureKeys.keyOf(data, mimeType);
+            Integer number = pictures.get(key);
+            if (number == null) {
+                pictures.put(key, pictures.size());
+                log.writeByte(NEW);
+                writeString(mimeType);
+                writeNumber(data.length);
+                log.write(data);
+            } else {
+                writeNumber(TABLE + number);
+            }
+            writeInteger(width);
+            writeInteger(height);
+            log.writeBoolean(scaleToPage);
+        } catch (IOException e) {
+            throw new DocumentExportException("Could not record image", e);
+        }
+        if (delegate != null) {
+            delegate.writeImage(data, mimeType, width, height, scaleToPage);
+        }
+    }
+
+    private void record(int operation) throws DocumentExportException {
+        try {
+            log.writeByte(operation);
+        } catch (IOException e) {
+            throw new DocumentExportException("Could not record document", e);
+        }
+    }
+
+    /**
+     * Unsigned number in 7 bit groups, low group first
+     */
+    private void writeNumber(int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            log.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        log.writeByte(value);
+    }
+
+    /**
+     * Signed number, small negative numbers are written as small numbers too
+     */
+    private void writeInteger(int value) throws IOException {
+        writeNumber((value << 1) ^ (value >> 31));
+    }
+
+    private void writeEnum(Enum<?> value) throws IOException {
+        log.writeByte(value == null ? NULL : value.ordinal() + 1);
+    }
+
+    private void writeString(String value) throws IOException {
+        if (value == null) {
+            writeNumber(NULL);
+            return;
+        }
+        boolean intern = value.length() <= MAX_INTERNED_LENGTH;
+        if (intern) {
+            Integer number = strings.get(value);
+            if (number != null) {
+                writeNumber(STRING_TABLE + number);
+                return;
+            }
+            strings.put(value, strings.size());
+        }
+        byte[] bytes = value.getBytes(OdfXmlWriter.UTF8);
+        writeNumber(intern ? NEW_INTERNED : NEW);
+        writeNumber(bytes.length);
+        log.write(bytes);
+    }
+
+    private void writeStyle(Style style) throws IOException {
+        if (style == null) {
+            writeNumber(NULL);
+            return;
+        }
+        Integer number = styles.get(style);
+        if (number != null) {
+            writeNumber(TABLE + number);
+            return;
+        }
+        styles.put(new Style(style), styles.size());
+        writeNumber(NEW);
+        writeString(style.getName());
+        writeString(style.getFontName());
+        int flags = (style.isBold() ? BOLD : 0) | (style.isItalic() ? ITALIC : 0) | (style.isUnderline() ? UNDERLINE : 0)
+                | (style.getFontSize() != null ? FONT_SIZE : 0) | (style.getColor() != null ? COLOR : 0);
+        log.writeByte(flags);
+        if (style.getFontSize() != null) {
+            writeInteger(style.getFontSize());
+        }
+        if (style.getColor() != null) {
+            log.writeInt(style.getColor());
+        }
+    }
+
+    private void writeParagraphFormat(ParagraphFormat format) throws IOException {
+        Integer number = paragraphFormats.get(format);
+        if (number != null) {
+            writeNumber(TABLE + number);
+            return;
+        }
+        paragraphFormats.put(format, paragraphFormats.size());
+        writeNumber(NEW);
+        writeInteger(format.indent);
+        writeEnum(format.alignment);
+        writeEnum(format.listType);
+        log.writeFloat(format.firstLineIndent);
+        log.writeFloat(format.indentSize);
+        writeEnum(format.spacing);
+    }
+
+    private void writeSectionStyle(SectionStyle style) throws IOException {
+        writeEnum(style.getOrientation());
+        writeEnum(style.getPageSize());
+        writeNumber(style.getColumns());
+        log.writeFloat(style.getMarginLeft());
+        log.writeFloat(style.getMarginTop());
+        log.writeFloat(style.getMarginRight());
+        log.writeFloat(style.getMarginBottom());
+        writeEnum(style.getLineSpacing());
+        log.writeFloat(style.getFirstLineIndent());
+        log.writeFloat(style.getIndentSize());
+        writeEnum(style.getMultiPageType());
+        writePageSettings(style.getAllPageSettings());
+        writePageSettings(style.getFirstPageSettings());
+        writePageSettings(style.getOddPageSettings());
+        writePageSettings(style.getEvenPageSettings());
+    }
+
+    private void writePageSettings(PageSettings settings) throws IOException {
+        if (settings == null) {
+            log.writeByte(NULL);
+            return;
+        }
+        log.writeByte(NEW);
+        int flags = (settings.isLineBelowHeader() ? LINE_BELOW_HEADER : 0) | (settings.isLineAboveHeader() ? LINE_ABOVE_HEADER : 0)
+                | (settings.isLineBelowFooter() ? LINE_BELOW_FOOTER : 0) | (settings.isLineAboveFooter() ? LINE_ABOVE_FOOTER : 0)
+                | (settings.getId() != null ? ID : 0);
+        log.writeByte(flags);
+        if (settings.getId() != null) {
+            writeInteger(settings.getId());
+        }
+        writeString(settings.getHeaderLeft());
+        writeStyle(settings.getHeaderLeftStyle());
+        writeString(settings.getHeaderCenter());
+        writeStyle(settings.getHeaderCenterStyle());
+        writeString(settings.getHeaderRight());
+        writeStyle(settings.getHeaderRightStyle());
+        writeString(settings.getFooterLeft());
+        writeStyle(settings.getFooterLeftStyle());
+        writeString(settings.getFooterCenter());
+        writeStyle(settings.getFooterCenterStyle());
+        writeString(settings.getFooterRight());
+        writeStyle(settings.getFooterRightStyle());
+    }
+
+    /**
+     * Reads a log and calls the format. Styles and paragraph settings are registered with
+     * the format when they are first read, and written with their handles after that.
+     */
+    private static class Replay {
+
+        private final DataInputStream log;
+        private final ExportFormat format;
+        private final OutputStream target;
+        private final List<String> strings = new ArrayList<>();
+        private final List<Style> styles = new ArrayList<>();
+        private int[] styleHandles = new int[16];
+        private final List<Integer> paragraphHandles = new ArrayList<>();
+        private final List<byte[]> pictures = new ArrayList<>();
+        private final List<String> pictureTypes = new ArrayList<>();
+        private final List<Object> tocItems = new ArrayList<>();
+        private byte[] buffer = new byte[256];
+
+        private Replay(InputStream log, ExportFormat format, OutputStream target) {
+            this.log = new DataInputStream(new BufferedInputStream(log, DEFAULT_BUFFER_SIZE));
+            this.format = format;
+            this.target = target;
+        }
+
+        private void run() throws IOException, DocumentExportException {
+            if (log.readInt() != MAGIC) {
+                throw new IOException("Not an export log");
+            }
+            int version = log.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported export log version " + version);
+            }
+            int operation;
+            while ((operation = log.read()) >= 0) {
+                switch (operation) {
+                    case START_FILE:
+                        tocItems.clear();
+                        format.startNewFile(target, readString(), readString(), readString());
+                        break;
+                    case END_FILE:
+                        format.endFile(target, log.readBoolean());
+                        break;
+                    case START_SECTION:
+                        format.startSection(readSectionStyle());
+                        break;
+                    case END_SECTION:
+                        format.endSection();
+                        break;
+                    case TEXT:
+                        replayText();
+                        break;
+                    case TOC_ITEM:
+                        tocItems.add(format.addTOCItem(readString(), readInteger()));
+                        break;
+                    case TABLE_OF_CONTENTS:
+                        format.writeTableOfContents(readString());
+                        break;
+                    case PAGE_BREAK:
+                        format.writePageBreak();
+                        break;
+                    case PARAGRAPH:
+                        format.newParagraph(readParagraphFormat());
+                        break;
+                    case NOTE:
+                        format.addNote(readString(), readString(), readString(), readString());
+                        break;
+                    case IMAGE:
+                        replayImage();
+                        break;
+                    default:
+                        throw new IOException("Unknown operation " + operation + " in export log");
+                }
+            }
+        }
+
+        private void replayText() throws IOException, DocumentExportException {
+            String text = readString();
+            int style = readNumber();
+            if (style == NEW) {
+                style = TABLE + readStyle();
+            }
+            Object bookmarkId = null;
+            switch (log.readUnsignedByte()) {
+                case BOOKMARK_ITEM:
+                    bookmarkId = tocItems.get(readNumber());
+                    break;
+                case BOOKMARK_OTHER:
+                    bookmarkId = readString();
+                    break;
+            }
+            String bookmarkName = readString();
+            if (style == NULL) {
+                format.writeText(text, (Style) null, bookmarkId, bookmarkName);
+            } else {
+                format.writeText(text, styleHandles[style - TABLE], bookmarkId, bookmarkName);
+            }
+        }
+
+        private void replayImage() throws IOException, DocumentExportException {
+            int number = readNumber();
+            if (number == NEW) {
+                pictureTypes.add(readString());
+                byte[] data = new byte[readNumber()];
+                log.readFully(data);
+                pictures.add(data);
+                number = TABLE + pictures.size() - 1;
+            }
+            int width = readInteger();
+            int height = readInteger();
+            boolean scaleToPage = log.readBoolean();
+            format.writeImage(pictures.get(number - TABLE), pictureTypes.get(number - TABLE), width, height, scaleToPage);
+        }
+
+        private int readNumber() throws IOException {
+            int value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = log.readUnsignedByte();
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        private int readInteger() throws IOException {
+            int value = readNumber();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private <E extends Enum<E>> E readEnum(E[] values) throws IOException {
+            int ordinal = log.readUnsignedByte();
+            return ordinal == NULL ? null : values[ordinal - 1];
+        }
+
+        private String readString() throws IOException {
+            int number = readNumber();
+            if (number == NULL) {
+                return null;
+            }
+            if (number >= STRING_TABLE) {
+                return strings.get(number - STRING_TABLE);
+            }
+            int length = readNumber();
+            if (length > buffer.length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            log.readFully(buffer, 0, length);
+            String value = new String(buffer, 0, length, OdfXmlWriter.UTF8);
+            if (number == NEW_INTERNED) {
+                strings.add(value);
+            }
+            return value;
+        }
+
+        /**
+         * Read a new style and register it with the format
+         *
+         * @return the number of the style
+         */
+        private int readStyle() throws IOException {
+            Style style = new Style();
+            style.setName(readString());
+            style.setFontName(readString());
+            int flags = log.readUnsignedByte();
+            style.setBold((flags & BOLD) != 0);
+            style.setItalic((flags & ITALIC) != 0);
+            style.setUnderline((flags & UNDERLINE) != 0);
+            if ((flags & FONT_SIZE) != 0) {
+                style.setFontSize(readInteger());
+            }
+            if ((flags & COLOR) != 0) {
+                style.setColor(log.readInt());
+            }
+            int number = styles.size();
+            styles.add(style);
+            if (number == styleHandles.length) {
+                int[] handles = new int[number * 2];
+                System.arraycopy(styleHandles, 0, handles, 0, number);
+                styleHandles = handles;
+            }
+            styleHandles[number] = format.registerStyle(style);
+            return number;
+        }
+
+        private Style readStyleReference() throws IOException {
+            int number = readNumber();
+            if (number == NULL) {
+                return null;
+            }
+            if (number == NEW) {
+                number = TABLE + readStyle();
+            }
+            return styles.get(number - TABLE);
+        }
+
+        /**
+         * @return the handle of the paragraph format
+         */
+        private int readParagraphFormat() throws IOException {
+            int number = readNumber();
+            if (number == NEW) {
+                int handle = format.registerParagraphFormat(readInteger(), readEnum(Alignment.values()),
+                        readEnum(ListType.values()), log.readFloat(), log.readFloat(), readEnum(LineSpacing.values()));
+                paragraphHandles.add(handle);
+                return handle;
+            }
+            return paragraphHandles.get(number - TABLE);
+        }
+
+        private SectionStyle readSectionStyle() throws IOException {
+            SectionStyle style = new SectionStyle();
+            style.setOrientation(readEnum(Orientation.values()));
+            style.setPageSize(readEnum(PageSize.values()));
+            style.setColumns(readNumber());
+            style.setMarginLeft(log.readFloat());
+            style.setMarginTop(log.readFloat());
+            style.setMarginRight(log.readFloat());
+            style.setMarginBottom(log.readFloat());
+            style.setLineSpacing(readEnum(LineSpacing.values()));
+            style.setFirstLineIndent(log.readFloat());
+            style.setIndentSize(log.readFloat());
+            style.setMultiPageType(readEnum(MultiPageType.values()));
+            style.setAllPageSettings(readPageSettings());
+            style.setFirstPageSettings(readPageSettings());
+            style.setOddPageSettings(readPageSettings());
+            style.setEvenPageSettings(readPageSettings());
+            return style;
+        }
+
+        private PageSettings readPageSettings() throws IOException {
+            if (log.readUnsignedByte() == NULL) {
+                return null;
+            }
+            PageSettings settings = new PageSettings();
+            int flags = log.readUnsignedByte();
+            settings.setLineBelowHeader((flags & LINE_BELOW_HEADER) != 0);
+            settings.setLineAboveHeader((flags & LINE_ABOVE_HEADER) != 0);
+            settings.setLineBelowFooter((flags & LINE_BELOW_FOOTER) != 0);
+            settings.setLineAboveFooter((flags & LINE_ABOVE_FOOTER) != 0);
+            if ((flags & ID) != 0) {
+                settings.setId(readInteger());
+            }
+            settings.setHeaderLeft(readString());
+            settings.setHeaderLeftStyle(readStyleReference());
+            settings.setHeaderCenter(readString());
+            settings.setHeaderCenterStyle(readStyleReference());
+            settings.setHeaderRight(readString());
+            settings.setHeaderRightStyle(readStyleReference());
+            settings.setFooterLeft(readString());
+            settings.setFooterLeftStyle(readStyleReference());
+            settings.setFooterCenter(readString());
+            settings.setFooterCenterStyle(readStyleReference());
+            settings.setFooterRight(readString());
+            settings.setFooterRightStyle(readStyleReference());
+            return settings;
+        }
+    }
+}
@@ -15,6 +15,7 @@ limitations under the License.
  */
 package nl.softwaredesign.exporter;
 
+import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 
@@ -46,6 +47,29 @@ public class SectionStyle {
     public SectionStyle() {
     }
 
+    /**
+     * Create a copy of the given section style, including copies of its page settings
+     *
+     * @param other the section style to copy
+     */
+    public SectionStyle(SectionStyle other) {
+        this.orientation = other.orientation;
+        this.pageSize = other.pageSize;
+        this.columns = other.columns;
+        this.marginLeft = other.marginLeft;
+        this.marginTop = other.marginTop;
+        this.marginRight = other.marginRight;
+        this.marginBottom = other.marginBottom;
+        this.lineSpacing = other.lineSpacing;
+        this.firstLineIndent = other.firstLineIndent;
+        this.indentSize = other.indentSize;
+        this.multiPageType = other.multiPageType;
+        this.allPageSettings = copy(other.allPageSettings);
+        this.firstPageSettings = copy(other.firstPageSettings);
+        this.oddPageSettings = copy(other.oddPageSettings);
+        this.evenPageSettings = copy(other.evenPageSettings);
+    }
+
     public MultiPageType getMultiPageType() {
         return multiPageType;
     }
@@ -70,6 +94,22 @@ public class SectionStyle {
         this.evenPageSettings = evenPageSettings;
     }
 
+    PageSettings getAllPageSettings() {
+        return allPageSettings;
+    }
+
+    PageSettings getFirstPageSettings() {
+        return firstPageSettings;
+    }
+
+    PageSettings getOddPageSettings() {
+        return oddPageSettings;
+    }
+
+    PageSettings getEvenPageSettings() {
+        return evenPageSettings;
+    }
+
     public Orientation getOrientation() {
         return orientation;
     }
@@ -254,8 +294,22 @@ public class SectionStyle {
     }
 
     private PageSettings getSettings(PageType type) {
+        PageSettings result = resolveSettings(type);
+        if (result != null) {
+            return result;
+        } else {
+            logger.warn("Page Settings are empty");
+            return new PageSettings();
+        }
+    }
+
+    /**
+     * @return the settings that apply to the given type of page, or null if they are not set.
+     * Without a multi page type all pages are equal.
+     */
+    PageSettings resolveSettings(PageType type) {
         PageSettings result = null;
-        switch (multiPageType) {
+        switch (multiPageType == null ? MultiPageType.ALL_EQUAL : multiPageType) {
             case ALL_EQUAL:
                 result = allPageSettings;
                 break;
@@ -283,13 +337,60 @@ public class SectionStyle {
                 }
                 break;
         }
-        if (result != null) {
-            return result;
-        } else {
-            logger.warn("Page Settings are empty");
-            return new PageSettings();
-        }
+        return result;
+    }
+
+    private static PageSettings copy(PageSettings settings) {
+        return settings == null ? null : new PageSettings(settings);
+    }
 
+    @Override
+    public int hashCode() {
+        int hashcode = orientation == null ? 0 : orientation.hashCode();
+        hashcode = 31 * hashcode + (pageSize == null ? 0 : pageSize.hashCode());
+        hashcode = 31 * hashcode + columns;
+        hashcode = 31 * hashcode + Float.floatToIntBits(marginLeft);
+        hashcode = 31 * hashcode + Float.floatToIntBits(marginTop);
+        hashcode = 31 * hashcode + Float.floatToIntBits(marginRight);
+        hashcode = 31 * hashcode + Float.floatToIntBits(marginBottom);
+        hashcode = 31 * hashcode + (lineSpacing == null ? 0 : lineSpacing.hashCode());
+        hashcode = 31 * hashcode + Float.floatToIntBits(firstLineIndent);
+        hashcode = 31 * hashcode + Float.floatToIntBits(indentSize);
+        hashcode = 31 * hashcode + (multiPageType == null ? 0 : multiPageType.hashCode());
+        hashcode = 31 * hashcode + ObjectUtils.hashCode(allPageSettings);
+        hashcode = 31 * hashcode + ObjectUtils.hashCode(firstPageSettings);
+        hashcode = 31 * hashcode + ObjectUtils.hashCode(oddPageSettings);
+        hashcode = 31 * hashcode + ObjectUtils.hashCode(evenPageSettings);
+        return hashcode;
+    }
+
+    /**
+     * Two section styles are equal when all their settings, including the page settings, are equal
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof SectionStyle)) {
+            return false;
+        }
+        SectionStyle other = (SectionStyle) obj;
+        return orientation == other.orientation &&
+                pageSize == other.pageSize &&
+                columns == other.columns &&
+                Float.compare(marginLeft, other.marginLeft) == 0 &&
+                Float.compare(marginTop, other.marginTop) == 0 &&
+                Float.compare(marginRight, other.marginRight) == 0 &&
+                Float.compare(marginBottom, other.marginBottom) == 0 &&
+                lineSpacing == other.lineSpacing &&
+                Float.compare(firstLineIndent, other.firstLineIndent) == 0 &&
+                Float.compare(indentSize, other.indentSize) == 0 &&
+                multiPageType == other.multiPageType &&
+                ObjectUtils.equals(allPageSettings, other.allPageSettings) &&
+                ObjectUtils.equals(firstPageSettings, other.firstPageSettings) &&
+                ObjectUtils.equals(oddPageSettings, other.oddPageSettings) &&
+                ObjectUtils.equals(evenPageSettings, other.evenPageSettings);
     }
 
     @Override
@@ -0,0 +1,69 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+/**
+ * When {@link SplittingExportFormat} starts a new volume: after a number of paragraphs,
+ * images or estimated bytes. A volume is only ended where a section starts, so a volume can
+ * be larger than the limits by the size of one section.
+ */
+public final class SplitPolicy {
+
+    private final int paragraphs;
+    private final int images;
+    private final long bytes;
+
+    /**
+     * @param paragraphs start a new volume after this number of paragraphs, 0 to not count paragraphs
+     * @param images     start a new volume after this number of images, 0 to not count images
+     * @param bytes      start a new volume after this estimated size in bytes, 0 to not estimate the size
+     */
+    public SplitPolicy(int paragraphs, int images, long bytes) {
+        if (paragraphs < 0) {
+            throw new IllegalArgumentException("Invalid number of paragraphs " + paragraphs);
+        }
+        if (images < 0) {
+            throw new IllegalArgumentException("Invalid number of images " + images);
+        }
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Invalid number of bytes " + bytes);
+        }
+        this.paragraphs = paragraphs;
+        this.images = images;
+        this.bytes = bytes;
+    }
+
+    public int getParagraphs() {
+        return paragraphs;
+    }
+
+    public int getImages() {
+        return images;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return true if a volume with this content is full
+     */
+    boolean isFull(int paragraphs, int images, long bytes) {
+        return (this.paragraphs > 0 && paragraphs >= this.paragraphs)
+                || (this.images > 0 && images >= this.images)
+                || (this.bytes > 0 && bytes >= this.bytes);
+    }
+}
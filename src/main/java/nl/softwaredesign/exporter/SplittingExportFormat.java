@@ -0,0 +1,501 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Splits a large document into volumes: documents of their own, each written by a new format
+ * from a factory. When a section starts and the volume is full according to the
+ * {@link SplitPolicy}, the volume is saved on a background thread and the section starts
+ * the next volume. When more volumes wait to be saved than allowed, the caller waits.
+ * <p>
+ * The volumes are written to files in a directory, named with a pattern such as
+ * "report-%03d.odt" that is formatted with the number of the volume, starting at 1.
+ * The target of the document gets an index of the volumes, a UTF-8 text with a line for every
+ * volume: the name of the file and the number of sections, paragraphs and images and the
+ * estimated size, separated by tabs. The items of the table of contents follow the line of the
+ * volume their text is in, on lines that start with a tab and the level of the item.
+ * <p>
+ * A table of contents lists the items of the volume it is in.
+ */
+public class SplittingExportFormat extends AbstractExportFormat {
+
+    private final static Logger logger = Logger.getLogger(SplittingExportFormat.class);
+
+    /**
+     * Default number of full volumes that can wait to be saved
+     */
+    public final static int DEFAULT_MAX_PENDING_VOLUMES = 2;
+
+    private final static ExecutorService savers = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "splitting-export-format");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final ExportFormatFactory factory;
+    private final SplitPolicy policy;
+    private final File directory;
+    private final String namePattern;
+    private final ExecutorService saver;
+    private int maxPendingVolumes = DEFAULT_MAX_PENDING_VOLUMES;
+
+    private final List<Volume> volumes = new ArrayList<>();
+    private final ArrayDeque<Volume> saving = new ArrayDeque<>();
+    private final Map<Object, TableOfContents.Item> tocItems = new HashMap<>();
+    private Volume current;
+    private String author;
+    private String title;
+    private String language;
+
+    /**
+     * @param factory     creates the format for every volume
+     * @param policy      when to start a new volume
+     * @param directory   the directory to write the volumes to
+     * @param namePattern the file name of a volume, formatted with the number of the volume
+     */
+    public SplittingExportFormat(ExportFormatFactory factory, SplitPolicy policy, File directory, String namePattern) {
+        this(factory, policy, directory, namePattern, savers);
+    }
+
+    /**
+     * @param factory     creates the format for every volume
+     * @param policy      when to start a new volume
+     * @param directory   the directory to write the volumes to
+     * @param namePattern the file name of a volume, formatted with the number of the volume
+     * @param saver       the executor that saves full volumes, it is not shut down by the exporter
+     */
+    public SplittingExportFormat(ExportFormatFactory factory, SplitPolicy policy, File directory, String namePattern,
+                                 ExecutorService saver) {
+        if (factory == null) {
+            throw new IllegalArgumentException("Format factory is required");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("Split policy is required");
+        }
+        if (directory == null || namePattern == null || saver == null) {
+            throw new IllegalArgumentException("Directory, name pattern and executor are required");
+        }
+        if (String.format(namePattern, 1).equals(String.format(namePattern, 2))) {
+            throw new IllegalArgumentException("The name pattern does not contain the volume number: " + namePattern);
+        }
+        this.factory = factory;
+        this.policy = policy;
+        this.directory = directory;
+        this.namePattern = namePattern;
+        this.saver = saver;
+    }
+
+    public int getMaxPendingVolumes() {
+        return maxPendingVolumes;
+    }
+
+    /**
+     * @param maxPendingVolumes the number of full volumes that can wait to be saved
+     *                          before the caller waits for the oldest one
+     */
+    public void setMaxPendingVolumes(int maxPendingVolumes) {
+        if (maxPendingVolumes < 1) {
+            throw new IllegalArgumentException("maxPendingVolumes must be at least 1");
+        }
+        this.maxPendingVolumes = maxPendingVolumes;
+    }
+
+    /**
+     * @return the files of the volumes of the current or last document
+     */
+    public List<File> getVolumeFiles() {
+        List<File> files = new ArrayList<>(volumes.size());
+        for (Volume volume : volumes) {
+            files.add(volume.file);
+        }
+        return Collections.unmodifiableList(files);
+    }
+
+    /**
+     * Discard the current document, if any. The volume that is being filled is deleted;
+     * full volumes are still saved. This is also done by startNewFile.
+     */
+    public void reset() {
+        closeTargetFile();
+        if (current != null) {
+            discard(current);
+            current = null;
+        }
+        saving.clear();
+        volumes.clear();
+        tocItems.clear();
+        getTableOfContents().clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The target gets the index of the volumes, the first volume is started right away.
+     */
+    @Override
+    public void startNewFile(OutputStream target, String author, String title, String language) throws IOException {
+        logger.debug("Start file");
+        reset();
+        this.author = author;
+        this.title = title;
+        this.language = language;
+        current = startVolume();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Waits until all volumes are saved and writes the index.
+     */
+    @Override
+    public void endFile(OutputStream target, boolean firstPass) throws IOException {
+        logger.debug("End file");
+        if (current == null) {
+            throw new IOException("No document started");
+        }
+        try {
+            Volume last = current;
+            current = null;
+            save(last);
+            IOException failure = null;
+            while (!saving.isEmpty()) {
+                try {
+                    awaitSaved(saving.poll());
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            writeIndex(target);
+        } finally {
+            saving.clear();
+            tocItems.clear();
+            getTableOfContents().clear();
+        }
+    }
+
+    private void writeIndex(OutputStream target) throws IOException {
+        Writer writer = new OutputStreamWriter(buffered(target), OdfXmlWriter.UTF8);
+        writer.write("# file\tsections\tparagraphs\timages\tbytes\n");
+        for (Volume volume : volumes) {
+            writer.write(volume.file.getName() + '\t' + volume.sections + '\t' + volume.paragraphs + '\t'
+                    + volume.images + '\t' + volume.bytes + '\n');
+            for (TableOfContents.Item item : volume.items) {
+                writer.write("\t" + item.level + '\t' + item.text.replaceAll("\\s", " ") + '\n');
+            }
+        }
+        writer.flush();
+    }
+
+    private Volume startVolume() throws IOException {
+        File file = new File(directory, String.format(namePattern, volumes.size() + 1));
+        logger.debug("Start volume " + file);
+        Volume volume = new Volume(file, factory.create(), new FileOutputStream(file));
+        try {
+            volume.format.startNewFile(volume.out, author, title, language);
+        } catch (IOException | RuntimeException e) {
+            discard(volume);
+            throw e;
+        }
+        volumes.add(volume);
+        return volume;
+    }
+
+    /**
+     * Save a full volume on a background thread, after waiting for the oldest volumes when
+     * too many are waiting. Volumes that failed to save are reported here.
+     */
+    private void save(final Volume volume) throws IOException {
+        try {
+            while (!saving.isEmpty() && (saving.size() >= maxPendingVolumes || saving.peek().saved.isDone())) {
+                awaitSaved(saving.poll());
+            }
+        } catch (IOException e) {
+            discard(volume);
+            throw e;
+        }
+        volume.saved = saver.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                try (OutputStream out = volume.out) {
+                    volume.format.endFile(out, false);
+                }
+                return null;
+            }
+        });
+        saving.add(volume);
+    }
+
+    private static void awaitSaved(Volume volume) throws IOException {
+        try {
+            volume.saved.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while saving " + volume.file, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw new IOException("Could not save " + volume.file + ": " + cause.getMessage(), cause);
+        }
+    }
+
+    private static void discard(Volume volume) {
+        try {
+            volume.out.close();
+        } catch (IOException e) {
+            logger.warn("Could not close " + volume.file, e);
+        }
+        if (!volume.file.delete()) {
+            logger.warn("Could not delete " + volume.file);
+        }
+    }
+
+    private Volume current() throws DocumentExportException {
+        if (current == null) {
+            throw new DocumentExportException("No document started");
+        }
+        return current;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Starts a new volume if the current one is full.
+     */
+    @Override
+    public void startSection(SectionStyle sectionStyle) throws DocumentExportException {
+        Volume volume = current();
+        if (volume.sections + volume.paragraphs + volume.images > 0
+                && policy.isFull(volume.paragraphs, volume.images, volume.bytes)) {
+            current = null;
+            try {
+                save(volume);
+                current = startVolume();
+            } catch (IOException e) {
+                throw new DocumentExportException(e.getMessage(), e);
+            }
+            volume = current;
+        }
+        volume.format.startSection(sectionStyle);
+        volume.sections++;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void endSection() throws DocumentExportException {
+        current().format.endSection();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeText(String text, Style style, Object bookmarkId, String bookmarkName) throws DocumentExportException {
+        Volume volume = current();
+        volume.bytes += text == null ? 0 : text.length();
+        volume.format.writeText(text, style, bookmarkId(volume, bookmarkId), bookmarkName);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The style is registered with the format of every volume it is used in.
+     */
+    @Override
+    public void writeText(String text, int style, Object bookmarkId, String bookmarkName) throws DocumentExportException {
+        Volume volume = current();
+        Integer handle = volume.styles.get(style);
+        if (handle == null) {
+            handle = volume.format.registerStyle(getRegisteredStyle(style));
+            volume.styles.put(style, handle);
+        }
+        volume.bytes += text == null ? 0 : text.length();
+        volume.format.writeText(text, handle, bookmarkId(volume, bookmarkId), bookmarkName);
+    }
+
+    /**
+     * An item of the table of contents is added to the volume its text is written in
+     *
+     * @return the id the format of the volume returned for the item, or the id itself
+     */
+    private Object bookmarkId(Volume volume, Object id) throws DocumentExportException {
+        if (id == null) {
+            return null;
+        }
+        Object own = volume.tocIds.get(id);
+        if (own == null) {
+            TableOfContents.Item item = tocItems.get(id);
+            if (item == null) {
+                return id;
+            }
+            own = volume.format.addTOCItem(item.text, item.level);
+            volume.tocIds.put(id, own);
+            volume.items.add(item);
+        }
+        return own;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The item is passed to the format of the volume that its text is written in.
+     */
+    @Override
+    public Object addTOCItem(String text, int level) throws DocumentExportException {
+        current();
+        Object id = super.addTOCItem(text, level);
+        List<TableOfContents.Item> items = getTableOfContents().getItems();
+        tocItems.put(id, items.get(items.size() - 1));
+        return id;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeTableOfContents(String title) throws DocumentExportException {
+        current().format.writeTableOfContents(title);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writePageBreak() throws DocumentExportException {
+        current().format.writePageBreak();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void newParagraph(int indent, Alignment alignment, ListType listType,
+                             float firstLineIndent, float indentSize, LineSpacing spacing) throws DocumentExportException {
+        Volume volume = current();
+        volume.paragraphs++;
+        volume.format.newParagraph(indent, alignment, listType, firstLineIndent, indentSize, spacing);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The paragraph format is registered with the format of every volume it is used in.
+     */
+    @Override
+    public void newParagraph(int paragraphFormat) throws DocumentExportException {
+        Volume volume = current();
+        Integer handle = volume.paragraphFormats.get(paragraphFormat);
+        if (handle == null) {
+            ParagraphFormat format = getParagraphFormat(paragraphFormat);
+            handle = volume.format.registerParagraphFormat(format.indent, format.alignment, format.listType,
+                    format.firstLineIndent, format.indentSize, format.spacing);
+            volume.paragraphFormats.put(paragraphFormat, handle);
+        }
+        volume.paragraphs++;
+        volume.format.newParagraph(handle);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addNote(String title, String body, String author, String authorInitials) throws DocumentExportException {
+        Volume volume = current();
+        volume.bytes += (title == null ? 0 : title.length()) + (body == null ? 0 : body.length());
+        volume.format.addNote(title, body, author, authorInitials);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeImage(byte[] data, String mimeType, int width, int height, boolean scaleToPage) throws DocumentExportException {
+        Volume volume = current();
+        volume.images++;
+        volume.bytes += data.length;
+        volume.format.writeImage(data, mimeType, width, height, scaleToPage);
+    }
+
+    /**
+     * The picture is passed on without waiting for it if the format of the volume can add it later.
+     * Its size is estimated at a byte per pixel.
+     */
+    @Override
+    protected void writePendingImage(Future<byte[]> data, String mimeType, int width, int height,
+                                     boolean scaleToPage) throws DocumentExportException {
+        Volume volume = current();
+        volume.images++;
+        volume.bytes += (long) width * height;
+        if (volume.format instanceof AbstractExportFormat) {
+            ((AbstractExportFormat) volume.format).writePendingImage(data, mimeType, width, height, scaleToPage);
+        } else {
+            volume.format.writeImage(PendingPictures.get(data, "image"), mimeType, width, height, scaleToPage);
+        }
+    }
+
+    /**
+     * A volume: its file, its format and what has been written to it
+     */
+    private static class Volume {
+        private final File file;
+        private final ExportFormat format;
+        private final OutputStream out;
+        private final HandleCache<Integer> styles = new HandleCache<>();
+        private final HandleCache<Integer> paragraphFormats = new HandleCache<>();
+        private final Map<Object, Object> tocIds = new HashMap<>();
+        private final List<TableOfContents.Item> items = new ArrayList<>();
+        private int sections;
+        private int paragraphs;
+        private int images;
+        private long bytes;
+        private Future<Void> saved;
+
+        private Volume(File file, ExportFormat format, OutputStream out) {
+            this.file = file;
+            this.format = format;
+            this.out = out;
+        }
+    }
+}
@@ -0,0 +1,1169 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import javax.xml.stream.XMLStreamException;
+import java.awt.*;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Format used to create a DOCX (Office Open XML) file without building the document in memory.
+ * <p>
+ * The body of the document is written to <code>word/document.xml</code> while the methods are called.
+ * Sections end with the page settings of the section (<code>w:sectPr</code>), text styles become
+ * character styles and lists use numbering definitions. Styles, numbering, headers and footers are
+ * written when the file is closed, pictures and notes are kept in temporary files until then. Memory use
+ * depends on the number of styles, lists and different headers, not on the length of the document.
+ * Notes become comments.
+ */
+public class StreamingDOCXExportFormat extends AbstractExportFormat {
+
+    private final static Logger logger = Logger.getLogger(StreamingDOCXExportFormat.class);
+
+    private final static String WORD_TYPE = "application/vnd.openxmlformats-officedocument.wordprocessingml.";
+    private final static String RELATIONSHIP_TYPE = "http://schemas.openxmlformats.org/officeDocument/2006/relationships/";
+    private final static String CONTENT_TYPES_NAMESPACE = "http://schemas.openxmlformats.org/package/2006/content-types";
+    private final static String RELATIONSHIPS_NAMESPACE = "http://schemas.openxmlformats.org/package/2006/relationships";
+    private final static String PROPERTIES_NAMESPACE = "http://schemas.openxmlformats.org/officeDocument/2006/extended-properties";
+    private final static String PICTURE_NAMESPACE = "http://schemas.openxmlformats.org/drawingml/2006/picture";
+    private final static String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>";
+    private final static String MEDIA_FOLDER = "word/media/";
+    private final static String STYLE_PREFIX = "SDNLText";
+    private final static int LIST_LEVELS = 9;
+    private final static int TWIPS_PER_POINT = 20;
+    private final static int EMU_PER_POINT = 12700;
+
+    private OutputStream out;
+    private ZipOutputStream zip;
+    private OdfXmlWriter content;
+    private File tocFile;
+    private OutputStream tocOut;
+    private String tocTitle;
+    private File commentsFile;
+    private OutputStream commentsOut;
+    private OdfXmlWriter comments;
+    private int commentCounter = 0;
+    private final PictureSpool pictures = new PictureSpool();
+    private final PictureIndex pictureIndex = new PictureIndex(MEDIA_FOLDER);
+    private final PendingPictures pendingPictures = new PendingPictures(pictureIndex, new PendingPictures.Store() {
+        @Override
+        public void store(String path, String mimeType, byte[] data) throws IOException {
+            pictures.add(path, mimeType, data);
+            ExportMetrics metrics = getMetrics();
+            if (metrics != null) {
+                metrics.imageStored(data.length);
+            }
+        }
+    });
+
+    private String author;
+    private String title;
+    private String language;
+
+    private StyleRegistry styles = new StyleRegistry();
+    private HandleCache<StyleRegistry.RegisteredStyle> styleHandles = new HandleCache<>();
+    // Paragraph properties in the current section, by alignment and indent
+    private Map<String, ParagraphProperties> paragraphProperties = new HashMap<>();
+    // Paragraph properties per paragraph format handle in the current section
+    private HandleCache<ParagraphProperties> paragraphPropertiesHandles = new HandleCache<>();
+    // The type of every list in the document, the numbering id of a list is its index + 1
+    private List<ListType> lists = new ArrayList<>();
+    private Set<ListType> listTypes = EnumSet.noneOf(ListType.class);
+    // Serialized w:sectPr by section style, null for the default page
+    private Map<CompiledSectionStyle, String> sectionProperties = new HashMap<>();
+    // Part name by content, for headers and footers
+    private Map<String, String> headerParts = new LinkedHashMap<>();
+    private Map<String, String> footerParts = new LinkedHashMap<>();
+    private boolean oddAndEvenHeaders;
+
+    private CompiledSectionStyle currentSectionStyle;
+    private final CompiledSectionStyle.Cache compiledSectionStyles = new CompiledSectionStyle.Cache();
+    private boolean sectionStart;
+    private float indentSizePt;
+    private float firstLineIndentPt;
+    private LineSpacing lineSpacing;
+    private boolean pageBreak;
+
+    private boolean paragraphOpen;
+    private boolean runOpen;
+    private StyleRegistry.RegisteredStyle runStyle;
+    private ListType listType;
+    private int listId;
+    private int bookmarkCounter = 0;
+    private int imageCounter = 0;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void startNewFile(OutputStream target, String author, String title, String language) throws IOException {
+        logger.debug("Start file");
+        ExportMetrics metrics = getMetrics();
+        long start = metrics == null ? 0L : System.nanoTime();
+        reset();
+        this.author = author;
+        this.title = title;
+        this.language = language;
+        try {
+            out = buffered(target);
+            zip = new ZipOutputStream(out);
+            zip.setLevel(getCompression().getLevel());
+            zip.putNextEntry(new ZipEntry("word/document.xml"));
+            content = OdfXmlWriter.create(zip);
+            content.startDocument();
+            content.start("w:document").declare("w", "r", "wp", "a", "pic");
+            content.start("w:body");
+        } catch (XMLStreamException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        if (metrics != null) {
+            metrics.fileStarted(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void endFile(OutputStream target, boolean firstPass) throws IOException {
+        logger.debug("End file");
+        ExportMetrics metrics = getMetrics();
+        long start = metrics == null ? 0L : System.nanoTime();
+        try {
+            closeParagraph();
+            if (tocOut != null) {
+                insertTableOfContents();
+            }
+            // The last section is described by the body itself
+            content.raw(sectionPropertiesFor(currentSectionStyle));
+            content.end().end().endDocument();
+            content.flush();
+            zip.closeEntry();
+
+            pendingPictures.storeAll();
+            pictures.copyTo(zip, getCompression());
+            if (comments != null) {
+                writeComments();
+            }
+            writeHeaderParts("hdr", headerParts);
+            writeHeaderParts("ftr", footerParts);
+            writeStyles();
+            writeSettings();
+            if (!lists.isEmpty()) {
+                writeNumbering();
+            }
+            writeDocumentRelationships();
+            writeProperties();
+            writePackageRelationships();
+            writeContentTypes();
+            zip.finish();
+            out.flush();
+            if (metrics != null) {
+                metrics.fileSaved(System.nanoTime() - start);
+            }
+        } catch (XMLStreamException | DocumentExportException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * Write the table of contents and then the content that was written after it
+     */
+    private void insertTableOfContents() throws IOException, XMLStreamException {
+        content.redirect(zip);
+        tocOut.close();
+        tocOut = null;
+        if (tocTitle != null) {
+            content.start("w:p");
+            writeRun(content, tocTitle, null);
+            content.end();
+        }
+        for (TableOfContents.Item item : getTableOfContents().getItems()) {
+            content.start("w:p");
+            writeParagraphProperties(propertiesFor(item.level - 1, Alignment.LEFT, -1), false, false, 0);
+            content.start("w:hyperlink").attr("w:anchor", item.bookmark);
+            writeRun(content, item.text, null);
+            content.end().end();
+        }
+        content.flush();
+        Files.copy(tocFile.toPath(), zip);
+    }
+
+    /**
+     * Discard the current document, if any. The exporter can be used for a new document
+     * afterwards; this is also done by startNewFile and endFile.
+     */
+    public void reset() {
+        closeTargetFile();
+        out = null;
+        zip = null;
+        if (tocOut != null) {
+            try {
+                tocOut.close();
+            } catch (IOException e) {
+                logger.warn("Could not close temporary file", e);
+            }
+            tocOut = null;
+        }
+        if (tocFile != null && !tocFile.delete()) {
+            tocFile.deleteOnExit();
+        }
+        tocFile = null;
+        tocTitle = null;
+        comments = null;
+        if (commentsOut != null) {
+            try {
+                commentsOut.close();
+            } catch (IOException e) {
+                logger.warn("Could not close temporary file", e);
+            }
+            commentsOut = null;
+        }
+        if (commentsFile != null && !commentsFile.delete()) {
+            commentsFile.deleteOnExit();
+        }
+        commentsFile = null;
+        commentCounter = 0;
+        getTableOfContents().clear();
+        content = null;
+        pictures.close();
+        pictureIndex.clear();
+        pendingPictures.clear();
+        styles.clear();
+        styleHandles.clear();
+        paragraphProperties.clear();
+        paragraphPropertiesHandles.clear();
+        lists.clear();
+        listTypes.clear();
+        sectionProperties.clear();
+        headerParts.clear();
+        footerParts.clear();
+        oddAndEvenHeaders = false;
+        currentSectionStyle = null;
+        sectionStart = false;
+        indentSizePt = 0.0f;
+        firstLineIndentPt = 0.0f;
+        lineSpacing = null;
+        pageBreak = false;
+        paragraphOpen = false;
+        runOpen = false;
+        runStyle = null;
+        listType = null;
+        listId = 0;
+        bookmarkCounter = 0;
+        imageCounter = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The section before it ends with an empty paragraph that holds its page settings.
+     */
+    @Override
+    public void startSection(SectionStyle sectionStyle) throws DocumentExportException {
+        logger.debug("start section " + sectionStyle);
+        ExportMetrics metrics = getMetrics();
+        long start = metrics == null ? 0L : System.nanoTime();
+        CompiledSectionStyle compiled = compiledSectionStyles.compile(sectionStyle);
+        try {
+            closeParagraph();
+            if (currentSectionStyle != null) {
+                content.start("w:p").start("w:pPr");
+                content.raw(sectionPropertiesFor(currentSectionStyle));
+                content.end().end();
+            }
+        } catch (XMLStreamException e) {
+            throw new DocumentExportException("Could not end section", e);
+        }
+        currentSectionStyle = compiled;
+        sectionStart = true;
+        listType = null;
+        paragraphProperties.clear();
+        paragraphPropertiesHandles.clear();
+        indentSizePt = compiled.getIndentSize();
+        firstLineIndentPt = compiled.getFirstLineIndent();
+        lineSpacing = compiled.getLineSpacing();
+        pageBreak = false;
+        if (metrics != null) {
+            metrics.sectionStarted(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void endSection() throws DocumentExportException {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeText(String text, Style style, Object bookmarkId, String bookmarkName) throws DocumentExportException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Write " + style + ":" + text);
+        }
+        if (StringUtils.isEmpty(text)) {
+            return;
+        }
+        appendText(text, getOrCreateStyle(style), bookmarkId);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeText(String text, int style, Object bookmarkId, String bookmarkName) throws DocumentExportException {
+        if (StringUtils.isEmpty(text)) {
+            return;
+        }
+        StyleRegistry.RegisteredStyle textStyle = styleHandles.get(style);
+        if (textStyle == null) {
+            textStyle = getOrCreateStyle(getRegisteredStyle(style));
+            styleHandles.put(style, textStyle);
+        }
+        appendText(text, textStyle, bookmarkId);
+    }
+
+    private void appendText(String text, StyleRegistry.RegisteredStyle textStyle, Object bookmarkId) throws DocumentExportException {
+        if (!paragraphOpen) {
+            newParagraph(0, Alignment.LEFT, null, 0.0f, 0.0f, LineSpacing.SINGLE);
+        }
+        try {
+            if (runOpen && textStyle == runStyle && bookmarkId == null && isCoalesceText()) {
+                // Same style as the text before it, continue the run
+                content.text(text);
+                return;
+            }
+            closeRun();
+            ExportMetrics metrics = getMetrics();
+            if (metrics != null) {
+                metrics.spanWritten();
+            }
+            if (bookmarkId != null) {
+                bookmarkCounter++;
+                content.empty("w:bookmarkStart")
+                        .attr("w:id", Integer.toString(bookmarkCounter))
+                        .attr("w:name", bookmarkId.toString());
+                content.empty("w:bookmarkEnd").attr("w:id", Integer.toString(bookmarkCounter));
+            }
+            startRun(content, textStyle);
+            content.text(text);
+            runOpen = true;
+            runStyle = textStyle;
+        } catch (XMLStreamException e) {
+            throw new DocumentExportException("Could not write text", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The content after the table of contents is kept in a temporary file until endFile
+     * has written the table. The items link to their bookmarks and have no page numbers.
+     */
+    @Override
+    public void writeTableOfContents(String title) throws DocumentExportException {
+        logger.debug("Table of contents");
+        if (tocOut != null) {
+            throw new DocumentExportException("The document already has a table of contents");
+        }
+        try {
+            closeParagraph();
+            listType = null;
+            tocFile = File.createTempFile("sdnl-content", ".xml");
+            tocOut = new BufferedOutputStream(new FileOutputStream(tocFile));
+            content.redirect(tocOut);
+            tocTitle = title;
+        } catch (IOException | XMLStreamException e) {
+            throw new DocumentExportException("Could not add table of contents", e);
+        }
+    }
+
+    /**
+     * A page break does not start a new section: the next paragraph starts on a new page.
+     */
+    @Override
+    public void writePageBreak() throws DocumentExportException {
+        if (!sectionStart) {
+            pageBreak = true;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void newParagraph(int indent, Alignment alignment, ListType listType,
+                             float firstLineIndent, float indentSize, LineSpacing spacing) throws DocumentExportException {
+        startParagraph(indent, alignment, listType, -1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void newParagraph(int paragraphFormat) throws DocumentExportException {
+        ParagraphFormat format = getParagraphFormat(paragraphFormat);
+        startParagraph(format.indent, format.alignment, format.listType, paragraphFormat);
+    }
+
+    private void startParagraph(int indent, Alignment alignment, ListType listType, int handle) throws DocumentExportException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("New paragraph " + indent + ":" + alignment + ":" + listType);
+        }
+        ExportMetrics metrics = getMetrics();
+        if (metrics != null) {
+            metrics.paragraphWritten();
+        }
+        try {
+            closeParagraph();
+            if (listType == null) {
+                this.listType = null;
+            } else if (listType != this.listType) {
+                // A new list, numbered from the start
+                this.listType = listType;
+                listTypes.add(listType);
+                lists.add(listType);
+                listId = lists.size();
+            }
+            content.start("w:p");
+            writeParagraphProperties(propertiesFor(indent, alignment, handle), pageBreak, listType != null,
+                    Math.min(Math.max(1, indent), LIST_LEVELS) - 1);
+            paragraphOpen = true;
+            sectionStart = false;
+            pageBreak = false;
+        } catch (XMLStreamException e) {
+            throw new DocumentExportException("Could not write paragraph", e);
+        }
+    }
+
+    /**
+     * Write the properties of the paragraph that was just started, if it has any
+     *
+     * @param level the level in the current list, if the paragraph is a list item
+     */
+    private void writeParagraphProperties(ParagraphProperties properties, boolean breakBefore,
+                                          boolean listItem, int level) throws XMLStreamException {
+        if (!breakBefore && !listItem && properties.isEmpty()) {
+            return;
+        }
+        content.start("w:pPr");
+        if (breakBefore) {
+            content.empty("w:pageBreakBefore");
+        }
+        if (listItem) {
+            content.start("w:numPr");
+            content.empty("w:ilvl").attr("w:val", Integer.toString(level));
+            content.empty("w:numId").attr("w:val", Integer.toString(listId));
+            content.end();
+        }
+        if (properties.line != null) {
+            content.empty("w:spacing").attr("w:line", properties.line).attr("w:lineRule", "auto");
+        }
+        // List items are indented by the numbering definition
+        if (!listItem && (properties.left != null || properties.firstLine != null)) {
+            content.empty("w:ind").attr("w:left", properties.left).attr("w:firstLine", properties.firstLine);
+        }
+        if (properties.alignment != null) {
+            content.empty("w:jc").attr("w:val", properties.alignment);
+        }
+        content.end();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The note is a comment at the current position, with the title and the body as its
+     * paragraphs. The comments are kept in a temporary file until endFile.
+     */
+    @Override
+    public void addNote(String title, String body, String author, String authorInitials) throws DocumentExportException {
+        if (!paragraphOpen) {
+            newParagraph(0, Alignment.LEFT, null, 0.0f, 0.0f, LineSpacing.SINGLE);
+        }
+        try {
+            if (comments == null) {
+                commentsFile = File.createTempFile("sdnl-comments", ".xml");
+                commentsOut = new BufferedOutputStream(new FileOutputStream(commentsFile));
+                comments = OdfXmlWriter.create(commentsOut);
+                comments.startDocument();
+                comments.start("w:comments").declare("w");
+            }
+            String id = Integer.toString(commentCounter++);
+            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+            dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+            comments.start("w:comment")
+                    .attr("w:id", id)
+                    .attr("w:author", author == null ? "" : author)
+                    .attr("w:date", dateFormat.format(new Date()))
+                    .attr("w:initials", StringUtils.isEmpty(authorInitials) ? null : authorInitials);
+            boolean empty = true;
+            for (String text : new String[]{title, body}) {
+                if (StringUtils.isNotEmpty(text)) {
+                    comments.start("w:p");
+                    writeRun(comments, text, null);
+                    comments.end();
+                    empty = false;
+                }
+            }
+            if (empty) {
+                // A comment needs at least one paragraph
+                comments.empty("w:p");
+            }
+            comments.end();
+
+            closeRun();
+            content.start("w:r").empty("w:commentReference").attr("w:id", id).end();
+        } catch (IOException | XMLStreamException e) {
+            throw new DocumentExportException("Could not write note", e);
+        }
+    }
+
+    /**
+     * Complete the comments written by addNote and add them to the package
+     */
+    private void writeComments() throws IOException, XMLStreamException {
+        comments.end().endDocument();
+        comments.flush();
+        commentsOut.close();
+        commentsOut = null;
+        zip.putNextEntry(new ZipEntry("word/comments.xml"));
+        Files.copy(commentsFile.toPath(), zip);
+        zip.closeEntry();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeImage(byte[] data, String mimeType, int width, int height, boolean scaleToPage) throws DocumentExportException {
+        String key = pictureIndex.keyOf(data, mimeType);
+        String path = pictureIndex.find(key);
+        if (path == null) {
+            path = pictureIndex.add(key, mimeType);
+            try {
+                pictures.add(path, mimeType, data);
+            } catch (IOException e) {
+                throw new DocumentExportException("Could not write image", e);
+            }
+            ExportMetrics metrics = getMetrics();
+            if (metrics != null) {
+                metrics.imageStored(data.length);
+            }
+        }
+        writeDrawing(path, mimeType, width, height, scaleToPage);
+    }
+
+    /**
+     * The picture is added to the package in endFile, when it is encoded.
+     */
+    @Override
+    protected void writePendingImage(Future<byte[]> data, String mimeType, int width, int height,
+                                     boolean scaleToPage) throws DocumentExportException {
+        pendingPictures.storeCompleted();
+        String path = pendingPictures.find(data);
+        if (path == null) {
+            path = pictureIndex.reserve(mimeType);
+            pendingPictures.add(data, path, mimeType);
+        }
+        writeDrawing(path, mimeType, width, height, scaleToPage);
+    }
+
+    /**
+     * Write an inline drawing of the picture at the given path
+     */
+    private void writeDrawing(String path, String mimeType, int width, int height, boolean scaleToPage) throws DocumentExportException {
+        if (scaleToPage) {
+            logger.debug("Add scaled image " + mimeType);
+        } else {
+            logger.debug("Add image " + mimeType);
+        }
+        if (!paragraphOpen) {
+            newParagraph(0, Alignment.CENTER, null, 0.0f, 0.0f, LineSpacing.SINGLE);
+        }
+        try {
+            float frameWidth = width;
+            float frameHeight = height;
+            if (scaleToPage && currentSectionStyle != null) {
+                float scale = currentSectionStyle.scaleToPage(width, height);
+                frameWidth = width * scale;
+                frameHeight = height * scale;
+            }
+            String cx = emu(frameWidth);
+            String cy = emu(frameHeight);
+            closeRun();
+            imageCounter++;
+            content.start("w:r").start("w:drawing");
+            content.start("wp:inline")
+                    .attr("distT", "0").attr("distB", "0").attr("distL", "0").attr("distR", "0");
+            content.empty("wp:extent").attr("cx", cx).attr("cy", cy);
+            content.empty("wp:docPr").attr("id", Integer.toString(imageCounter)).attr("name", "image" + imageCounter);
+            content.start("a:graphic").start("a:graphicData").attr("uri", PICTURE_NAMESPACE);
+            content.start("pic:pic");
+            content.start("pic:nvPicPr");
+            content.empty("pic:cNvPr").attr("id", "0").attr("name", path.substring(MEDIA_FOLDER.length()));
+            content.empty("pic:cNvPicPr");
+            content.end();
+            content.start("pic:blipFill");
+            content.empty("a:blip").attr("r:embed", relationshipId(path));
+            content.start("a:stretch").empty("a:fillRect").end();
+            content.end();
+            content.start("pic:spPr");
+            content.start("a:xfrm");
+            content.empty("a:off").attr("x", "0").attr("y", "0");
+            content.empty("a:ext").attr("cx", cx).attr("cy", cy);
+            content.end();
+            content.start("a:prstGeom").attr("prst", "rect").empty("a:avLst").end();
+            content.end();
+            // pic, graphic data, graphic, inline, drawing, run
+            content.end().end().end().end().end().end();
+        } catch (XMLStreamException e) {
+            throw new DocumentExportException("Could not write image", e);
+        }
+    }
+
+    private void closeParagraph() throws XMLStreamException {
+        closeRun();
+        if (paragraphOpen) {
+            content.end();
+            paragraphOpen = false;
+        }
+    }
+
+    /**
+     * Close the run that writeText left open for text in the same style
+     */
+    private void closeRun() throws XMLStreamException {
+        if (runOpen) {
+            // text and run
+            content.end().end();
+            runOpen = false;
+            runStyle = null;
+        }
+    }
+
+    /**
+     * Start a run and its text element, the caller writes the text and closes both
+     */
+    private void startRun(OdfXmlWriter xml, StyleRegistry.RegisteredStyle textStyle) throws XMLStreamException {
+        xml.start("w:r");
+        if (textStyle != null) {
+            xml.start("w:rPr").empty("w:rStyle").attr("w:val", styleId(textStyle)).end();
+        }
+        xml.start("w:t").attr("xml:space", "preserve");
+    }
+
+    private void writeRun(OdfXmlWriter xml, String text, Style style) throws XMLStreamException {
+        startRun(xml, getOrCreateStyle(style));
+        xml.text(text).end().end();
+    }
+
+    private StyleRegistry.RegisteredStyle getOrCreateStyle(Style style) {
+        if (style == null) {
+            return null;
+        }
+        StyleRegistry.RegisteredStyle found = styles.find(style);
+        if (found == null) {
+            found = styles.register(style);
+            ExportMetrics metrics = getMetrics();
+            if (metrics != null) {
+                metrics.styleRegistered();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param handle the paragraph format handle the properties are for, or -1 if there is none
+     */
+    private ParagraphProperties propertiesFor(int indent, Alignment alignment, int handle) {
+        if (handle < 0) {
+            return getOrCreateParagraphProperties(indent, alignment);
+        }
+        ParagraphProperties properties = paragraphPropertiesHandles.get(handle);
+        if (properties == null) {
+            properties = getOrCreateParagraphProperties(indent, alignment);
+            paragraphPropertiesHandles.put(handle, properties);
+        }
+        return properties;
+    }
+
+    private ParagraphProperties getOrCreateParagraphProperties(int indent, Alignment alignment) {
+        String key = "" + alignment + indent;
+        ParagraphProperties properties = paragraphProperties.get(key);
+        if (properties == null) {
+            properties = new ParagraphProperties();
+            if (indent > 0 && indentSizePt > 0) {
+                properties.left = twips((float) indent * indentSizePt);
+            }
+            if (firstLineIndentPt > 0) {
+                properties.firstLine = twips(firstLineIndentPt);
+            }
+            if (lineSpacing != null && lineSpacing != LineSpacing.SINGLE) {
+                properties.line = Integer.toString(240 * lineSpacing.getPercentage() / 100);
+            }
+            if (alignment == Alignment.CENTER) {
+                properties.alignment = "center";
+            } else if (alignment == Alignment.RIGHT) {
+                properties.alignment = "right";
+            } else if (alignment == Alignment.JUSTIFY) {
+                properties.alignment = "both";
+            }
+            paragraphProperties.put(key, properties);
+        }
+        return properties;
+    }
+
+    /**
+     * @param sectionStyle the section, or null for the default page
+     * @return the serialized page settings of the section
+     */
+    private String sectionPropertiesFor(CompiledSectionStyle sectionStyle) throws XMLStreamException {
+        String properties = sectionProperties.get(sectionStyle);
+        if (properties == null) {
+            properties = createSectionProperties(sectionStyle);
+            sectionProperties.put(sectionStyle, properties);
+        }
+        return properties;
+    }
+
+    private String createSectionProperties(CompiledSectionStyle sectionStyle) throws XMLStreamException {
+        StringWriter buffer = new StringWriter();
+        OdfXmlWriter xml = new OdfXmlWriter(buffer);
+        xml.start("w:sectPr");
+        if (sectionStyle == null) {
+            xml.empty("w:pgSz")
+                    .attr("w:w", twips(PageSize.A4.getWidthInch() * 72.0f))
+                    .attr("w:h", twips(PageSize.A4.getHeightInch() * 72.0f));
+            xml.empty("w:pgMar")
+                    .attr("w:top", "1440").attr("w:right", "1440").attr("w:bottom", "1440").attr("w:left", "1440")
+                    .attr("w:header", "720").attr("w:footer", "720").attr("w:gutter", "0");
+            xml.end().flush();
+            return buffer.toString();
+        }
+        boolean oddAndEven = sectionStyle.isOddAndEven();
+        oddAndEvenHeaders |= oddAndEven;
+        CompiledSectionStyle.Page odd = sectionStyle.getPage(PageType.ODD_PAGE);
+        CompiledSectionStyle.Page even = oddAndEven ? sectionStyle.getPage(PageType.EVEN_PAGE) : odd;
+        CompiledSectionStyle.Page first = sectionStyle.getPage(PageType.FIRST_PAGE_ODD);
+        // A section without a header of some type would get the one of the section before it
+        writeReference(xml, true, "default", odd, sectionStyle);
+        writeReference(xml, true, "even", even, sectionStyle);
+        writeReference(xml, false, "default", odd, sectionStyle);
+        writeReference(xml, false, "even", even, sectionStyle);
+        if (sectionStyle.isDifferentFirst()) {
+            writeReference(xml, true, "first", first, sectionStyle);
+            writeReference(xml, false, "first", first, sectionStyle);
+        }
+        xml.empty("w:pgSz")
+                .attr("w:w", twips(sectionStyle.pageWidthPoints))
+                .attr("w:h", twips(sectionStyle.pageHeightPoints))
+                .attr("w:orient", sectionStyle.portrait ? null : "landscape");
+        xml.empty("w:pgMar")
+                .attr("w:top", twips(sectionStyle.getMarginTop()))
+                .attr("w:right", twips(sectionStyle.getMarginRight()))
+                .attr("w:bottom", twips(sectionStyle.getMarginBottom()))
+                .attr("w:left", twips(sectionStyle.getMarginLeft()))
+                .attr("w:header", twips(sectionStyle.getMarginTop() / 2.0f))
+                .attr("w:footer", twips(sectionStyle.getMarginBottom() / 2.0f))
+                .attr("w:gutter", "0");
+        if (sectionStyle.getColumns() > 1) {
+            xml.empty("w:cols").attr("w:num", Integer.toString(sectionStyle.getColumns())).attr("w:space", "720");
+        }
+        if (sectionStyle.isDifferentFirst()) {
+            xml.empty("w:titlePg");
+        }
+        xml.end().flush();
+        return buffer.toString();
+    }
+
+    /**
+     * Refer to the header or footer of a type of page. Pages without one refer to an empty
+     * part, once an earlier section has a header or footer that they would inherit.
+     */
+    private void writeReference(OdfXmlWriter xml, boolean header, String type, CompiledSectionStyle.Page page,
+                                CompiledSectionStyle sectionStyle) throws XMLStreamException {
+        Map<String, String> parts = header ? headerParts : footerParts;
+        if (!(header ? page.header : page.footer) && parts.isEmpty()) {
+            return;
+        }
+        String part = header ? createHeader(page, sectionStyle) : createFooter(page, sectionStyle);
+        String name = parts.get(part);
+        if (name == null) {
+            name = (header ? "header" : "footer") + (parts.size() + 1);
+            parts.put(part, name);
+        }
+        xml.empty(header ? "w:headerReference" : "w:footerReference").attr("w:type", type).attr("r:id", name);
+    }
+
+    private String createHeader(CompiledSectionStyle.Page page, CompiledSectionStyle sectionStyle) throws XMLStreamException {
+        if (!page.header) {
+            return "";
+        }
+        return createHeaderPart(sectionStyle,
+                page.headerLeftStyle, page.headerLeft,
+                page.headerCenterStyle, page.headerCenter,
+                page.headerRightStyle, page.headerRight,
+                page.lineAboveHeader, page.lineBelowHeader);
+    }
+
+    private String createFooter(CompiledSectionStyle.Page page, CompiledSectionStyle sectionStyle) throws XMLStreamException {
+        if (!page.footer) {
+            return "";
+        }
+        return createHeaderPart(sectionStyle,
+                page.footerLeftStyle, page.footerLeft,
+                page.footerCenterStyle, page.footerCenter,
+                page.footerRightStyle, page.footerRight,
+                page.lineAboveFooter, page.lineBelowFooter);
+    }
+
+    /**
+     * Serialize the content of a header or footer: one paragraph with the left, center and
+     * right text separated by tabs
+     */
+    private String createHeaderPart(CompiledSectionStyle sectionStyle, Style leftStyle, String left,
+                                    Style centerStyle, String center, Style rightStyle, String right,
+                                    boolean lineAbove, boolean lineBelow) throws XMLStreamException {
+        StringWriter buffer = new StringWriter();
+        OdfXmlWriter xml = new OdfXmlWriter(buffer);
+        xml.start("w:p").start("w:pPr");
+        if (lineAbove || lineBelow) {
+            xml.start("w:pBdr");
+            if (lineAbove) {
+                writeBorder(xml, "w:top");
+            }
+            if (lineBelow) {
+                writeBorder(xml, "w:bottom");
+            }
+            xml.end();
+        }
+        xml.start("w:tabs");
+        xml.empty("w:tab").attr("w:val", "center").attr("w:pos", twips(sectionStyle.availableWidthPoints / 2.0f));
+        xml.empty("w:tab").attr("w:val", "right").attr("w:pos", twips(sectionStyle.availableWidthPoints));
+        xml.end().end();
+        if (StringUtils.isNotEmpty(left)) {
+            writeRun(xml, left, leftStyle);
+        }
+        xml.start("w:r").empty("w:tab").end();
+        if (StringUtils.isNotEmpty(center)) {
+            writeRun(xml, center, centerStyle);
+        }
+        xml.start("w:r").empty("w:tab").end();
+        if (StringUtils.isNotEmpty(right)) {
+            writeRun(xml, right, rightStyle);
+        }
+        xml.end().flush();
+        return buffer.toString();
+    }
+
+    private void writeBorder(OdfXmlWriter xml, String side) throws XMLStreamException {
+        xml.empty(side)
+                .attr("w:val", "single")
+                .attr("w:sz", "4")
+                .attr("w:space", "1")
+                .attr("w:color", "000000");
+    }
+
+    private void writeHeaderParts(String element, Map<String, String> parts) throws IOException {
+        for (Map.Entry<String, String> part : parts.entrySet()) {
+            zip.putNextEntry(new ZipEntry("word/" + part.getValue() + ".xml"));
+            String xml = XML_DECLARATION + "<w:" + element + " xmlns:w=\"" + OdfXmlWriter.namespaceFor("w")
+                    + "\" xmlns:r=\"" + OdfXmlWriter.namespaceFor("r") + "\">"
+                    // A header or footer needs at least one paragraph
+                    + (part.getKey().isEmpty() ? "<w:p/>" : part.getKey())
+                    + "</w:" + element + ">";
+            zip.write(xml.getBytes(OdfXmlWriter.UTF8));
+            zip.closeEntry();
+        }
+    }
+
+    private OdfXmlWriter startPart(String name) throws IOException, XMLStreamException {
+        zip.putNextEntry(new ZipEntry(name));
+        OdfXmlWriter xml = OdfXmlWriter.create(zip);
+        xml.startDocument();
+        return xml;
+    }
+
+    private void endPart(OdfXmlWriter xml) throws IOException, XMLStreamException {
+        xml.endDocument();
+        xml.flush();
+        zip.closeEntry();
+    }
+
+    private void writeStyles() throws IOException, XMLStreamException {
+        OdfXmlWriter xml = startPart("word/styles.xml");
+        xml.start("w:styles").declare("w");
+        xml.start("w:docDefaults").start("w:rPrDefault").start("w:rPr");
+        if (StringUtils.isNotEmpty(language)) {
+            xml.empty("w:lang").attr("w:val", language);
+        }
+        xml.end().end().end();
+        xml.start("w:style").attr("w:type", "paragraph").attr("w:default", "1").attr("w:styleId", "Normal");
+        xml.empty("w:name").attr("w:val", "Normal");
+        xml.end();
+        for (StyleRegistry.RegisteredStyle textStyle : styles.getStyles()) {
+            writeTextStyle(xml, textStyle);
+        }
+        xml.end();
+        endPart(xml);
+    }
+
+    private void writeTextStyle(OdfXmlWriter xml, StyleRegistry.RegisteredStyle textStyle) throws XMLStreamException {
+        Style style = textStyle.style;
+        xml.start("w:style")
+                .attr("w:type", "character")
+                .attr("w:customStyle", "1")
+                .attr("w:styleId", styleId(textStyle));
+        xml.empty("w:name").attr("w:val", textStyle.name);
+        xml.start("w:rPr");
+        if (StringUtils.isNotEmpty(style.getFontName())) {
+            xml.empty("w:rFonts")
+                    .attr("w:ascii", style.getFontName())
+                    .attr("w:hAnsi", style.getFontName())
+                    .attr("w:cs", style.getFontName());
+        }
+        if (style.isBold()) {
+            xml.empty("w:b");
+        }
+        if (style.isItalic()) {
+            xml.empty("w:i");
+        }
+        if (style.getColor() != null) {
+            xml.empty("w:color").attr("w:val", ODTExportFormat.rgbHexValue(new Color(style.getColor())));
+        }
+        if (style.getFontSize() != null && style.getFontSize() > 0) {
+            // Half points
+            String size = Integer.toString(style.getFontSize() * 2);
+            xml.empty("w:sz").attr("w:val", size);
+            xml.empty("w:szCs").attr("w:val", size);
+        }
+        if (style.isUnderline()) {
+            xml.empty("w:u").attr("w:val", "single");
+        }
+        xml.end().end();
+    }
+
+    private void writeSettings() throws IOException, XMLStreamException {
+        OdfXmlWriter xml = startPart("word/settings.xml");
+        xml.start("w:settings").declare("w");
+        if (oddAndEvenHeaders) {
+            xml.empty("w:evenAndOddHeaders");
+        }
+        xml.end();
+        endPart(xml);
+    }
+
+    /**
+     * Write a numbering definition for every type of list and a numbering instance for every list
+     */
+    private void writeNumbering() throws IOException, XMLStreamException {
+        OdfXmlWriter xml = startPart("word/numbering.xml");
+        xml.start("w:numbering").declare("w");
+        for (ListType type : listTypes) {
+            xml.start("w:abstractNum").attr("w:abstractNumId", Integer.toString(type.ordinal()));
+            xml.empty("w:multiLevelType").attr("w:val", "multilevel");
+            for (int level = 0; level < LIST_LEVELS; level++) {
+                xml.start("w:lvl").attr("w:ilvl", Integer.toString(level));
+                xml.empty("w:start").attr("w:val", "1");
+                switch (type) {
+                    case NUMBER:
+                    case LETTER:
+                    case CAPITAL_LETTER:
+                        xml.empty("w:numFmt")
+                                .attr("w:val", type == ListType.NUMBER ? "decimal" : type == ListType.LETTER ? "lowerLetter" : "upperLetter");
+                        xml.empty("w:lvlText").attr("w:val", "%" + (level + 1) + ".");
+                        break;
+                    default:
+                        xml.empty("w:numFmt").attr("w:val", "bullet");
+                        xml.empty("w:lvlText").attr("w:val", "\u2022");
+                }
+                xml.empty("w:lvlJc").attr("w:val", "left");
+                xml.start("w:pPr");
+                xml.empty("w:ind").attr("w:left", Integer.toString(360 * (level + 2))).attr("w:hanging", "360");
+                xml.end().end();
+            }
+            xml.end();
+        }
+        for (int i = 0; i < lists.size(); i++) {
+            xml.start("w:num").attr("w:numId", Integer.toString(i + 1));
+            xml.empty("w:abstractNumId").attr("w:val", Integer.toString(lists.get(i).ordinal()));
+            xml.start("w:lvlOverride").attr("w:ilvl", "0");
+            xml.empty("w:startOverride").attr("w:val", "1");
+            xml.end().end();
+        }
+        xml.end();
+        endPart(xml);
+    }
+
+    private void writeDocumentRelationships() throws IOException, XMLStreamException {
+        OdfXmlWriter xml = startPart("word/_rels/document.xml.rels");
+        xml.start("Relationships").declareDefault(RELATIONSHIPS_NAMESPACE);
+        writeRelationship(xml, "styles", RELATIONSHIP_TYPE + "styles", "styles.xml");
+        writeRelationship(xml, "settings", RELATIONSHIP_TYPE + "settings", "settings.xml");
+        if (!lists.isEmpty()) {
+            writeRelationship(xml, "numbering", RELATIONSHIP_TYPE + "numbering", "numbering.xml");
+        }
+        if (comments != null) {
+            writeRelationship(xml, "comments", RELATIONSHIP_TYPE + "comments", "comments.xml");
+        }
+        for (String name : headerParts.values()) {
+            writeRelationship(xml, name, RELATIONSHIP_TYPE + "header", name + ".xml");
+        }
+        for (String name : footerParts.values()) {
+            writeRelationship(xml, name, RELATIONSHIP_TYPE + "footer", name + ".xml");
+        }
+        for (PictureSpool.Picture picture : pictures.getPictures()) {
+            writeRelationship(xml, relationshipId(picture.path), RELATIONSHIP_TYPE + "image",
+                    picture.path.substring("word/".length()));
+        }
+        for (Map.Entry<String, String> alias : pendingPictures.getAliases().entrySet()) {
+            // A picture that was equal to a stored one refers to that one
+            writeRelationship(xml, relationshipId(alias.getKey()), RELATIONSHIP_TYPE + "image",
+                    alias.getValue().substring("word/".length()));
+        }
+        xml.end();
+        endPart(xml);
+    }
+
+    private void writePackageRelationships() throws IOException, XMLStreamException {
+        OdfXmlWriter xml = startPart("_rels/.rels");
+        xml.start("Relationships").declareDefault(RELATIONSHIPS_NAMESPACE);
+        writeRelationship(xml, "document", RELATIONSHIP_TYPE + "officeDocument", "word/document.xml");
+        writeRelationship(xml, "core", RELATIONSHIPS_NAMESPACE + "/metadata/core-properties", "docProps/core.xml");
+        writeRelationship(xml, "app", RELATIONSHIP_TYPE + "extended-properties", "docProps/app.xml");
+        xml.end();
+        endPart(xml);
+    }
+
+    private void writeRelationship(OdfXmlWriter xml, String id, String type, String target) throws XMLStreamException {
+        xml.empty("Relationship").attr("Id", id).attr("Type", type).attr("Target", target);
+    }
+
+    private void writeProperties() throws IOException, XMLStreamException {
+        OdfXmlWriter xml = startPart("docProps/core.xml");
+        xml.start("cp:coreProperties").declare("cp", "dc", "dcterms", "xsi");
+        if (StringUtils.isNotEmpty(title)) {
+            xml.start("dc:title").text(title).end();
+        }
+        if (StringUtils.isNotEmpty(author)) {
+            xml.start("dc:creator").text(author).end();
+        }
+        if (StringUtils.isNotEmpty(language)) {
+            xml.start("dc:language").text(language).end();
+        }
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        xml.start("dcterms:created").attr("xsi:type", "dcterms:W3CDTF").text(dateFormat.format(new Date())).end();
+        xml.end();
+        endPart(xml);
+
+        xml = startPart("docProps/app.xml");
+        xml.start("Properties").declareDefault(PROPERTIES_NAMESPACE);
+        xml.start("Application").text("CommonDocExporter").end();
+        xml.end();
+        endPart(xml);
+    }
+
+    private void writeContentTypes() throws IOException, XMLStreamException {
+        OdfXmlWriter xml = startPart("[Content_Types].xml");
+        xml.start("Types").declareDefault(CONTENT_TYPES_NAMESPACE);
+        xml.empty("Default").attr("Extension", "rels").attr("ContentType", "application/vnd.openxmlformats-package.relationships+xml");
+        xml.empty("Default").attr("Extension", "xml").attr("ContentType", "application/xml");
+        Set<String> extensions = new HashSet<>();
+        for (PictureSpool.Picture picture : pictures.getPictures()) {
+            String extension = picture.path.substring(picture.path.lastIndexOf('.') + 1);
+            if (extensions.add(extension)) {
+                xml.empty("Default").attr("Extension", extension).attr("ContentType", picture.mediaType);
+            }
+        }
+        writeOverride(xml, "/word/document.xml", WORD_TYPE + "document.main+xml");
+        writeOverride(xml, "/word/styles.xml", WORD_TYPE + "styles+xml");
+        writeOverride(xml, "/word/settings.xml", WORD_TYPE + "settings+xml");
+        if (!lists.isEmpty()) {
+            writeOverride(xml, "/word/numbering.xml", WORD_TYPE + "numbering+xml");
+        }
+        if (comments != null) {
+            writeOverride(xml, "/word/comments.xml", WORD_TYPE + "comments+xml");
+        }
+        for (String name : headerParts.values()) {
+            writeOverride(xml, "/word/" + name + ".xml", WORD_TYPE + "header+xml");
+        }
+        for (String name : footerParts.values()) {
+            writeOverride(xml, "/word/" + name + ".xml", WORD_TYPE + "footer+xml");
+        }
+        writeOverride(xml, "/docProps/core.xml", "application/vnd.openxmlformats-package.core-properties+xml");
+        writeOverride(xml, "/docProps/app.xml", "application/vnd.openxmlformats-officedocument.extended-properties+xml");
+        xml.end();
+        endPart(xml);
+    }
+
+    private void writeOverride(OdfXmlWriter xml, String partName, String contentType) throws XMLStreamException {
+        xml.empty("Override").attr("PartName", partName).attr("ContentType", contentType);
+    }
+
+    /**
+     * @return the id of the relationship to a picture: its file name without the extension
+     */
+    private static String relationshipId(String path) {
+        return path.substring(path.lastIndexOf('/') + 1, path.lastIndexOf('.'));
+    }
+
+    private static String styleId(StyleRegistry.RegisteredStyle textStyle) {
+        return STYLE_PREFIX + (textStyle.index + 1);
+    }
+
+    private static String twips(float points) {
+        return Integer.toString(Math.round(points * TWIPS_PER_POINT));
+    }
+
+    private static String emu(float points) {
+        return Long.toString(Math.round((double) points * EMU_PER_POINT));
+    }
+
+    /**
+     * The properties of a paragraph that depend on its settings and the section, as attribute values
+     */
+    private static class ParagraphProperties {
+        private String left;
+        private String firstLine;
+        private String line;
+        private String alignment;
+
+        private boolean isEmpty() {
+            return left == null && firstLine == null && line == null && alignment == null;
+        }
+    }
+}
@@ -0,0 +1,1250 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import javax.xml.stream.XMLStreamException;
+import java.awt.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Format used to create an ODT file without building the document in memory.
+ * <p>
+ * The body of the document is written to <code>content.xml</code> while the methods are called.
+ * Styles, meta data and the manifest are written when the file is closed. Pictures are kept in a
+ * temporary file until the content is complete. Memory use depends on the number of styles and
+ * sections, not on the length of the document.
+ */
+public class StreamingODTExportFormat extends AbstractExportFormat {
+
+    private final static Logger logger = Logger.getLogger(StreamingODTExportFormat.class);
+
+    private final static String MIME_TYPE = "application/vnd.oasis.opendocument.text";
+    private final static String ODF_VERSION = "1.2";
+
+    private final static String TABLE_TOP_LINE = "TTL";
+    private final static String TABLE_BOTTOM_LINE = "TBL";
+    private final static String TABLE_BOTH_LINES = "TBTL";
+    private final static String CELL_CENTER = "CellCenter";
+    private final static String TOC_NAME = "Table of Contents";
+    private final static String CELL_RIGHT = "CellRight";
+    private final static String LIST_STYLE_PREFIX = "SDNLList";
+    private final static String BORDER = "0.05pt solid #000000";
+    // How the content refers to a picture in the package, followed by the path
+    private final static String IMAGE_REFERENCE = "<draw:image xlink:href=\"";
+
+    private final boolean flat;
+    private OutputStream out;
+    private ZipOutputStream zip;
+    private File bodyFile;
+    private OutputStream bodyOut;
+    private OdfXmlWriter content;
+    private OutputStream contentTarget;
+    private File tocFile;
+    private OutputStream tocOut;
+    private String tocTitle;
+    private final PictureSpool pictures = new PictureSpool();
+    private final PictureIndex pictureIndex = new PictureIndex();
+    private final PendingPictures pendingPictures = new PendingPictures(pictureIndex, new PendingPictures.Store() {
+        @Override
+        public void store(String path, String mimeType, byte[] data) throws IOException {
+            pictures.add(path, mimeType, data);
+            ExportMetrics metrics = getMetrics();
+            if (metrics != null) {
+                metrics.imageStored(data.length);
+            }
+        }
+    });
+
+    private String author;
+    private String title;
+    private String language;
+
+    private StyleRegistry styles = new StyleRegistry();
+    private HandleCache<StyleRegistry.RegisteredStyle> styleHandles = new HandleCache<>();
+    private Map<String, ParagraphStyle> paragraphStyles = new LinkedHashMap<>();
+    // Paragraph style per paragraph format handle in the current section, without and with page break
+    private HandleCache<ParagraphStyle> paragraphStyleHandles = new HandleCache<>();
+    private Set<ListType> listStyles = EnumSet.noneOf(ListType.class);
+    private StringWriter automaticStyles = new StringWriter();
+    private StringWriter masterStyles = new StringWriter();
+
+    private int sectionStyleCounter = 0;
+    private CompiledSectionStyle currentSectionStyle;
+    private final CompiledSectionStyle.Cache compiledSectionStyles = new CompiledSectionStyle.Cache();
+    private Map<CompiledSectionStyle.PageKey, String> masterPages = new HashMap<>();
+    private ParagraphStyle newSectionStyle = null;
+    private float indentSizePt;
+    private float firstLineIndentPt;
+    private LineSpacing lineSpacing;
+    private boolean pageBreak;
+
+    private boolean paragraphOpen;
+    private boolean spanOpen;
+    private StyleRegistry.RegisteredStyle spanStyle;
+    private int listDepth;
+    private ListType listType;
+    private int imageCounter = 0;
+
+    private DecimalFormat numberFormat = new DecimalFormat("0.000", DecimalFormatSymbols.getInstance(Locale.US));
+
+    public StreamingODTExportFormat() {
+        this(false);
+    }
+
+    /**
+     * @param flat true to write a single flat XML document (see {@link FlatODTExportFormat})
+     */
+    StreamingODTExportFormat(boolean flat) {
+        this.flat = flat;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void startNewFile(OutputStream target, String author, String title, String language) throws IOException {
+        logger.debug("Start file");
+        ExportMetrics metrics = getMetrics();
+        long start = metrics == null ? 0L : System.nanoTime();
+        reset();
+        this.author = author;
+        this.title = title;
+        this.language = language;
+        try {
+            out = buffered(target);
+            if (flat) {
+                // The styles come before the body in a flat document, but they are known
+                // only at the end. The body is kept in a temporary file until then.
+                bodyFile = File.createTempFile("sdnl-body", ".xml");
+                bodyOut = new BufferedOutputStream(new FileOutputStream(bodyFile));
+                contentTarget = bodyOut;
+                content = OdfXmlWriter.create(bodyOut);
+                content.start("office:body").start("office:text");
+                if (metrics != null) {
+                    metrics.fileStarted(System.nanoTime() - start);
+                }
+                return;
+            }
+            zip = new ZipOutputStream(out);
+            zip.setLevel(getCompression().getLevel());
+            // The mimetype must be the first entry and must not be compressed
+            byte[] mimeType = MIME_TYPE.getBytes(OdfXmlWriter.UTF8);
+            zip.putNextEntry(getCompression().newEntry("mimetype", mimeType));
+            zip.write(mimeType);
+            zip.closeEntry();
+
+            if (getImageEncodingExecutor() != null) {
+                // A picture that is still being encoded may turn out to be equal to another one.
+                // The content is kept in a temporary file until endFile knows which path it has.
+                bodyFile = File.createTempFile("sdnl-content", ".xml");
+                bodyOut = new BufferedOutputStream(new FileOutputStream(bodyFile));
+                contentTarget = bodyOut;
+            } else {
+                zip.putNextEntry(new ZipEntry("content.xml"));
+                contentTarget = zip;
+            }
+            content = OdfXmlWriter.create(contentTarget);
+            content.startDocument();
+            content.start("office:document-content")
+                    .declare("office", "style", "text", "table", "draw", "fo", "xlink", "svg", "dc")
+                    .attr("office:version", ODF_VERSION);
+            content.start("office:body").start("office:text");
+        } catch (XMLStreamException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        if (metrics != null) {
+            metrics.fileStarted(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void endFile(OutputStream target, boolean firstPass) throws IOException {
+        logger.debug("End file");
+        ExportMetrics metrics = getMetrics();
+        long start = metrics == null ? 0L : System.nanoTime();
+        try {
+            closeParagraph();
+            closeLists(0);
+            if (tocOut != null) {
+                insertTableOfContents();
+            }
+            if (flat) {
+                content.end().end();
+                content.flush();
+                bodyOut.close();
+                bodyOut = null;
+                writeFlatDocument();
+                out.flush();
+                if (metrics != null) {
+                    metrics.fileSaved(System.nanoTime() - start);
+                }
+                return;
+            }
+            content.end().end().end().endDocument();
+            content.flush();
+            if (bodyOut == null) {
+                zip.closeEntry();
+            }
+
+            pendingPictures.storeAll();
+            if (bodyOut != null) {
+                bodyOut.close();
+                bodyOut = null;
+                zip.putNextEntry(new ZipEntry("content.xml"));
+                copyContent(pendingPictures.getAliases());
+                zip.closeEntry();
+            }
+            pictures.copyTo(zip, getCompression());
+            writeStyles();
+            writeMeta();
+            writeManifest();
+            zip.finish();
+            out.flush();
+            if (metrics != null) {
+                metrics.fileSaved(System.nanoTime() - start);
+            }
+        } catch (XMLStreamException | DocumentExportException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * Write the table of contents and then the content that was written after it
+     */
+    private void insertTableOfContents() throws IOException, XMLStreamException {
+        content.redirect(contentTarget);
+        tocOut.close();
+        tocOut = null;
+        TableOfContents tableOfContents = getTableOfContents();
+        content.start("text:table-of-content")
+                .attr("text:name", TOC_NAME)
+                .attr("text:protected", "true");
+        content.start("text:table-of-content-source")
+                .attr("text:use-outline-level", "false")
+                .attr("text:use-index-marks", "false");
+        if (tocTitle != null) {
+            content.start("text:index-title-template").text(tocTitle).end();
+        }
+        for (int level = 1; level <= tableOfContents.getMaxLevel(); level++) {
+            content.start("text:table-of-content-entry-template")
+                    .attr("text:outline-level", Integer.toString(level))
+                    .attr("text:style-name", getOrCreateParagraphStyle(level - 1, Alignment.LEFT, false).name);
+            content.empty("text:index-entry-link-start");
+            content.empty("text:index-entry-text");
+            content.empty("text:index-entry-link-end");
+            content.end();
+        }
+        content.end();
+        content.start("text:index-body");
+        if (tocTitle != null) {
+            content.start("text:index-title").attr("text:name", TOC_NAME + " title");
+            content.start("text:p")
+                    .attr("text:style-name", getOrCreateParagraphStyle(0, Alignment.LEFT, false).name)
+                    .text(tocTitle).end();
+            content.end();
+        }
+        for (TableOfContents.Item item : tableOfContents.getItems()) {
+            content.start("text:p")
+                    .attr("text:style-name", getOrCreateParagraphStyle(item.level - 1, Alignment.LEFT, false).name);
+            content.start("text:a")
+                    .attr("xlink:type", "simple")
+                    .attr("xlink:href", "#" + item.bookmark)
+                    .text(item.text).end();
+            content.end();
+        }
+        content.end().end();
+        content.flush();
+        Files.copy(tocFile.toPath(), contentTarget);
+    }
+
+    /**
+     * Discard the current document, if any. The exporter can be used for a new document
+     * afterwards; this is also done by startNewFile and endFile.
+     */
+    public void reset() {
+        closeTargetFile();
+        out = null;
+        zip = null;
+        if (bodyOut != null) {
+            try {
+                bodyOut.close();
+            } catch (IOException e) {
+                logger.warn("Could not close temporary file", e);
+            }
+            bodyOut = null;
+        }
+        if (bodyFile != null && !bodyFile.delete()) {
+            bodyFile.deleteOnExit();
+        }
+        bodyFile = null;
+        contentTarget = null;
+        if (tocOut != null) {
+            try {
+                tocOut.close();
+            } catch (IOException e) {
+                logger.warn("Could not close temporary file", e);
+            }
+            tocOut = null;
+        }
+        if (tocFile != null && !tocFile.delete()) {
+            tocFile.deleteOnExit();
+        }
+        tocFile = null;
+        tocTitle = null;
+        getTableOfContents().clear();
+        content = null;
+        pictures.close();
+        pictureIndex.clear();
+        pendingPictures.clear();
+        styles.clear();
+        styleHandles.clear();
+        paragraphStyles.clear();
+        paragraphStyleHandles.clear();
+        listStyles.clear();
+        automaticStyles = new StringWriter();
+        masterStyles = new StringWriter();
+        sectionStyleCounter = 0;
+        currentSectionStyle = null;
+        masterPages.clear();
+        newSectionStyle = null;
+        indentSizePt = 0.0f;
+        firstLineIndentPt = 0.0f;
+        lineSpacing = null;
+        pageBreak = false;
+        paragraphOpen = false;
+        spanOpen = false;
+        spanStyle = null;
+        listDepth = 0;
+        listType = null;
+        imageCounter = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void startSection(SectionStyle sectionStyle) throws DocumentExportException {
+        logger.debug("start section " + sectionStyle);
+        ExportMetrics metrics = getMetrics();
+        long start = metrics == null ? 0L : System.nanoTime();
+        CompiledSectionStyle compiled = compiledSectionStyles.compile(sectionStyle);
+        currentSectionStyle = compiled;
+        paragraphStyleHandles.clear();
+        try {
+            createSectionStyle(compiled);
+        } catch (XMLStreamException e) {
+            throw new DocumentExportException("Could not create section style", e);
+        }
+        indentSizePt = compiled.getIndentSize();
+        firstLineIndentPt = compiled.getIndentSize();
+        lineSpacing = compiled.getLineSpacing();
+        pageBreak = false;
+        if (metrics != null) {
+            metrics.sectionStarted(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void endSection() throws DocumentExportException {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeText(String text, Style style, Object bookmarkId, String bookmarkName) throws DocumentExportException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Write " + style + ":" + text);
+        }
+        if (StringUtils.isEmpty(text)) {
+            return;
+        }
+        appendText(text, getOrCreateStyle(style), bookmarkId);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeText(String text, int style, Object bookmarkId, String bookmarkName) throws DocumentExportException {
+        if (StringUtils.isEmpty(text)) {
+            return;
+        }
+        StyleRegistry.RegisteredStyle textStyle = styleHandles.get(style);
+        if (textStyle == null) {
+            textStyle = getOrCreateStyle(getRegisteredStyle(style));
+            styleHandles.put(style, textStyle);
+        }
+        appendText(text, textStyle, bookmarkId);
+    }
+
+    private void appendText(String text, StyleRegistry.RegisteredStyle textStyle, Object bookmarkId) throws DocumentExportException {
+        if (!paragraphOpen) {
+            newParagraph(0, Alignment.LEFT, null, 0.0f, 0.0f, LineSpacing.SINGLE);
+        }
+        try {
+            if (spanOpen && textStyle == spanStyle && bookmarkId == null && isCoalesceText()) {
+                // Same style as the text before it, continue the span
+                content.text(text);
+                return;
+            }
+            closeSpan();
+            ExportMetrics metrics = getMetrics();
+            if (metrics != null) {
+                metrics.spanWritten();
+            }
+            if (bookmarkId != null) {
+                content.empty("text:bookmark").attr("text:name", bookmarkId.toString());
+            }
+            content.start("text:span");
+            if (textStyle != null) {
+                content.attr("text:style-name", encodeStyleName(textStyle.name));
+            }
+            content.text(text);
+            spanOpen = true;
+            spanStyle = textStyle;
+        } catch (XMLStreamException e) {
+            throw new DocumentExportException("Could not write text", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The content after the table of contents is kept in a temporary file until endFile
+     * has written the table. Page numbers are added when the document is updated in an editor.
+     */
+    @Override
+    public void writeTableOfContents(String title) throws DocumentExportException {
+        logger.debug("Table of contents");
+        if (tocOut != null) {
+            throw new DocumentExportException("The document already has a table of contents");
+        }
+        try {
+            closeParagraph();
+            closeLists(0);
+            tocFile = File.createTempFile("sdnl-content", ".xml");
+            tocOut = new BufferedOutputStream(new FileOutputStream(tocFile));
+            content.redirect(tocOut);
+            tocTitle = title;
+        } catch (IOException | XMLStreamException e) {
+            throw new DocumentExportException("Could not add table of contents", e);
+        }
+    }
+
+    /**
+     * A page break does not start a new section: the next paragraph gets a
+     * paragraph style that breaks before the paragraph.
+     */
+    @Override
+    public void writePageBreak() throws DocumentExportException {
+        if (newSectionStyle == null) {
+            pageBreak = true;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void newParagraph(int indent, Alignment alignment, ListType listType,
+                             float firstLineIndent, float indentSize, LineSpacing spacing) throws DocumentExportException {
+        startParagraph(indent, alignment, listType, -1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void newParagraph(int paragraphFormat) throws DocumentExportException {
+        ParagraphFormat format = getParagraphFormat(paragraphFormat);
+        startParagraph(format.indent, format.alignment, format.listType, paragraphFormat);
+    }
+
+    private void startParagraph(int indent, Alignment alignment, ListType listType, int handle) throws DocumentExportException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("New paragraph " + indent + ":" + alignment + ":" + listType);
+        }
+        ExportMetrics metrics = getMetrics();
+        if (metrics != null) {
+            metrics.paragraphWritten();
+        }
+        try {
+            closeParagraph();
+            if (listType == null) {
+                closeLists(0);
+                content.start("text:p").attr("text:style-name", paragraphStyleFor(indent, alignment, handle));
+            } else {
+                if (newSectionStyle != null) {
+                    // Start new section with an empty paragraph before the list
+                    closeLists(0);
+                    content.empty("text:p").attr("text:style-name", paragraphStyleFor(indent, alignment, handle));
+                }
+                openListItem(Math.max(1, indent), listType);
+                content.start("text:p").attr("text:style-name", paragraphStyleFor(indent, alignment, handle));
+            }
+            paragraphOpen = true;
+        } catch (XMLStreamException e) {
+            throw new DocumentExportException("Could not write paragraph", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The note is an annotation at the current position, with the title and the body as
+     * its paragraphs. ODF 1.2 has no place for the initials of the author.
+     */
+    @Override
+    public void addNote(String title, String body, String author, String authorInitials) throws DocumentExportException {
+        if (!paragraphOpen) {
+            newParagraph(0, Alignment.LEFT, null, 0.0f, 0.0f, LineSpacing.SINGLE);
+        }
+        try {
+            closeSpan();
+            content.start("office:annotation");
+            if (StringUtils.isNotEmpty(author)) {
+                content.start("dc:creator").text(author).end();
+            }
+            content.start("dc:date").text(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(new Date())).end();
+            if (StringUtils.isNotEmpty(title)) {
+                content.start("text:p").text(title).end();
+            }
+            if (StringUtils.isNotEmpty(body)) {
+                content.start("text:p").text(body).end();
+            }
+            content.end();
+        } catch (XMLStreamException e) {
+            throw new DocumentExportException("Could not write note", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeImage(byte[] data, String mimeType, int width, int height, boolean scaleToPage) throws DocumentExportException {
+        if (flat) {
+            // No package to store the picture in, it is included in the frame
+            writeFrame(null, data, mimeType, width, height, scaleToPage);
+            ExportMetrics metrics = getMetrics();
+            if (metrics != null) {
+                metrics.imageStored(data.length);
+            }
+            return;
+        }
+        String key = pictureIndex.keyOf(data, mimeType);
+        String path = pictureIndex.find(key);
+        if (path == null) {
+            path = pictureIndex.add(key, mimeType);
+            try {
+                pictures.add(path, mimeType, data);
+            } catch (IOException e) {
+                throw new DocumentExportException("Could not write image", e);
+            }
+            ExportMetrics metrics = getMetrics();
+            if (metrics != null) {
+                metrics.imageStored(data.length);
+            }
+        }
+        writeFrame(path, null, mimeType, width, height, scaleToPage);
+    }
+
+    /**
+     * The picture is added to the package in endFile, when it is encoded.
+     */
+    @Override
+    protected void writePendingImage(Future<byte[]> data, String mimeType, int width, int height,
+                                     boolean scaleToPage) throws DocumentExportException {
+        if (flat || bodyOut == null) {
+            // The path of the picture is needed now: the content is not kept until endFile
+            super.writePendingImage(data, mimeType, width, height, scaleToPage);
+            return;
+        }
+        pendingPictures.storeCompleted();
+        String path = pendingPictures.find(data);
+        if (path == null) {
+            path = pictureIndex.reserve(mimeType);
+            pendingPictures.add(data, path, mimeType);
+        }
+        writeFrame(path, null, mimeType, width, height, scaleToPage);
+    }
+
+    /**
+     * Write a frame that refers to the picture at the given path, or that contains the given data
+     */
+    private void writeFrame(String path, byte[] data, String mimeType, int width, int height, boolean scaleToPage) throws DocumentExportException {
+        if(scaleToPage){
+            logger.debug("Add scaled image " + mimeType);
+        } else {
+            logger.debug("Add image " + mimeType);
+        }
+        if (!paragraphOpen) {
+            newParagraph(0, Alignment.CENTER, null, 0.0f, 0.0f, LineSpacing.SINGLE);
+        }
+        try {
+            float frameWidth = width;
+            float frameHeight = height;
+            if (scaleToPage && currentSectionStyle != null) {
+                float scale = currentSectionStyle.scaleToPage(width, height);
+                frameWidth = width * scale;
+                frameHeight = height * scale;
+            }
+            closeSpan();
+            imageCounter++;
+            content.start("draw:frame")
+                    .attr("draw:name", "image" + imageCounter)
+                    .attr("text:anchor-type", scaleToPage ? "paragraph" : "as-char")
+                    .attr("svg:width", inch(DistanceUnit.IN.fromPoints(frameWidth)))
+                    .attr("svg:height", inch(DistanceUnit.IN.fromPoints(frameHeight)));
+            if (data != null) {
+                content.start("draw:image").start("office:binary-data");
+                char[] encoded = new char[Base64Encoder.BLOCK_CHARS];
+                for (int offset = 0; offset < data.length; offset += Base64Encoder.BLOCK_BYTES) {
+                    int length = Math.min(Base64Encoder.BLOCK_BYTES, data.length - offset);
+                    content.text(encoded, 0, Base64Encoder.encode(data, offset, length, encoded));
+                }
+                content.end().end();
+            } else {
+                content.empty("draw:image")
+                        .attr("xlink:href", path)
+                        .attr("xlink:type", "simple")
+                        .attr("xlink:show", "embed")
+                        .attr("xlink:actuate", "onLoad");
+            }
+            content.end();
+        } catch (XMLStreamException e) {
+            throw new DocumentExportException("Could not write image", e);
+        }
+    }
+
+    private void closeParagraph() throws XMLStreamException {
+        closeSpan();
+        if (paragraphOpen) {
+            content.end();
+            paragraphOpen = false;
+        }
+    }
+
+    /**
+     * Close the span that writeText left open for text in the same style
+     */
+    private void closeSpan() throws XMLStreamException {
+        if (spanOpen) {
+            content.end();
+            spanOpen = false;
+            spanStyle = null;
+        }
+    }
+
+    /**
+     * Close open lists until the given depth is reached
+     */
+    private void closeLists(int depth) throws XMLStreamException {
+        while (listDepth > depth) {
+            // list item and list
+            content.end().end();
+            listDepth--;
+        }
+    }
+
+    /**
+     * Start a new list item at the given depth, opening or closing (nested) lists as needed
+     */
+    private void openListItem(int depth, ListType type) throws XMLStreamException {
+        if (listDepth > 0 && type != listType) {
+            closeLists(0);
+        }
+        if (listDepth >= depth) {
+            closeLists(depth);
+            content.end().start("text:list-item");
+        }
+        while (listDepth < depth) {
+            content.start("text:list");
+            if (listDepth == 0) {
+                listType = type;
+                listStyles.add(type);
+                content.attr("text:style-name", LIST_STYLE_PREFIX + type.name());
+            }
+            content.start("text:list-item");
+            listDepth++;
+        }
+    }
+
+    private void writeSpan(OdfXmlWriter xml, String text, Style style) throws XMLStreamException {
+        StyleRegistry.RegisteredStyle textStyle = getOrCreateStyle(style);
+        xml.start("text:span");
+        if (textStyle != null) {
+            xml.attr("text:style-name", encodeStyleName(textStyle.name));
+        }
+        xml.text(text).end();
+    }
+
+    private StyleRegistry.RegisteredStyle getOrCreateStyle(Style style) {
+        if (style == null) {
+            return null;
+        }
+        StyleRegistry.RegisteredStyle found = styles.find(style);
+        if (found == null) {
+            found = styles.register(style);
+            ExportMetrics metrics = getMetrics();
+            if (metrics != null) {
+                metrics.styleRegistered();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param handle the paragraph format handle the style is for, or -1 if there is none
+     */
+    private String paragraphStyleFor(int indent, Alignment alignment, int handle) {
+        ParagraphStyle style;
+        if (newSectionStyle != null) {
+            // Start new Section
+            style = newSectionStyle;
+            initParagraphStyle(style, indent, alignment);
+            newSectionStyle = null;
+        } else if (handle < 0) {
+            style = getOrCreateParagraphStyle(indent, alignment, pageBreak);
+        } else {
+            int index = 2 * handle + (pageBreak ? 1 : 0);
+            style = paragraphStyleHandles.get(index);
+            if (style == null) {
+                style = getOrCreateParagraphStyle(indent, alignment, pageBreak);
+                paragraphStyleHandles.put(index, style);
+            }
+        }
+        pageBreak = false;
+        return style.name;
+    }
+
+    private ParagraphStyle getOrCreateParagraphStyle(int indent, Alignment alignment, boolean breakBefore) {
+        String name = "TPS" + sectionStyleCounter + alignment + indent + (breakBefore ? "B" : "");
+        ParagraphStyle style = paragraphStyles.get(name);
+        if (style == null) {
+            style = new ParagraphStyle(name);
+            String displayName = "Section " + sectionStyleCounter + " paragraph " + alignment.toString().toLowerCase();
+            if (indent != 0) {
+                displayName += indent;
+            }
+            if (breakBefore) {
+                displayName += " page break";
+            }
+            style.displayName = displayName;
+            style.breakBefore = breakBefore;
+            initParagraphStyle(style, indent, alignment);
+            paragraphStyles.put(name, style);
+        }
+        return style;
+    }
+
+    private void initParagraphStyle(ParagraphStyle style, int indent, Alignment alignment) {
+        float indentSize = (float) indent * indentSizePt;
+        if (indent > 0) {
+            style.marginLeft = inch(DistanceUnit.IN.fromPoints(indentSize));
+        }
+        if (firstLineIndentPt > 0) {
+            style.textIndent = inch(DistanceUnit.IN.fromPoints(firstLineIndentPt));
+        }
+        if (lineSpacing != null && lineSpacing != LineSpacing.SINGLE) {
+            style.lineHeight = "" + lineSpacing.getPercentage() + "%";
+        }
+        if (alignment != null && alignment != Alignment.LEFT) {
+            style.textAlign = alignment.name().toLowerCase();
+        }
+    }
+
+    private void createSectionStyle(CompiledSectionStyle sectionStyle) throws XMLStreamException {
+        sectionStyleCounter++;
+        String paragraphStyleName = "SSDNL" + sectionStyleCounter; // Style for first paragraph of new section
+        String masterPageName = masterPages.get(sectionStyle.getPageKey());
+        if (masterPageName == null) {
+            masterPageName = createMasterPage(sectionStyle);
+            masterPages.put(sectionStyle.getPageKey(), masterPageName);
+        }
+        newSectionStyle = new ParagraphStyle(paragraphStyleName);
+        newSectionStyle.displayName = "SDNL Section " + sectionStyleCounter;
+        newSectionStyle.masterPageName = masterPageName;
+        paragraphStyles.put(paragraphStyleName, newSectionStyle);
+    }
+
+    /**
+     * Write the page layout and master page(s) for a section
+     *
+     * @return the name of the master page the section starts with
+     */
+    private String createMasterPage(CompiledSectionStyle sectionStyle) throws XMLStreamException {
+        // The first section uses the default master page, so the document does not start with a break
+        String styleName = sectionStyleCounter == 1 ? "Standard" : "SDNL" + sectionStyleCounter;
+        String styleDisplayName = "SDNL Section " + sectionStyleCounter;
+        String stylePageLayoutName = "SDNLSS" + sectionStyleCounter;
+        String styleTableName = "Table" + sectionStyleCounter;
+
+        OdfXmlWriter auto = new OdfXmlWriter(automaticStyles);
+        // Page layout
+        auto.start("style:page-layout").attr("style:name", stylePageLayoutName);
+        auto.start("style:page-layout-properties")
+                .attr("fo:page-width", sectionStyle.pageWidth)
+                .attr("fo:page-height", sectionStyle.pageHeight)
+                .attr("style:print-orientation", sectionStyle.portrait ? "portrait" : "landscape")
+                .attr("fo:margin-left", sectionStyle.marginLeftLength)
+                .attr("fo:margin-top", sectionStyle.marginTopLength)
+                .attr("fo:margin-right", sectionStyle.marginRightLength)
+                .attr("fo:margin-bottom", sectionStyle.marginBottomLength);
+        //  Columns
+        if (sectionStyle.getColumns() > 1) {
+            auto.empty("style:columns").attr("fo:column-count", "" + sectionStyle.getColumns());
+        }
+        auto.end().end();
+
+        // Create header/footer table style
+        auto.start("style:style").attr("style:name", styleTableName).attr("style:family", "table");
+        auto.empty("style:table-properties")
+                .attr("style:width", sectionStyle.tableWidth)
+                .attr("table:align", "margins")
+                .attr("table:border-model", "separating");
+        auto.end();
+        auto.start("style:style").attr("style:name", styleTableName + ".A").attr("style:family", "table-column");
+        auto.empty("style:table-column-properties").attr("style:column-width", sectionStyle.tableColumnWidth);
+        auto.end();
+        auto.flush();
+
+        // Create master page layout
+        OdfXmlWriter master = new OdfXmlWriter(masterStyles);
+        if (sectionStyle.isDifferentFirst()) {
+            master.start("style:master-page")
+                    .attr("style:name", "first_page_" + styleName)
+                    .attr("style:display-name", "First Page " + styleDisplayName)
+                    .attr("style:page-layout-name", stylePageLayoutName)
+                    .attr("style:next-style-name", styleName);
+            CompiledSectionStyle.Page first = sectionStyle.getPage(PageType.FIRST_PAGE_ODD);
+            if (first.header) {
+                master.start("style:header");
+                addHeaderTable(master, styleTableName, first);
+                master.end();
+            }
+            if (first.footer) {
+                master.start("style:footer");
+                addFooterTable(master, styleTableName, first);
+                master.end();
+            }
+            master.end();
+        }
+        master.start("style:master-page")
+                .attr("style:name", styleName)
+                .attr("style:display-name", styleDisplayName)
+                .attr("style:page-layout-name", stylePageLayoutName);
+        boolean oddAndEven = sectionStyle.isOddAndEven();
+        CompiledSectionStyle.Page odd = sectionStyle.getPage(PageType.ODD_PAGE);
+        CompiledSectionStyle.Page even = sectionStyle.getPage(PageType.EVEN_PAGE);
+        if (odd.header) {
+            master.start("style:header");
+            addHeaderTable(master, styleTableName, odd);
+            master.end();
+        }
+        if (oddAndEven && even.header) {
+            master.start("style:header-left");
+            addHeaderTable(master, styleTableName, even);
+            master.end();
+        }
+        if (odd.footer) {
+            master.start("style:footer");
+            addFooterTable(master, styleTableName, odd);
+            master.end();
+        }
+        if (oddAndEven && even.footer) {
+            master.start("style:footer-left");
+            addFooterTable(master, styleTableName, even);
+            master.end();
+        }
+        master.end();
+        master.flush();
+
+        return sectionStyle.isDifferentFirst() ? "first_page_" + styleName : styleName;
+    }
+
+    private void addHeaderTable(OdfXmlWriter xml, String styleTableName, CompiledSectionStyle.Page page)
+            throws XMLStreamException {
+        fillTable(xml, styleTableName,
+                page.headerLeftStyle, page.headerLeft,
+                page.headerCenterStyle, page.headerCenter,
+                page.headerRightStyle, page.headerRight,
+                page.lineAboveHeader, page.lineBelowHeader);
+    }
+
+    private void addFooterTable(OdfXmlWriter xml, String styleTableName, CompiledSectionStyle.Page page)
+            throws XMLStreamException {
+        fillTable(xml, styleTableName,
+                page.footerLeftStyle, page.footerLeft,
+                page.footerCenterStyle, page.footerCenter,
+                page.footerRightStyle, page.footerRight,
+                page.lineAboveFooter, page.lineBelowFooter);
+    }
+
+    private void fillTable(OdfXmlWriter xml, String styleTableName, Style leftStyle, String left,
+                           Style centerStyle, String center, Style rightStyle, String right,
+                           boolean lineAbove, boolean lineBelow) throws XMLStreamException {
+        String cellStyleName = null;
+        if (lineAbove && lineBelow) {
+            cellStyleName = TABLE_BOTH_LINES;
+        } else if (lineAbove) {
+            cellStyleName = TABLE_TOP_LINE;
+        } else if (lineBelow) {
+            cellStyleName = TABLE_BOTTOM_LINE;
+        }
+        xml.start("table:table").attr("table:style-name", styleTableName);
+        xml.empty("table:table-column")
+                .attr("table:number-columns-repeated", "3")
+                .attr("table:style-name", styleTableName + ".A");
+        xml.start("table:table-row");
+        addCell(xml, cellStyleName, null, left, leftStyle);
+        addCell(xml, cellStyleName, CELL_CENTER, center, centerStyle);
+        addCell(xml, cellStyleName, CELL_RIGHT, right, rightStyle);
+        xml.end().end();
+    }
+
+    private void addCell(OdfXmlWriter xml, String cellStyleName, String paragraphStyleName,
+                         String text, Style style) throws XMLStreamException {
+        xml.start("table:table-cell")
+                .attr("table:style-name", cellStyleName)
+                .attr("office:value-type", "string");
+        xml.start("text:p").attr("text:style-name", paragraphStyleName);
+        if (StringUtils.isNotEmpty(text)) {
+            writeSpan(xml, text, style);
+        }
+        xml.end().end();
+    }
+
+    /**
+     * Copy the content from the temporary file to the package. Frames of pictures that turned out
+     * to be equal to a stored picture refer to that picture.
+     *
+     * @param aliases the path of the stored picture by the path the frames refer to
+     */
+    private void copyContent(Map<String, String> aliases) throws IOException {
+        if (aliases.isEmpty()) {
+            Files.copy(bodyFile.toPath(), zip);
+            return;
+        }
+        byte[] reference = IMAGE_REFERENCE.getBytes(OdfXmlWriter.UTF8);
+        OutputStream target = new BufferedOutputStream(zip);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(bodyFile))) {
+            int matched = 0;
+            int b;
+            while ((b = in.read()) >= 0) {
+                target.write(b);
+                if (b != reference[matched]) {
+                    // The reference starts with the only '<' in it
+                    matched = b == reference[0] ? 1 : 0;
+                } else if (++matched == reference.length) {
+                    matched = 0;
+                    ByteArrayOutputStream path = new ByteArrayOutputStream();
+                    while ((b = in.read()) >= 0 && b != '"') {
+                        path.write(b);
+                    }
+                    String stored = aliases.get(path.toString("UTF-8"));
+                    target.write(stored == null ? path.toByteArray() : stored.getBytes(OdfXmlWriter.UTF8));
+                    if (b >= 0) {
+                        target.write(b);
+                    }
+                }
+            }
+        }
+        target.flush();
+    }
+
+    /**
+     * Write the flat document: meta data and styles, followed by the body from the temporary file
+     */
+    private void writeFlatDocument() throws IOException, XMLStreamException {
+        OdfXmlWriter xml = OdfXmlWriter.create(out);
+        xml.startDocument();
+        xml.start("office:document")
+                .declare("office", "style", "text", "table", "draw", "fo", "xlink", "svg", "meta", "dc")
+                .attr("office:version", ODF_VERSION)
+                .attr("office:mimetype", MIME_TYPE);
+        writeMetaElement(xml);
+        writeStyleElements(xml);
+        xml.flush();
+        Files.copy(bodyFile.toPath(), out);
+        xml.end().endDocument();
+        xml.flush();
+    }
+
+    private void writeStyles() throws IOException, XMLStreamException {
+        zip.putNextEntry(new ZipEntry("styles.xml"));
+        OdfXmlWriter xml = OdfXmlWriter.create(zip);
+        xml.startDocument();
+        xml.start("office:document-styles")
+                .declare("office", "style", "text", "table", "draw", "fo", "xlink", "svg")
+                .attr("office:version", ODF_VERSION);
+        writeStyleElements(xml);
+        xml.end().endDocument();
+        xml.flush();
+        zip.closeEntry();
+    }
+
+    /**
+     * Write the styles, automatic styles and master styles
+     */
+    private void writeStyleElements(OdfXmlWriter xml) throws XMLStreamException {
+        xml.start("office:styles");
+        for (StyleRegistry.RegisteredStyle textStyle : styles.getStyles()) {
+            writeTextStyle(xml, textStyle);
+        }
+        for (ParagraphStyle paragraphStyle : paragraphStyles.values()) {
+            writeParagraphStyle(xml, paragraphStyle);
+        }
+        for (ListType type : listStyles) {
+            writeListStyle(xml, type);
+        }
+        xml.end();
+
+        xml.start("office:automatic-styles");
+        writeCellStyle(xml, TABLE_TOP_LINE, "Table top line", BORDER, "none");
+        writeCellStyle(xml, TABLE_BOTTOM_LINE, "Table bottom line", "none", BORDER);
+        writeCellStyle(xml, TABLE_BOTH_LINES, "Table both lines", BORDER, BORDER);
+        xml.start("style:style").attr("style:name", CELL_CENTER).attr("style:family", "paragraph");
+        xml.empty("style:paragraph-properties").attr("fo:text-align", "center");
+        xml.end();
+        xml.start("style:style").attr("style:name", CELL_RIGHT).attr("style:family", "paragraph");
+        xml.empty("style:paragraph-properties").attr("fo:text-align", "end");
+        xml.end();
+        if (sectionStyleCounter == 0) {
+            xml.start("style:page-layout").attr("style:name", "SDNLSS0");
+            xml.empty("style:page-layout-properties")
+                    .attr("fo:page-width", inch(PageSize.A4.getWidthInch()))
+                    .attr("fo:page-height", inch(PageSize.A4.getHeightInch()))
+                    .attr("style:print-orientation", "portrait");
+            xml.end();
+        }
+        xml.raw(automaticStyles.toString());
+        xml.end();
+
+        xml.start("office:master-styles");
+        if (sectionStyleCounter == 0) {
+            xml.empty("style:master-page").attr("style:name", "Standard").attr("style:page-layout-name", "SDNLSS0");
+        }
+        xml.raw(masterStyles.toString());
+        xml.end();
+    }
+
+    private void writeTextStyle(OdfXmlWriter xml, StyleRegistry.RegisteredStyle textStyle) throws XMLStreamException {
+        Style style = textStyle.style;
+        xml.start("style:style")
+                .attr("style:name", encodeStyleName(textStyle.name))
+                .attr("style:display-name", textStyle.name)
+                .attr("style:family", "text");
+        xml.empty("style:text-properties");
+        if (style.isBold()) {
+            xml.attr("fo:font-weight", "bold");
+        }
+        if (style.isItalic()) {
+            xml.attr("fo:font-style", "italic");
+        }
+        if (style.isUnderline()) {
+            xml.attr("style:text-underline-style", "solid")
+                    .attr("style:text-underline-width", "auto")
+                    .attr("style:text-underline-color", "font-color");
+        }
+        if (StringUtils.isNotEmpty(style.getFontName())) {
+            xml.attr("fo:font-family", style.getFontName());
+        }
+        if (style.getFontSize() != null && style.getFontSize() > 0) {
+            xml.attr("fo:font-size", "" + style.getFontSize() + "pt");
+        }
+        if (style.getColor() != null) {
+            xml.attr("fo:color", "#" + ODTExportFormat.rgbHexValue(new Color(style.getColor())));
+        }
+        xml.end();
+    }
+
+    private void writeParagraphStyle(OdfXmlWriter xml, ParagraphStyle style) throws XMLStreamException {
+        xml.start("style:style")
+                .attr("style:name", style.name)
+                .attr("style:display-name", style.displayName)
+                .attr("style:family", "paragraph")
+                .attr("style:master-page-name", style.masterPageName);
+        xml.empty("style:paragraph-properties")
+                .attr("fo:margin-left", style.marginLeft)
+                .attr("fo:text-indent", style.textIndent)
+                .attr("fo:line-height", style.lineHeight)
+                .attr("fo:text-align", style.textAlign)
+                .attr("fo:break-before", style.breakBefore ? "page" : null);
+        xml.end();
+    }
+
+    private void writeListStyle(OdfXmlWriter xml, ListType type) throws XMLStreamException {
+        xml.start("text:list-style").attr("style:name", LIST_STYLE_PREFIX + type.name());
+        for (int level = 1; level <= 10; level++) {
+            switch (type) {
+                case NUMBER:
+                case LETTER:
+                case CAPITAL_LETTER:
+                    xml.start("text:list-level-style-number")
+                            .attr("text:level", "" + level)
+                            .attr("style:num-suffix", ".")
+                            .attr("style:num-format", type == ListType.NUMBER ? "1" : type == ListType.LETTER ? "a" : "A");
+                    break;
+                default:
+                    xml.start("text:list-level-style-bullet")
+                            .attr("text:level", "" + level)
+                            .attr("text:bullet-char", "\u2022");
+            }
+            xml.start("style:list-level-properties")
+                    .attr("text:list-level-position-and-space-mode", "label-alignment");
+            xml.empty("style:list-level-label-alignment")
+                    .attr("text:label-followed-by", "listtab")
+                    .attr("fo:text-indent", "-0.25in")
+                    .attr("fo:margin-left", inch(0.25f * (level + 1)));
+            xml.end().end();
+        }
+        xml.end();
+    }
+
+    private void writeCellStyle(OdfXmlWriter xml, String name, String displayName, String top, String bottom)
+            throws XMLStreamException {
+        xml.start("style:style")
+                .attr("style:name", name)
+                .attr("style:display-name", displayName)
+                .attr("style:family", "table-cell");
+        xml.empty("style:table-cell-properties")
+                .attr("fo:border-bottom", bottom)
+                .attr("fo:border-top", top)
+                .attr("fo:border-left", "none")
+                .attr("fo:border-right", "none");
+        xml.end();
+    }
+
+    private void writeMeta() throws IOException, XMLStreamException {
+        zip.putNextEntry(new ZipEntry("meta.xml"));
+        OdfXmlWriter xml = OdfXmlWriter.create(zip);
+        xml.startDocument();
+        xml.start("office:document-meta").declare("office", "meta", "dc").attr("office:version", ODF_VERSION);
+        writeMetaElement(xml);
+        xml.end().endDocument();
+        xml.flush();
+        zip.closeEntry();
+    }
+
+    private void writeMetaElement(OdfXmlWriter xml) throws XMLStreamException {
+        xml.start("office:meta");
+        xml.start("meta:generator").text("CommonDocExporter").end();
+        if (StringUtils.isNotEmpty(title)) {
+            xml.start("dc:title").text(title).end();
+        }
+        if (StringUtils.isNotEmpty(author)) {
+            xml.start("meta:initial-creator").text(author).end();
+            xml.start("dc:creator").text(author).end();
+        }
+        if (StringUtils.isNotEmpty(language)) {
+            xml.start("dc:language").text(language).end();
+        }
+        xml.start("meta:creation-date").text(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(new Date())).end();
+        xml.end();
+    }
+
+    private void writeManifest() throws IOException, XMLStreamException {
+        zip.putNextEntry(new ZipEntry("META-INF/manifest.xml"));
+        OdfXmlWriter xml = OdfXmlWriter.create(zip);
+        xml.startDocument();
+        xml.start("manifest:manifest").declare("manifest").attr("manifest:version", ODF_VERSION);
+        xml.empty("manifest:file-entry")
+                .attr("manifest:full-path", "/")
+                .attr("manifest:version", ODF_VERSION)
+                .attr("manifest:media-type", MIME_TYPE);
+        for (String entry : new String[]{"content.xml", "styles.xml", "meta.xml"}) {
+            xml.empty("manifest:file-entry").attr("manifest:full-path", entry).attr("manifest:media-type", "text/xml");
+        }
+        for (PictureSpool.Picture picture : pictures.getPictures()) {
+            xml.empty("manifest:file-entry")
+                    .attr("manifest:full-path", picture.path)
+                    .attr("manifest:media-type", picture.mediaType);
+        }
+        xml.end().endDocument();
+        xml.flush();
+        zip.closeEntry();
+    }
+
+    private String inch(float value) {
+        return numberFormat.format(value) + "in";
+    }
+
+    /**
+     * Style names may not contain spaces, encode them the way office suites do ("_20_")
+     */
+    private static String encodeStyleName(String name) {
+        StringBuilder result = null;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean valid = Character.isLetterOrDigit(c) || c == '-' || c == '.' || (c == '_' && i > 0);
+            if (!valid || (i == 0 && !Character.isLetter(c))) {
+                if (result == null) {
+                    result = new StringBuilder(name.substring(0, i));
+                }
+                result.append('_').append(Integer.toHexString(c)).append('_');
+            } else if (result != null) {
+                result.append(c);
+            }
+        }
+        return result == null ? name : result.toString();
+    }
+
+    private static class ParagraphStyle {
+        private final String name;
+        private String displayName;
+        private String masterPageName;
+        private String marginLeft;
+        private String textIndent;
+        private String lineHeight;
+        private String textAlign;
+        private boolean breakBefore;
+
+        private ParagraphStyle(String name) {
+            this.name = name;
+        }
+    }
+}
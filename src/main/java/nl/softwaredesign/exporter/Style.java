@@ -15,6 +15,8 @@ limitations under the License.
  */
 package nl.softwaredesign.exporter;
 
+import org.apache.commons.lang.ObjectUtils;
+
 /**
  * Style for use in a document
  */
@@ -34,6 +36,21 @@ public class Style {
     public Style() {
     }
 
+    /**
+     * Create a copy of the given style
+     *
+     * @param other the style to copy
+     */
+    public Style(Style other) {
+        this.name = other.name;
+        this.bold = other.bold;
+        this.italic = other.italic;
+        this.underline = other.underline;
+        this.fontName = other.fontName;
+        this.fontSize = other.fontSize;
+        this.color = other.color;
+    }
+
     public String getFontName() {
         return fontName;
     }
@@ -90,42 +107,35 @@ public class Style {
         this.color = color;
     }
 
+    @Override
     public int hashCode() {
         int hashcode = name == null ? 0 : name.hashCode();
-        if (bold) {
-            hashcode += 3;
-        }
-        if (italic) {
-            hashcode += 5;
-        }
-        if (underline) {
-            hashcode += 7;
-        }
+        hashcode = 31 * hashcode + (bold ? 3 : 0) + (italic ? 5 : 0) + (underline ? 7 : 0);
+        hashcode = 31 * hashcode + (fontName == null ? 0 : fontName.hashCode());
+        hashcode = 31 * hashcode + (fontSize == null ? 0 : fontSize.hashCode());
+        hashcode = 31 * hashcode + (color == null ? 0 : color.hashCode());
         return hashcode;
     }
 
+    /**
+     * Two styles are equal when all their settings are equal
+     */
+    @Override
     public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
         if (!(obj instanceof Style)) {
             return false;
         }
         Style other = (Style) obj;
-        if (bold && !other.bold) {
-            return false;
-        }
-        if (underline && !other.underline) {
-            return false;
-        }
-        if (italic && !other.italic) {
-            return false;
-        }
-        if(name == null && other.name!=null){
-            return false;
-        } else if(name != null && other.name==null){
-            return false;
-        } else if(name == null && other.name==null){
-            return true;
-        }
-        return name.equals(other.name);
+        return bold == other.bold &&
+                italic == other.italic &&
+                underline == other.underline &&
+                ObjectUtils.equals(name, other.name) &&
+                ObjectUtils.equals(fontName, other.fontName) &&
+                ObjectUtils.equals(fontSize, other.fontSize) &&
+                ObjectUtils.equals(color, other.color);
     }
 
     @Override
@@ -0,0 +1,120 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The text styles used in a document. Styles are looked up by value and
+ * get a unique name when they are registered.
+ */
+final class StyleRegistry {
+
+    private final static String DEFAULT_NAME = "SDNL style 1";
+
+    private final Map<Style, RegisteredStyle> byStyle = new HashMap<>();
+    private final List<RegisteredStyle> styles = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private final Map<String, Integer> nextSuffix = new HashMap<>();
+
+    /**
+     * @param style the style to look for
+     * @return the registered style with the same settings, or null if not registered (yet)
+     */
+    RegisteredStyle find(Style style) {
+        return byStyle.get(style);
+    }
+
+    /**
+     * Register a style that has not been registered before. A copy of the style is kept,
+     * so changing the style afterwards does not change the registered style.
+     *
+     * @param style the style to register
+     * @return the registered style
+     */
+    RegisteredStyle register(Style style) {
+        Style copy = new Style(style);
+        String baseName = DEFAULT_NAME;
+        if (style.getName() != null && style.getName().length() > 0 && !"Default".equalsIgnoreCase(style.getName())) {
+            baseName = style.getName();
+        }
+        RegisteredStyle registered = new RegisteredStyle(copy, uniqueName(baseName), styles.size());
+        byStyle.put(copy, registered);
+        styles.add(registered);
+        return registered;
+    }
+
+    /**
+     * Allocate a name that has not been used before: the base name itself if it is
+     * still free, otherwise the base name followed by a counter
+     */
+    String uniqueName(String baseName) {
+        Integer suffix = nextSuffix.get(baseName);
+        if (suffix == null && names.add(baseName)) {
+            nextSuffix.put(baseName, 1);
+            return baseName;
+        }
+        int counter = suffix == null ? 1 : suffix;
+        String name = baseName + " " + counter;
+        while (!names.add(name)) {
+            counter++;
+            name = baseName + " " + counter;
+        }
+        nextSuffix.put(baseName, counter + 1);
+        return name;
+    }
+
+    /**
+     * Mark a name as used, for a style that is already in the document
+     */
+    void reserveName(String name) {
+        names.add(name);
+    }
+
+    /**
+     * @return the registered styles in order of registration
+     */
+    List<RegisteredStyle> getStyles() {
+        return styles;
+    }
+
+    void clear() {
+        byStyle.clear();
+        styles.clear();
+        names.clear();
+        nextSuffix.clear();
+    }
+
+    /**
+     * A style with the name it is registered under
+     */
+    static class RegisteredStyle {
+        final Style style;
+        final String name;
+        final int index;
+
+        private RegisteredStyle(Style style, String name, int index) {
+            this.style = style;
+            this.name = name;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The items of the table of contents of a document. Every item gets the name of
+ * the bookmark that it links to.
+ */
+final class TableOfContents {
+
+    private final static String BOOKMARK_PREFIX = "SDNLToc";
+
+    private final List<Item> items = new ArrayList<>();
+
+    /**
+     * @param text  text of the item
+     * @param level level of the item, 1 for the top level
+     * @return the name of the bookmark for the item
+     */
+    String add(String text, int level) {
+        Item item = new Item(BOOKMARK_PREFIX + (items.size() + 1), text, Math.max(1, level));
+        items.add(item);
+        return item.bookmark;
+    }
+
+    List<Item> getItems() {
+        return items;
+    }
+
+    /**
+     * @return the deepest level of the items, 0 if there are none
+     */
+    int getMaxLevel() {
+        int max = 0;
+        for (Item item : items) {
+            max = Math.max(max, item.level);
+        }
+        return max;
+    }
+
+    void clear() {
+        items.clear();
+    }
+
+    static class Item {
+        final String bookmark;
+        final String text;
+        final int level;
+
+        private Item(String bookmark, String text, int level) {
+            this.bookmark = bookmark;
+            this.text = text;
+            this.level = level;
+        }
+    }
+}
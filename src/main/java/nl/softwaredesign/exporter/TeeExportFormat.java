@@ -0,0 +1,294 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Writes the same document with several formats at the same time.
+ * <p>
+ * Every format runs on its own thread and gets the calls through a bounded queue. A call
+ * returns as soon as it is queued for all formats; when the queue of a slow format is full,
+ * the caller waits for that format while the others go on. When a format fails, the document
+ * is discarded and the next call throws a DocumentExportException with the cause.
+ * <p>
+ * Every format needs its own target. When the document is started with a single target, the
+ * {@link TargetFactory} of the tee gives every format a target of its own; the document can also
+ * be started and ended with an array of targets, one for each format in the order of the formats.
+ * Images are encoded once and shared by the formats; the data of an image must not be changed
+ * after it is added.
+ */
+public class TeeExportFormat extends QueuedExportFormat {
+
+    /**
+     * Default number of calls that can be queued for a format
+     */
+    public final static int DEFAULT_QUEUE_SIZE = 1024;
+
+    /**
+     * Gives every format of a tee its own target, for a document that is started with a single target
+     */
+    public interface TargetFactory {
+
+        /**
+         * @param number the number of the format, in the order of the formats of the tee
+         * @param format the format that writes the document
+         * @param target the File, OutputStream or WritableByteChannel the document is started with
+         * @return the File, OutputStream or WritableByteChannel for the format. An OutputStream or
+         * WritableByteChannel other than the target of the document is closed when the format has written it.
+         */
+        Object createTarget(int number, ExportFormat format, Object target) throws IOException;
+    }
+
+    private final TargetFactory targetFactory;
+    private Object target;
+    private Object[] targets;
+
+    /**
+     * @param targetFactory gives every format its own target
+     * @param formats       the formats to write the document with
+     */
+    public TeeExportFormat(TargetFactory targetFactory, ExportFormat... formats) {
+        this(DEFAULT_QUEUE_SIZE, targetFactory, formats);
+    }
+
+    /**
+     * @param queueSize     maximum number of calls queued for a format
+     * @param targetFactory gives every format its own target
+     * @param formats       the formats to write the document with
+     */
+    public TeeExportFormat(int queueSize, TargetFactory targetFactory, ExportFormat... formats) {
+        super(queueSize, formats);
+        if (targetFactory == null) {
+            throw new IllegalArgumentException("A target factory is required");
+        }
+        this.targetFactory = targetFactory;
+    }
+
+    /**
+     * Target factory that writes every format to a file next to the target file of the document,
+     * with the name of that file and the extension given for the format. For example, with the
+     * extensions ".odt" and ".md" a document started with the file "report" is written to
+     * "report.odt" and "report.md".
+     *
+     * @param extensions the extension for every format, in the order of the formats
+     */
+    public static TargetFactory siblingFiles(final String... extensions) {
+        return new TargetFactory() {
+            @Override
+            public Object createTarget(int number, ExportFormat format, Object target) {
+                if (!(target instanceof File)) {
+                    throw new IllegalArgumentException("Sibling files need a target file, not " + target);
+                }
+                if (number >= extensions.length) {
+                    throw new IllegalArgumentException("No extension for format " + number);
+                }
+                File file = (File) target;
+                return new File(file.getAbsoluteFile().getParentFile(), file.getName() + extensions[number]);
+            }
+        };
+    }
+
+    /**
+     * Start a document that is written to a file for every format
+     *
+     * @param targetFiles the file for every format, in the order of the formats
+     * @see #startNewFile(File, String, String, String)
+     */
+    public void startNewFile(File[] targetFiles, String author, String title, String language) throws IOException {
+        startAll(null, targetFiles, author, title, language);
+    }
+
+    /**
+     * Start a document that is written to a stream for every format
+     *
+     * @param targets the stream for every format, in the order of the formats
+     * @see #startNewFile(OutputStream, String, String, String)
+     */
+    public void startNewFile(OutputStream[] targets, String author, String title, String language) throws IOException {
+        startAll(null, targets, author, title, language);
+    }
+
+    /**
+     * Close the files of all formats, when they have written the document
+     *
+     * @param targetFiles the files passed to startNewFile
+     */
+    public void endFile(File[] targetFiles, boolean firstPass) throws IOException {
+        end(targetFiles, firstPass);
+    }
+
+    /**
+     * Complete the document and wait until all formats have written it
+     *
+     * @param targets the streams passed to startNewFile
+     */
+    public void endFile(OutputStream[] targets, boolean firstPass) throws IOException {
+        end(targets, firstPass);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Every format writes to the target the target factory gives it for the file.
+     */
+    @Override
+    public void startNewFile(File targetFile, String author, String title, String language) throws IOException {
+        startAll(targetFile, createTargets(targetFile), author, title, language);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Every format writes to the target the target factory gives it for the stream.
+     */
+    @Override
+    public void startNewFile(OutputStream target, String author, String title, String language) throws IOException {
+        startAll(target, createTargets(target), author, title, language);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Every format writes to the target the target factory gives it for the channel.
+     */
+    @Override
+    public void startNewFile(WritableByteChannel target, String author, String title, String language) throws IOException {
+        startAll(target, createTargets(target), author, title, language);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Waits until all formats have written the document to their targets.
+     */
+    @Override
+    public void endFile(File targetFile, boolean firstPass) throws IOException {
+        end(targetsOf(targetFile), firstPass);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Waits until all formats have written the document to their targets.
+     */
+    @Override
+    public void endFile(OutputStream target, boolean firstPass) throws IOException {
+        end(targetsOf(target), firstPass);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Waits until all formats have written the document to their targets.
+     */
+    @Override
+    public void endFile(WritableByteChannel target, boolean firstPass) throws IOException {
+        end(targetsOf(target), firstPass);
+    }
+
+    private Object[] createTargets(Object target) throws IOException {
+        List<ExportFormat> formats = getFormats();
+        Object[] result = new Object[formats.size()];
+        try {
+            for (int i = 0; i < result.length; i++) {
+                result[i] = targetFactory.createTarget(i, formats.get(i), target);
+                if (!(result[i] instanceof File || result[i] instanceof OutputStream
+                        || result[i] instanceof WritableByteChannel)) {
+                    throw new IllegalArgumentException("Not a File, OutputStream or WritableByteChannel: " + result[i]);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            close(target, result);
+            throw e;
+        }
+        return result;
+    }
+
+    private void startAll(Object target, Object[] targets, String author, String title, String language) throws IOException {
+        close(this.target, this.targets); // Targets of a document that was not ended
+        this.target = target;
+        this.targets = target == null ? null : targets;
+        start(targets, author, title, language);
+    }
+
+    /**
+     * @return the targets that were created for the target the document was started with
+     */
+    private Object[] targetsOf(Object target) {
+        if (targets == null || target != this.target) {
+            throw new IllegalArgumentException("The document was not started with " + target);
+        }
+        return targets;
+    }
+
+    private void end(Object[] targets, boolean firstPass) throws IOException {
+        IOException failure = null;
+        try {
+            List<Future<Void>> done = finish(targets, firstPass);
+            for (int i = 0; i < done.size(); i++) {
+                try {
+                    await(done.get(i), i);
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        } finally {
+            if (targets == this.targets) {
+                IOException closeFailure = close(target, targets);
+                if (failure == null) {
+                    failure = closeFailure;
+                }
+                target = null;
+                this.targets = null;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Close the streams and channels that were created for the target of a document
+     *
+     * @return the first exception, if closing failed
+     */
+    private static IOException close(Object target, Object[] targets) {
+        IOException failure = null;
+        if (targets != null) {
+            for (Object created : targets) {
+                if (created != target && created instanceof Closeable) {
+                    try {
+                        ((Closeable) created).close();
+                    } catch (IOException e) {
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                }
+            }
+        }
+        return failure;
+    }
+}
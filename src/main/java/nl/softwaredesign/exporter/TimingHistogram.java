@@ -0,0 +1,88 @@
+/*
+Copyright 2012-2013 Martijn Stellinga
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package nl.softwaredesign.exporter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations. Durations are counted in buckets of powers of two
+ * nanoseconds, so percentiles are accurate to within a factor of two.
+ */
+final class TimingHistogram {
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos | 1));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    double getMean(TimeUnit unit) {
+        long n = count.get();
+        return n == 0 ? 0.0 : (double) total.get() / n / unit.toNanos(1);
+    }
+
+    double getMax(TimeUnit unit) {
+        return (double) max.get() / unit.toNanos(1);
+    }
+
+    /**
+     * @param percentile percentile between 0 and 100
+     * @return the upper bound of the bucket that contains the percentile
+     */
+    double getPercentile(double percentile, TimeUnit unit) {
+        long n = count.get();
+        if (n == 0) {
+            return 0.0;
+        }
+        long rank = (long) Math.ceil(n * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < 64; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                long upper = i == 63 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+                return (double) Math.min(upper, max.get()) / unit.toNanos(1);
+            }
+        }
+        return getMax(unit);
+    }
+
+    void reset() {
+        for (int i = 0; i < 64; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+}